@@ -0,0 +1,280 @@
+package it.jaschke.alexandria;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import it.jaschke.alexandria.data.DbHelper;
+
+/**
+ * BenchmarkDb -- timings for the database paths used by BookProvider. These run against a
+ *     separate benchmark database and report their results to the log. The large sizes are
+ *     only run with "-e size large".
+ */
+public class BenchmarkDb extends AndroidTestCase {
+    public static final String LOG_TAG = BenchmarkDb.class.getSimpleName();
+
+    private static final String BENCHMARK_DATABASE = "benchmark.db";
+    private static final int LOOKUPS = 500;
+
+    // same shape as the BOOK_FULLDETAIL query in BookProvider
+    private static final String SQL_FULL_DETAIL =
+            "SELECT books.title, books.subtitle, books.imgurl, books.description," +
+            " group_concat(DISTINCT authors.author) AS author," +
+            " group_concat(DISTINCT categories.category) AS category" +
+            " FROM books LEFT OUTER JOIN authors USING (_id)" +
+            " LEFT OUTER JOIN categories USING (_id)" +
+            " WHERE books._id = ? GROUP BY books._id";
+
+    // detail lookup on the current schema
+    private static final String SQL_DETAIL =
+            "SELECT books.title, books.subtitle, books.imgurl, book_descriptions.description" +
+            " FROM books LEFT OUTER JOIN book_descriptions USING (_id) WHERE books._id = ?";
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(BENCHMARK_DATABASE);
+        mDb = mContext.openOrCreateDatabase(BENCHMARK_DATABASE, 0, null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        mContext.deleteDatabase(BENCHMARK_DATABASE);
+        super.tearDown();
+    }
+
+    @MediumTest
+    public void testJoinCost10k() {
+        benchmarkJoin(10000);
+    }
+
+    @LargeTest
+    public void testJoinCost100k() {
+        benchmarkJoin(100000);
+    }
+
+    @LargeTest
+    public void testJoinCost1M() {
+        benchmarkJoin(1000000);
+    }
+
+    /**
+     * testDetailLookupPrepareCost -- the same detail lookups with the EAN concatenated into the
+     *     SQL (a new statement to compile for every EAN) and with the EAN as a bind argument (one
+     *     cached statement)
+     */
+    @MediumTest
+    public void testDetailLookupPrepareCost() {
+        final int books = 10000;
+        TestDb.createVersion1(mDb);
+        populate(books);
+        long[] eans = randomEans(books);
+
+        // warm up the page cache so both runs read the same pages from memory
+        timeLookups(SQL_FULL_DETAIL, eans);
+
+        long start = System.nanoTime();
+        for (long ean : eans) {
+            Cursor cursor = mDb.rawQuery(SQL_FULL_DETAIL.replace("?", "'" + ean + "'"), null);
+            assertTrue(cursor.moveToFirst());
+            cursor.close();
+        }
+        double concatenated = (System.nanoTime() - start) / 1e6 / eans.length;
+        double bound = timeLookups(SQL_FULL_DETAIL, eans);
+
+        Log.i(LOG_TAG, String.format("detail lookup: %.3f ms concatenated, %.3f ms bound",
+                concatenated, bound));
+    }
+
+    /**
+     * testReadLatencyDuringWrites -- one writer thread commits books the way BookService does,
+     *     one transaction per book, while reader threads run the list and detail queries. Reports
+     *     the read latency percentiles, with WAL the readers should not wait on the writer.
+     */
+    @LargeTest
+    public void testReadLatencyDuringWrites() throws Exception {
+        final int readers = 4;
+        final int books = 2000;
+
+        mContext.deleteDatabase(DbHelper.DATABASE_NAME);
+        final DbHelper dbHelper = new DbHelper(mContext);
+        final SQLiteDatabase db = dbHelper.getWritableDatabase();
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < books; i++) {
+                    db.beginTransactionNonExclusive();
+                    try {
+                        db.execSQL("INSERT INTO books (_id, title, subtitle, imgurl) VALUES (?, ?, ?, ?)",
+                                new Object[]{ean(i), TestDb.title, TestDb.subtitle, TestDb.imgUrl});
+                        db.execSQL("INSERT INTO book_descriptions (_id, description) VALUES (?, ?)",
+                                new Object[]{ean(i), TestDb.desc});
+                        TestDb.insertAuthor(db, ean(i), TestDb.author);
+                        TestDb.insertCategory(db, ean(i), TestDb.category);
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                }
+                writing.set(false);
+            }
+        });
+
+        Thread[] readerThreads = new Thread[readers];
+        for (int r = 0; r < readers; r++) {
+            final Random random = new Random(r);
+            readerThreads[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    SQLiteDatabase readDb = dbHelper.getReadableDatabase();
+                    while (writing.get()) {
+                        long start = System.nanoTime();
+                        Cursor cursor = readDb.rawQuery(SQL_DETAIL,
+                                new String[]{String.valueOf(ean(random.nextInt(books)))});
+                        cursor.moveToFirst();
+                        cursor.close();
+                        cursor = readDb.rawQuery("SELECT _id, title, subtitle, imgurl FROM books LIMIT 50", null);
+                        cursor.moveToLast();
+                        cursor.close();
+                        latencies.add(System.nanoTime() - start);
+                    }
+                }
+            });
+        }
+
+        writer.start();
+        for (Thread reader : readerThreads) {
+            reader.start();
+        }
+        writer.join();
+        for (Thread reader : readerThreads) {
+            reader.join();
+        }
+
+        dbHelper.checkpoint();
+        dbHelper.close();
+        mContext.deleteDatabase(DbHelper.DATABASE_NAME);
+
+        assertFalse(latencies.isEmpty());
+        Collections.sort(latencies);
+        Log.i(LOG_TAG, String.format("reads during writes: %d reads, p50 %.3f ms, p95 %.3f ms, p99 %.3f ms, max %.3f ms",
+                latencies.size(), percentile(latencies, 50), percentile(latencies, 95),
+                percentile(latencies, 99), latencies.get(latencies.size() - 1) / 1e6));
+    }
+
+    static double percentile(List<Long> sortedNanos, int percentile) {
+        int index = Math.min(sortedNanos.size() - 1, (sortedNanos.size() * percentile) / 100);
+        return sortedNanos.get(index) / 1e6;
+    }
+
+    /**
+     * benchmarkJoin -- time full detail lookups on the version 1 schema, then apply the
+     *     migrations and time the same lookups again
+     * @param books
+     */
+    private void benchmarkJoin(int books) {
+        TestDb.createVersion1(mDb);
+        populate(books);
+
+        long[] eans = randomEans(books);
+        double before = timeLookups(SQL_FULL_DETAIL, eans);
+
+        mDb.beginTransaction();
+        try {
+            DbHelper.applyMigrations(mDb, 1, 2);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        double after = timeLookups(SQL_FULL_DETAIL, eans);
+
+        Log.i(LOG_TAG, String.format("join %d books: %.3f ms/lookup before, %.3f ms/lookup after",
+                books, before, after));
+    }
+
+    /**
+     * populate -- write the given number of books with one author and one category each
+     * @param books
+     */
+    void populate(int books) {
+        SQLiteStatement book = mDb.compileStatement(
+                "INSERT INTO books (_id, title, subtitle, description, imgurl) VALUES (?, ?, ?, ?, ?)");
+        SQLiteStatement author = mDb.compileStatement(
+                "INSERT INTO authors (_id, author) VALUES (?, ?)");
+        SQLiteStatement category = mDb.compileStatement(
+                "INSERT INTO categories (_id, category) VALUES (?, ?)");
+
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < books; i++) {
+                long ean = ean(i);
+                book.bindLong(1, ean);
+                book.bindString(2, TestDb.title + " " + i);
+                book.bindString(3, TestDb.subtitle);
+                book.bindString(4, TestDb.desc);
+                book.bindString(5, TestDb.imgUrl);
+                book.executeInsert();
+
+                author.bindLong(1, ean);
+                author.bindString(2, TestDb.author + " " + (i % 5000));
+                author.executeInsert();
+
+                category.bindLong(1, ean);
+                category.bindString(2, TestDb.category + " " + (i % 200));
+                category.executeInsert();
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        book.close();
+        author.close();
+        category.close();
+    }
+
+    static long ean(int i) {
+        return TestDb.ean + i;
+    }
+
+    static long[] randomEans(int books) {
+        Random random = new Random(books);
+        long[] eans = new long[LOOKUPS];
+        for (int i = 0; i < eans.length; i++) {
+            eans[i] = ean(random.nextInt(books));
+        }
+        return eans;
+    }
+
+    /**
+     * timeLookups -- run the given single row query once for each EAN
+     * @param sql
+     * @param eans
+     * @return average milliseconds per lookup
+     */
+    double timeLookups(String sql, long[] eans) {
+        long start = System.nanoTime();
+        for (long ean : eans) {
+            Cursor cursor = mDb.rawQuery(sql, new String[]{String.valueOf(ean)});
+            assertTrue(cursor.moveToFirst());
+            cursor.close();
+        }
+        return (System.nanoTime() - start) / 1e6 / eans.length;
+    }
+}
@@ -0,0 +1,141 @@
+package it.jaschke.alexandria;
+
+import android.os.Debug;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import it.jaschke.alexandria.services.BookInfo;
+import it.jaschke.alexandria.services.VolumesParser;
+
+/**
+ * BenchmarkParse -- parse time and allocations for volumes responses, the JSONObject tree the
+ *     service used to build against the streaming VolumesParser, on a full recorded response
+ *     and on the partial response asked for with VolumesParser.FIELDS. Results go to the log.
+ */
+public class BenchmarkParse extends TestCase {
+    public static final String LOG_TAG = BenchmarkParse.class.getSimpleName();
+
+    private static final int WARMUP = 200;
+    private static final int ITERATIONS = 2000;
+
+    // the parts of a full volume the library never reads
+    private static final String SALE_INFO = "\"saleInfo\":{\"country\":\"US\",\"saleability\":\"NOT_FOR_SALE\"," +
+            "\"isEbook\":false},\"accessInfo\":{\"country\":\"US\",\"viewability\":\"NO_PAGES\"," +
+            "\"embeddable\":false,\"publicDomain\":false,\"textToSpeechPermission\":\"ALLOWED\"," +
+            "\"epub\":{\"isAvailable\":false},\"pdf\":{\"isAvailable\":false}," +
+            "\"webReaderLink\":\"http://play.google.com/books/reader?id=5rkWAQAAIAAJ&hl=&printsec=frontcover&source=gbs_api\"," +
+            "\"accessViewStatus\":\"NONE\",\"quoteSharingAllowed\":false},\"searchInfo\":{\"textSnippet\":" +
+            "\"Presents a guide to artificial intelligence, covering such topics as intelligent agents, " +
+            "problem-solving, logical agents, planning, uncertainty, learning, and robotics.\"}";
+
+    private static final String FULL_RESPONSE = "{\"kind\":\"books#volumes\",\"totalItems\":1,\"items\":[" +
+            TestVolumesClient.AIMA_VOLUME.substring(0, TestVolumesClient.AIMA_VOLUME.length() - 1) +
+            ",\"etag\":\"K3CzOmpSZbQ\",\"selfLink\":\"https://www.googleapis.com/books/v1/volumes/5rkWAQAAIAAJ\"," +
+            SALE_INFO + "}]}";
+
+    private static final String PARTIAL_RESPONSE = TestVolumesClient.volumes(
+            TestVolumesClient.AIMA_VOLUME.replace("\"kind\":\"books#volume\",\"id\":\"5rkWAQAAIAAJ\",", "")
+                    .replace(",\"language\":\"en\"", "")
+                    .replace("\"smallThumbnail\":\"http://books.google.com/books/content?id=5rkWAQAAIAAJ&zoom=5\",", ""));
+
+    /**
+     * Parse -- one way of getting the book out of a response
+     */
+    private interface Parse {
+        BookInfo parse(String json) throws Exception;
+    }
+
+    private static final Parse TREE = new Parse() {
+        @Override
+        public BookInfo parse(String json) throws JSONException {
+            return parseTree(json);
+        }
+    };
+
+    private static final Parse STREAM = new Parse() {
+        @Override
+        public BookInfo parse(String json) throws IOException {
+            return VolumesParser.parseFirst(new StringReader(json));
+        }
+    };
+
+    @MediumTest
+    public void testParseCost() throws Exception {
+        // both parsers agree before they are timed
+        assertEquals(parseTree(FULL_RESPONSE).title, STREAM.parse(FULL_RESPONSE).title);
+        assertEquals(parseTree(FULL_RESPONSE).authors, STREAM.parse(FULL_RESPONSE).authors);
+        assertEquals(parseTree(FULL_RESPONSE).imageUrl, STREAM.parse(PARTIAL_RESPONSE).imageUrl);
+
+        report("tree, full response", TREE, FULL_RESPONSE);
+        report("stream, full response", STREAM, FULL_RESPONSE);
+        report("tree, partial response", TREE, PARTIAL_RESPONSE);
+        report("stream, partial response", STREAM, PARTIAL_RESPONSE);
+    }
+
+    /**
+     * report -- warm up, then time ITERATIONS parses and count what they allocate on this thread
+     * @param name
+     * @param parse
+     * @param json
+     * @throws Exception
+     */
+    @SuppressWarnings("deprecation")
+    private void report(String name, Parse parse, String json) throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            parse.parse(json);
+        }
+
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            parse.parse(json);
+        }
+        long elapsed = System.nanoTime() - start;
+        Debug.stopAllocCounting();
+
+        Log.i(LOG_TAG, String.format("%s (%d chars): %.1f us/parse, %d objects/parse, %d bytes/parse",
+                name, json.length(), elapsed / 1e3 / ITERATIONS,
+                Debug.getThreadAllocCount() / ITERATIONS, Debug.getThreadAllocSize() / ITERATIONS));
+    }
+
+    /**
+     * parseTree -- the JSONObject parse the service used before VolumesParser, kept here as the
+     *     baseline
+     * @param json
+     * @return first book
+     * @throws JSONException
+     */
+    private static BookInfo parseTree(String json) throws JSONException {
+        JSONObject volumeInfo = new JSONObject(json).getJSONArray("items").getJSONObject(0)
+                .getJSONObject("volumeInfo");
+        String subtitle = volumeInfo.has("subtitle") ? volumeInfo.getString("subtitle") : "";
+        String desc = volumeInfo.has("description") ? volumeInfo.getString("description") : "";
+        String imgUrl = "";
+        if (volumeInfo.has("imageLinks") && volumeInfo.getJSONObject("imageLinks").has("thumbnail")) {
+            imgUrl = volumeInfo.getJSONObject("imageLinks").getString("thumbnail");
+        }
+        return new BookInfo(volumeInfo.getString("title"), subtitle, desc, imgUrl,
+                names(volumeInfo.optJSONArray("authors")), names(volumeInfo.optJSONArray("categories")));
+    }
+
+    private static List<String> names(JSONArray array) throws JSONException {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; (array != null) && (i < array.length()); i++) {
+            names.add(array.getString(i).trim());
+        }
+        return names;
+    }
+}
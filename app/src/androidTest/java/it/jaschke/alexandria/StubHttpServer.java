@@ -0,0 +1,161 @@
+package it.jaschke.alexandria;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * StubHttpServer -- minimal HTTP/1.0 server on the loopback address that answers every request
+ *     through a Handler, used to replay recorded API responses. Each connection is answered on
+ *     its own thread so delayed responses do not hold up others, every decoded request path is
+ *     recorded.
+ */
+public class StubHttpServer {
+
+    /**
+     * Response -- status, headers and body to send back
+     */
+    public static class Response {
+        public final int status;
+        public final String body;
+        public final List<String> headers = new ArrayList<>();
+        public long delayMillis;
+
+        public Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+
+        public Response header(String name, String value) {
+            headers.add(name + ": " + value);
+            return this;
+        }
+
+        public Response delay(long millis) {
+            delayMillis = millis;
+            return this;
+        }
+    }
+
+    /**
+     * Handler -- answers one request
+     */
+    public interface Handler {
+        /**
+         * @param path decoded path and query, e.g. /volumes?q=isbn:9780137903955
+         * @param headers request headers as "Name: value" lines
+         * @return response to send
+         */
+        Response handle(String path, List<String> headers);
+    }
+
+    private final ServerSocket mServerSocket;
+    private final Handler mHandler;
+    private final List<String> mRequests = new ArrayList<>();
+    private final Thread mThread;
+
+    public StubHttpServer(Handler handler) throws IOException {
+        mHandler = handler;
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, StubHttpServer.class.getSimpleName());
+        mThread.start();
+    }
+
+    /**
+     * getUrl -- base url of the server
+     * @param path appended to the base, starts with /
+     * @return url
+     */
+    public String getUrl(String path) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+    }
+
+    public synchronized List<String> getRequests() {
+        return new ArrayList<>(mRequests);
+    }
+
+    public synchronized int getRequestCount() {
+        return mRequests.size();
+    }
+
+    public void shutdown() throws IOException {
+        mServerSocket.close();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void serve() {
+        while (!mServerSocket.isClosed()) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            answer(socket);
+                            socket.close();
+                        } catch (IOException e) {
+                            // client went away
+                        }
+                    }
+                }).start();
+            } catch (IOException e) {
+                // closed by shutdown
+            }
+        }
+    }
+
+    private void answer(Socket socket) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+        String requestLine = reader.readLine();
+        if (requestLine == null) {
+            return;
+        }
+        List<String> headers = new ArrayList<>();
+        String line;
+        while (((line = reader.readLine()) != null) && !line.isEmpty()) {
+            headers.add(line);
+        }
+        String path = URLDecoder.decode(requestLine.split(" ")[1], "UTF-8");
+        synchronized (this) {
+            mRequests.add(path);
+        }
+
+        Response response = mHandler.handle(path, headers);
+        if (response.delayMillis > 0) {
+            try {
+                Thread.sleep(response.delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        byte[] body = (response.body == null) ? new byte[0] : response.body.getBytes("UTF-8");
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.0 ").append(response.status).append(" Stub\r\n");
+        head.append("Content-Type: application/json; charset=UTF-8\r\n");
+        head.append("Content-Length: ").append(body.length).append("\r\n");
+        for (String header : response.headers) {
+            head.append(header).append("\r\n");
+        }
+        head.append("\r\n");
+        OutputStream out = socket.getOutputStream();
+        out.write(head.toString().getBytes("UTF-8"));
+        out.write(body);
+        out.flush();
+    }
+}
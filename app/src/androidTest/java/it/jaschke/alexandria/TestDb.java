@@ -2,6 +2,7 @@ package it.jaschke.alexandria;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.test.AndroidTestCase;
 
@@ -33,23 +34,69 @@ public class TestDb extends AndroidTestCase {
         db.close();
     }
 
+    public void testUpgradeFromVersion1() {
+        mContext.deleteDatabase(DbHelper.DATABASE_NAME);
+        SQLiteDatabase db = mContext.openOrCreateDatabase(DbHelper.DATABASE_NAME, 0, null);
+        createVersion1(db);
+        db.insert(AlexandriaContract.BookEntry.TABLE_NAME, null, getBookValues());
+        db.insert(AlexandriaContract.AuthorEntry.TABLE_NAME, null, getAuthorValues());
+        db.insert(AlexandriaContract.CategoryEntry.TABLE_NAME, null, getCategoryValues());
+        // left behind by a book deleted at version 1
+        ContentValues orphan = getAuthorValues();
+        orphan.put(AlexandriaContract.AuthorEntry._ID, ean + 1);
+        db.insert(AlexandriaContract.AuthorEntry.TABLE_NAME, null, orphan);
+        db.setVersion(1);
+        db.close();
+
+        DbHelper dbHelper = new DbHelper(mContext);
+        db = dbHelper.getWritableDatabase();
+
+        assertTrue(hasSchemaObject(db, "index", DbHelper.AUTHOR_INDEX_NAME));
+        assertTrue(hasSchemaObject(db, "index", DbHelper.CATEGORY_INDEX_NAME));
+
+        // rows written at version 1 must survive the upgrade, the description moves to its own
+        // table
+        Cursor cursor = db.query(AlexandriaContract.BookEntry.TABLE_NAME + " JOIN " +
+                        AlexandriaContract.DescriptionEntry.TABLE_NAME + " USING (_id)",
+                null, null, null, null, null, null);
+        validateCursor(cursor, getBookValues());
+        assertTrue(hasSchemaObject(db, "table", AlexandriaContract.DescriptionEntry.TABLE_NAME));
+
+        // derived tables are populated from the existing rows
+        cursor = db.query(AlexandriaContract.SummaryEntry.TABLE_NAME,
+                null, null, null, null, null, null);
+        validateCursor(cursor, getFullListValues());
+
+        // orphaned authors are purged
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, AlexandriaContract.AuthorEntry.TABLE_NAME,
+                AlexandriaContract.AuthorEntry._ID + " = ?", new String[]{String.valueOf(ean + 1)}));
+
+        // each name is stored once and read back through the views
+        assertEquals(1, DatabaseUtils.queryNumEntries(db, AlexandriaContract.AuthorNameEntry.TABLE_NAME));
+        cursor = db.query(AlexandriaContract.AuthorEntry.TABLE_NAME,
+                null, null, null, null, null, null);
+        validateCursor(cursor, getAuthorValues());
+        cursor = db.query(AlexandriaContract.CategoryEntry.TABLE_NAME,
+                null, null, null, null, null, null);
+        validateCursor(cursor, getCategoryValues());
+
+        // turned on once the migrations are done, not while they rebuild books
+        assertEquals(1, DatabaseUtils.longForQuery(db, "PRAGMA foreign_keys", null));
+
+        dbHelper.close();
+    }
+
     public void testInsertReadDb() {
 
         DbHelper dbHelper = new DbHelper(mContext);
         SQLiteDatabase db = dbHelper.getWritableDatabase();
 
-        ContentValues values = getBookValues();
+        ContentValues values = getListValues();
 
         long retEan = db.insert(AlexandriaContract.BookEntry.TABLE_NAME, null, values);
         assertEquals(ean, retEan);
 
-        String[] columns = {
-                AlexandriaContract.BookEntry._ID,
-                AlexandriaContract.BookEntry.TITLE,
-                AlexandriaContract.BookEntry.IMAGE_URL,
-                AlexandriaContract.BookEntry.SUBTITLE,
-                AlexandriaContract.BookEntry.DESC
-        };
+        String[] columns = AlexandriaContract.BookEntry.LIST_PROJECTION;
 
         // A cursor is your primary interface to the query results.
         Cursor cursor = db.query(
@@ -64,10 +111,9 @@ public class TestDb extends AndroidTestCase {
 
         validateCursor(cursor, values);
 
+        // authors and categories are views over interned names and link tables
         values = getAuthorValues();
-
-
-        retEan = db.insert(AlexandriaContract.AuthorEntry.TABLE_NAME, null, values);
+        insertAuthor(db, ean, author);
 
         columns = new String[]{
                 AlexandriaContract.AuthorEntry._ID,
@@ -88,7 +134,7 @@ public class TestDb extends AndroidTestCase {
         // test category table
 
         values = getCategoryValues();
-        retEan = db.insert(AlexandriaContract.CategoryEntry.TABLE_NAME, null, values);
+        insertCategory(db, ean, category);
 
         columns = new String[]{
                 AlexandriaContract.CategoryEntry._ID,
@@ -111,6 +157,51 @@ public class TestDb extends AndroidTestCase {
 
     }
 
+    /**
+     * createVersion1 -- the original version 1 schema, kept here as a fixture for upgrade tests
+     * @param db
+     */
+    static void createVersion1(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE books (_id INTEGER PRIMARY KEY,title TEXT NOT NULL," +
+                "subtitle TEXT ,description TEXT ,imgurl TEXT, UNIQUE (_id) ON CONFLICT IGNORE)");
+        db.execSQL("CREATE TABLE authors (_id INTEGER,author TEXT," +
+                " FOREIGN KEY (_id) REFERENCES books (_id))");
+        db.execSQL("CREATE TABLE categories (_id INTEGER,category TEXT," +
+                " FOREIGN KEY (_id) REFERENCES books (_id))");
+    }
+
+    /**
+     * insertAuthor -- link a book to an author name, interning the name first
+     * @param db
+     * @param ean
+     * @param author
+     */
+    static void insertAuthor(SQLiteDatabase db, long ean, String author) {
+        db.execSQL("INSERT OR IGNORE INTO author_names (name) VALUES (?)", new Object[]{author});
+        db.execSQL("INSERT INTO book_authors (book_id, author_id) SELECT ?, _id FROM author_names" +
+                " WHERE name = ?", new Object[]{ean, author});
+    }
+
+    /**
+     * insertCategory -- link a book to a category name, interning the name first
+     * @param db
+     * @param ean
+     * @param category
+     */
+    static void insertCategory(SQLiteDatabase db, long ean, String category) {
+        db.execSQL("INSERT OR IGNORE INTO category_names (name) VALUES (?)", new Object[]{category});
+        db.execSQL("INSERT INTO book_categories (book_id, category_id) SELECT ?, _id FROM category_names" +
+                " WHERE name = ?", new Object[]{ean, category});
+    }
+
+    static boolean hasSchemaObject(SQLiteDatabase db, String type, String name) {
+        Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type = ? AND name = ?",
+                new String[]{type, name});
+        boolean found = cursor.moveToFirst();
+        cursor.close();
+        return found;
+    }
+
     static void validateCursor(Cursor valueCursor, ContentValues expectedValues) {
 
         assertTrue(valueCursor.moveToFirst());
@@ -138,6 +229,14 @@ public class TestDb extends AndroidTestCase {
         return values;
     }
 
+    public static ContentValues getListValues() {
+
+        final ContentValues values = getBookValues();
+        values.remove(AlexandriaContract.BookEntry.DESC);
+
+        return values;
+    }
+
     public static ContentValues getAuthorValues() {
 
         final ContentValues values= new ContentValues();
@@ -0,0 +1,118 @@
+package it.jaschke.alexandria;
+
+import android.os.SystemClock;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import it.jaschke.alexandria.services.BookService;
+import it.jaschke.alexandria.services.HedgedMetadataSource;
+import it.jaschke.alexandria.services.MetadataSource;
+import it.jaschke.alexandria.services.OpenLibraryClient;
+import it.jaschke.alexandria.services.VolumesClient;
+
+/**
+ * TestHedgedMetadataSource -- Google Books and Open Library stub servers behind a hedged source,
+ *     the primary is made slow, failing or forgetful to see the backup step in
+ */
+public class TestHedgedMetadataSource extends TestCase {
+
+    // hedge delay before any latencies are known, well below the slow primary
+    private static final long HEDGE_DELAY_MS = 200;
+    private static final long SLOW_MS = 3000;
+
+    private StubHttpServer mPrimaryServer;
+    private StubHttpServer mBackupServer;
+    private HedgedMetadataSource mSource;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mSource != null) {
+            mSource.shutdown();
+        }
+        if (mPrimaryServer != null) {
+            mPrimaryServer.shutdown();
+        }
+        if (mBackupServer != null) {
+            mBackupServer.shutdown();
+        }
+        super.tearDown();
+    }
+
+    private void startSources(StubHttpServer.Handler primary) throws Exception {
+        mPrimaryServer = new StubHttpServer(primary);
+        mBackupServer = new StubHttpServer(new TestOpenLibraryClient.RecordedBooks());
+        mSource = new HedgedMetadataSource(
+                new VolumesClient(mPrimaryServer.getUrl("/books/v1/volumes")),
+                new OpenLibraryClient(mBackupServer.getUrl("/api/books")),
+                HedgedMetadataSource.DEFAULT_PERCENTILE, HEDGE_DELAY_MS);
+    }
+
+    public void testFastPrimary() throws Exception {
+        startSources(new TestVolumesClient.RecordedVolumes());
+
+        MetadataSource.Result result = mSource.lookup(TestVolumesClient.AIMA_EAN);
+        assertEquals("A Modern Approach", result.book.subtitle);
+        assertEquals(0, mBackupServer.getRequestCount());
+        assertEquals(0, mSource.hedgedCount());
+    }
+
+    public void testSlowPrimaryIsHedged() throws Exception {
+        startSources(new StubHttpServer.Handler() {
+            @Override
+            public StubHttpServer.Response handle(String path, List<String> headers) {
+                return new TestVolumesClient.RecordedVolumes().handle(path, headers).delay(SLOW_MS);
+            }
+        });
+
+        long start = SystemClock.elapsedRealtime();
+        MetadataSource.Result result = mSource.lookup(TestVolumesClient.AIMA_EAN);
+        long elapsed = SystemClock.elapsedRealtime() - start;
+
+        // the backup's answer, long before the primary's
+        assertEquals(TestOpenLibraryClient.AIMA_SUBTITLE, result.book.subtitle);
+        assertTrue("took " + elapsed + "ms", elapsed < SLOW_MS);
+        assertEquals(1, mSource.hedgedCount());
+        assertEquals(1, mSource.backupWinCount());
+    }
+
+    public void testPrimaryFailureFallsBack() throws Exception {
+        startSources(new StubHttpServer.Handler() {
+            @Override
+            public StubHttpServer.Response handle(String path, List<String> headers) {
+                return new StubHttpServer.Response(503, "{\"error\":{\"code\":503}}");
+            }
+        });
+
+        assertEquals(TestOpenLibraryClient.AIMA_SUBTITLE,
+                mSource.lookup(TestVolumesClient.AIMA_EAN).book.subtitle);
+        assertEquals(0, mSource.hedgedCount());
+
+        // neither knows it, the primary's failure is the one reported
+        assertEquals(BookService.FETCH_SERVER_FAILURE,
+                mSource.lookup(TestVolumesClient.UNLISTED_EAN).failure);
+    }
+
+    public void testLookupAllMerges() throws Exception {
+        // the primary only knows AIMA, the backup fills in CLRS
+        startSources(new StubHttpServer.Handler() {
+            @Override
+            public StubHttpServer.Response handle(String path, List<String> headers) {
+                return new StubHttpServer.Response(200, TestVolumesClient.volumes(TestVolumesClient.AIMA_VOLUME));
+            }
+        });
+
+        Map<String, MetadataSource.Result> results = mSource.lookupAll(Arrays.asList(
+                TestVolumesClient.AIMA_EAN, TestVolumesClient.CLRS_EAN, TestVolumesClient.UNLISTED_EAN));
+        assertEquals("A Modern Approach", results.get(TestVolumesClient.AIMA_EAN).book.subtitle);
+        assertEquals("Introduction to Algorithms", results.get(TestVolumesClient.CLRS_EAN).book.title);
+        assertEquals(BookService.FETCH_NOT_FOUND, results.get(TestVolumesClient.UNLISTED_EAN).failure);
+
+        // only the EANs the primary did not find were asked of the backup
+        assertEquals(1, mBackupServer.getRequestCount());
+        assertFalse(mBackupServer.getRequests().get(0).contains(TestVolumesClient.AIMA_EAN));
+    }
+}
@@ -0,0 +1,115 @@
+package it.jaschke.alexandria;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import it.jaschke.alexandria.services.BookService;
+import it.jaschke.alexandria.services.MetadataSource;
+import it.jaschke.alexandria.services.OpenLibraryClient;
+
+/**
+ * TestOpenLibraryClient -- single and batched lookups against recorded Open Library responses
+ */
+public class TestOpenLibraryClient extends TestCase {
+
+    static final String AIMA_SUBTITLE = "A Modern Approach (2nd Edition)";
+
+    static final String AIMA_BOOK = "\"ISBN:" + TestVolumesClient.AIMA_EAN + "\":{" +
+            "\"url\":\"https://openlibrary.org/books/OL7335095M/Artificial_Intelligence\"," +
+            "\"key\":\"/books/OL7335095M\",\"title\":\"Artificial Intelligence\"," +
+            "\"subtitle\":\"" + AIMA_SUBTITLE + "\"," +
+            "\"authors\":[{\"url\":\"https://openlibrary.org/authors/OL440500A\",\"name\":\"Stuart J. Russell\"}," +
+            "{\"url\":\"https://openlibrary.org/authors/OL440501A\",\"name\":\"Peter Norvig\"}]," +
+            "\"number_of_pages\":1132," +
+            "\"subjects\":[{\"name\":\"Artificial intelligence\"},{\"name\":\"Intelligence artificielle\"}," +
+            "{\"name\":\"Machine learning\"},{\"name\":\"Robotics\"}]," +
+            "\"cover\":{\"small\":\"https://covers.openlibrary.org/b/id/1002217-S.jpg\"," +
+            "\"medium\":\"https://covers.openlibrary.org/b/id/1002217-M.jpg\"," +
+            "\"large\":\"https://covers.openlibrary.org/b/id/1002217-L.jpg\"}}";
+
+    static final String CLRS_BOOK = "\"ISBN:" + TestVolumesClient.CLRS_EAN + "\":{" +
+            "\"title\":\"Introduction to Algorithms\"," +
+            "\"notes\":\"Includes bibliographical references and index.\"," +
+            "\"authors\":[{\"name\":\"Thomas H. Cormen\"}],\"subjects\":[{\"name\":\"Computer programming\"}]}";
+
+    /**
+     * RecordedBooks -- answers each ISBN: bibkey asked for with the recorded book, if any
+     */
+    static class RecordedBooks implements StubHttpServer.Handler {
+        @Override
+        public StubHttpServer.Response handle(String path, List<String> headers) {
+            List<String> books = new ArrayList<>();
+            if (path.contains("ISBN:" + TestVolumesClient.AIMA_EAN)) {
+                books.add(AIMA_BOOK);
+            }
+            if (path.contains("ISBN:" + TestVolumesClient.CLRS_EAN)) {
+                books.add(CLRS_BOOK);
+            }
+            StringBuilder body = new StringBuilder("{");
+            for (int i = 0; i < books.size(); i++) {
+                body.append((i == 0) ? "" : ",").append(books.get(i));
+            }
+            return new StubHttpServer.Response(200, body.append("}").toString());
+        }
+    }
+
+    private StubHttpServer mServer;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mServer != null) {
+            mServer.shutdown();
+        }
+        super.tearDown();
+    }
+
+    public void testLookup() throws Exception {
+        mServer = new StubHttpServer(new RecordedBooks());
+        OpenLibraryClient client = new OpenLibraryClient(mServer.getUrl("/api/books"));
+
+        MetadataSource.Result result = client.lookup(TestVolumesClient.AIMA_EAN);
+        assertNotNull(result.book);
+        assertEquals("Artificial Intelligence", result.book.title);
+        assertEquals(AIMA_SUBTITLE, result.book.subtitle);
+        assertEquals(Arrays.asList("Stuart J. Russell", "Peter Norvig"), result.book.authors);
+        // only the first few subjects become categories
+        assertEquals(3, result.book.categories.size());
+        assertEquals("https://covers.openlibrary.org/b/id/1002217-M.jpg", result.book.imageUrl);
+        assertTrue(mServer.getRequests().get(0).startsWith(
+                "/api/books?bibkeys=ISBN:" + TestVolumesClient.AIMA_EAN));
+
+        assertEquals(BookService.FETCH_NOT_FOUND, client.lookup(TestVolumesClient.UNLISTED_EAN).failure);
+    }
+
+    public void testLookupAll() throws Exception {
+        mServer = new StubHttpServer(new RecordedBooks());
+        OpenLibraryClient client = new OpenLibraryClient(mServer.getUrl("/api/books"));
+
+        Map<String, MetadataSource.Result> results = client.lookupAll(Arrays.asList(
+                TestVolumesClient.AIMA_EAN, TestVolumesClient.UNLISTED_EAN, TestVolumesClient.CLRS_EAN));
+
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals(Arrays.asList(TestVolumesClient.AIMA_EAN, TestVolumesClient.UNLISTED_EAN,
+                TestVolumesClient.CLRS_EAN), new ArrayList<>(results.keySet()));
+        assertEquals("Artificial Intelligence", results.get(TestVolumesClient.AIMA_EAN).book.title);
+        assertEquals("Includes bibliographical references and index.",
+                results.get(TestVolumesClient.CLRS_EAN).book.description);
+        assertEquals(BookService.FETCH_NOT_FOUND, results.get(TestVolumesClient.UNLISTED_EAN).failure);
+    }
+
+    public void testLookupServerFailure() throws Exception {
+        mServer = new StubHttpServer(new StubHttpServer.Handler() {
+            @Override
+            public StubHttpServer.Response handle(String path, List<String> headers) {
+                return new StubHttpServer.Response(500, "Internal Server Error");
+            }
+        });
+        OpenLibraryClient client = new OpenLibraryClient(mServer.getUrl("/api/books"));
+
+        assertEquals(BookService.FETCH_SERVER_FAILURE, client.lookup(TestVolumesClient.AIMA_EAN).failure);
+    }
+}
@@ -1,13 +1,26 @@
 package it.jaschke.alexandria;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Bundle;
 import android.test.AndroidTestCase;
 import android.util.Log;
 
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
 import it.jaschke.alexandria.data.AlexandriaContract;
 import it.jaschke.alexandria.data.DbHelper;
 
@@ -17,6 +30,9 @@ import it.jaschke.alexandria.data.DbHelper;
 public class TestProvider extends AndroidTestCase {
     public static final String LOG_TAG = TestProvider.class.getSimpleName();
 
+    // longest wait for a flushed notification to reach an observer
+    private static final long NOTIFY_WAIT_MS = 5000;
+
     public void setUp() {
         deleteAllRecords();
     }
@@ -106,6 +122,471 @@ public class TestProvider extends AndroidTestCase {
         readFullList();
     }
 
+    public void testApplyBatch() throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newInsert(AlexandriaContract.BookEntry.CONTENT_URI)
+                .withValues(TestDb.getBookValues()).build());
+        operations.add(ContentProviderOperation.newInsert(AlexandriaContract.AuthorEntry.CONTENT_URI)
+                .withValues(TestDb.getAuthorValues()).build());
+        operations.add(ContentProviderOperation.newInsert(AlexandriaContract.CategoryEntry.CONTENT_URI)
+                .withValues(TestDb.getCategoryValues()).build());
+
+        mContext.getContentResolver().applyBatch(AlexandriaContract.CONTENT_AUTHORITY, operations);
+
+        readFullBook();
+        readFullList();
+    }
+
+    public void testApplyBatchSkipsPresentBook() throws Exception {
+        insertReadBook();
+
+        // written by a fetch since the import checked, the other book must still go in
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newInsert(AlexandriaContract.BookEntry.CONTENT_URI)
+                .withValues(TestDb.getBookValues()).build());
+        ContentValues other = TestDb.getBookValues();
+        other.put(AlexandriaContract.BookEntry._ID, TestDb.ean + 1);
+        operations.add(ContentProviderOperation.newInsert(AlexandriaContract.BookEntry.CONTENT_URI)
+                .withValues(other).build());
+
+        mContext.getContentResolver().applyBatch(AlexandriaContract.CONTENT_AUTHORITY, operations);
+        assertRowCount(AlexandriaContract.BookEntry.CONTENT_URI, 2);
+    }
+
+    public void testBulkInsert() {
+        // authors reference their book, so the book goes in first
+        mContext.getContentResolver().insert(AlexandriaContract.BookEntry.CONTENT_URI,
+                TestDb.getBookValues());
+
+        ContentValues[] authors = new ContentValues[3];
+        for (int i = 0; i < authors.length; i++) {
+            authors[i] = new ContentValues();
+            authors[i].put(AlexandriaContract.AuthorEntry._ID, TestDb.ean);
+            authors[i].put(AlexandriaContract.AuthorEntry.AUTHOR, TestDb.author + i);
+        }
+
+        int inserted = mContext.getContentResolver().bulkInsert(
+                AlexandriaContract.AuthorEntry.CONTENT_URI, authors);
+        assertEquals(authors.length, inserted);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                AlexandriaContract.AuthorEntry.buildAuthorUri(TestDb.ean),
+                null, // projection
+                null, // selection
+                null, // selection args
+                null  // sort order
+        );
+        assertEquals(authors.length, cursor.getCount());
+        cursor.close();
+    }
+
+    public void testBooksByName() {
+        // two books share an author and a category, the name is interned once and both books are
+        // found from it
+        for (int i = 0; i < 2; i++) {
+            ContentValues values = TestDb.getBookValues();
+            values.put(AlexandriaContract.BookEntry._ID, TestDb.ean + i);
+            mContext.getContentResolver().insert(AlexandriaContract.BookEntry.CONTENT_URI, values);
+            values = TestDb.getAuthorValues();
+            values.put(AlexandriaContract.AuthorEntry._ID, TestDb.ean + i);
+            mContext.getContentResolver().insert(AlexandriaContract.AuthorEntry.CONTENT_URI, values);
+            values = TestDb.getCategoryValues();
+            values.put(AlexandriaContract.CategoryEntry._ID, TestDb.ean + i);
+            mContext.getContentResolver().insert(AlexandriaContract.CategoryEntry.CONTENT_URI, values);
+        }
+
+        assertRowCount(AlexandriaContract.BookEntry.buildAuthorBooksUri(TestDb.author), 2);
+        assertRowCount(AlexandriaContract.BookEntry.buildCategoryBooksUri(TestDb.category), 2);
+        assertRowCount(AlexandriaContract.BookEntry.buildAuthorBooksUri("Nobody"), 0);
+
+        // removing one link leaves the other book with the name
+        mContext.getContentResolver().delete(AlexandriaContract.AuthorEntry.CONTENT_URI,
+                AlexandriaContract.AuthorEntry._ID + " = ?",
+                new String[]{String.valueOf(TestDb.ean)});
+        assertRowCount(AlexandriaContract.BookEntry.buildAuthorBooksUri(TestDb.author), 1);
+    }
+
+    public void testFacets() {
+        for (int i = 0; i < 2; i++) {
+            ContentValues values = TestDb.getBookValues();
+            values.put(AlexandriaContract.BookEntry._ID, TestDb.ean + i);
+            mContext.getContentResolver().insert(AlexandriaContract.BookEntry.CONTENT_URI, values);
+            values = TestDb.getAuthorValues();
+            values.put(AlexandriaContract.AuthorEntry._ID, TestDb.ean + i);
+            mContext.getContentResolver().insert(AlexandriaContract.AuthorEntry.CONTENT_URI, values);
+        }
+        mContext.getContentResolver().insert(AlexandriaContract.CategoryEntry.CONTENT_URI,
+                TestDb.getCategoryValues());
+
+        assertFacet(AlexandriaContract.FacetEntry.AUTHOR_URI, TestDb.author, 2);
+        assertFacet(AlexandriaContract.FacetEntry.CATEGORY_URI, TestDb.category, 1);
+
+        // deleting a book takes its links, and its counts, with it
+        mContext.getContentResolver().delete(
+                AlexandriaContract.BookEntry.buildBookUri(TestDb.ean), null, null);
+        assertFacet(AlexandriaContract.FacetEntry.AUTHOR_URI, TestDb.author, 1);
+        assertRowCount(AlexandriaContract.FacetEntry.CATEGORY_URI, 0);
+    }
+
+    private void assertFacet(Uri uri, String name, int bookCount) {
+        Cursor cursor = mContext.getContentResolver().query(uri, null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(name, cursor.getString(cursor.getColumnIndex(AlexandriaContract.FacetEntry.NAME)));
+        assertEquals(bookCount, cursor.getInt(cursor.getColumnIndex(AlexandriaContract.FacetEntry.BOOK_COUNT)));
+        cursor.close();
+    }
+
+    public void testDeleteCascades() {
+        insertReadBook();
+        insertReadAuthor();
+        insertReadCategory();
+
+        mContext.getContentResolver().delete(
+                AlexandriaContract.BookEntry.buildBookUri(TestDb.ean), null, null);
+
+        assertRowCount(AlexandriaContract.AuthorEntry.buildAuthorUri(TestDb.ean), 0);
+        assertRowCount(AlexandriaContract.CategoryEntry.buildCategoryUri(TestDb.ean), 0);
+
+        // books with long descriptions fill enough pages that deleting them frees some
+        StringBuilder desc = new StringBuilder();
+        while (desc.length() < 4000) {
+            desc.append(TestDb.desc).append(' ');
+        }
+        for (int i = 1; i <= 50; i++) {
+            ContentValues values = TestDb.getBookValues();
+            values.put(AlexandriaContract.BookEntry._ID, TestDb.ean + i);
+            values.put(AlexandriaContract.BookEntry.DESC, desc.toString());
+            mContext.getContentResolver().insert(AlexandriaContract.BookEntry.CONTENT_URI, values);
+        }
+        mContext.getContentResolver().delete(AlexandriaContract.BookEntry.CONTENT_URI, null, null);
+
+        assertTrue(AlexandriaContract.compactDatabase(mContext.getContentResolver()) > 0);
+        // nothing left to give back
+        assertEquals(0, AlexandriaContract.compactDatabase(mContext.getContentResolver()));
+    }
+
+    private void assertRowCount(Uri uri, int expected) {
+        Cursor cursor = mContext.getContentResolver().query(uri, null, null, null, null);
+        assertEquals(expected, cursor.getCount());
+        cursor.close();
+    }
+
+    public void testBatchNotifiesOnce() throws Exception {
+        // send the notifications from setUp before watching the list
+        assertTrue(AlexandriaContract.flushNotifications(mContext.getContentResolver()));
+
+        final AtomicInteger changes = new AtomicInteger();
+        final CountDownLatch changed = new CountDownLatch(1);
+        ContentObserver observer = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                changes.incrementAndGet();
+                changed.countDown();
+            }
+        };
+        mContext.getContentResolver().registerContentObserver(
+                AlexandriaContract.BookEntry.FULL_CONTENT_URI, true, observer);
+        try {
+            ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                ContentValues values = TestDb.getBookValues();
+                values.put(AlexandriaContract.BookEntry._ID, TestDb.ean + i);
+                operations.add(ContentProviderOperation.newInsert(AlexandriaContract.BookEntry.CONTENT_URI)
+                        .withValues(values).build());
+            }
+            mContext.getContentResolver().applyBatch(AlexandriaContract.CONTENT_AUTHORITY, operations);
+
+            // everything the batch changed goes out in the one flush, then reaches the observer
+            assertTrue(AlexandriaContract.flushNotifications(mContext.getContentResolver()));
+            assertTrue(changed.await(NOTIFY_WAIT_MS, TimeUnit.MILLISECONDS));
+            assertEquals(1, changes.get());
+        } finally {
+            mContext.getContentResolver().unregisterContentObserver(observer);
+        }
+    }
+
+    public void testSearch() {
+        insertReadBook();
+        insertReadAuthor();
+        insertReadCategory();
+
+        // prefix of a title word, an author and a description word must all find the book
+        assertSearchCount("artif", 1);
+        assertSearchCount("Russ", 1);
+        assertSearchCount("robotics", 1);
+        assertSearchCount("artif russ", 1);
+        assertSearchCount("cooking", 0);
+        assertSearchCount("*\"(", 0);
+
+        mContext.getContentResolver().delete(
+                AlexandriaContract.BookEntry.buildBookUri(TestDb.ean), null, null);
+        assertSearchCount("artif", 0);
+    }
+
+    public void testSelectionRefreshesMatchedBooks() {
+        insertReadBook();
+        insertReadAuthor();
+        ContentValues other = TestDb.getBookValues();
+        other.put(AlexandriaContract.BookEntry._ID, TestDb.ean + 1);
+        mContext.getContentResolver().insert(AlexandriaContract.BookEntry.CONTENT_URI, other);
+        ContentResolver resolver = mContext.getContentResolver();
+
+        // only the selected book is renamed, in the search index as well as the book
+        ContentValues values = new ContentValues();
+        values.put(AlexandriaContract.BookEntry.TITLE, "Changed");
+        String byEan = AlexandriaContract.BookEntry._ID + " = ?";
+        assertEquals(1, resolver.update(AlexandriaContract.BookEntry.CONTENT_URI, values, byEan,
+                new String[]{String.valueOf(TestDb.ean + 1)}));
+        assertSearchCount("changed", 1);
+        assertSearchCount("artif", 1);
+
+        // removing a link by selection refreshes the book it belonged to
+        assertSearchCount("Russ", 1);
+        resolver.delete(AlexandriaContract.AuthorEntry.CONTENT_URI,
+                AlexandriaContract.AuthorEntry.AUTHOR + " = ?", new String[]{TestDb.author});
+        assertSearchCount("Russ", 0);
+    }
+
+    private void assertSearchCount(String query, int expected) {
+        Cursor cursor = mContext.getContentResolver().query(
+                AlexandriaContract.BookEntry.buildSearchUri(query),
+                null, // projection
+                null, // selection
+                null, // selection args
+                null  // sort order
+        );
+        assertEquals(query, expected, cursor.getCount());
+        cursor.close();
+    }
+
+    public void testCallLookups() {
+        assertFalse(AlexandriaContract.bookExists(mContext.getContentResolver(), TestDb.ean));
+        assertEquals(0, AlexandriaContract.bookCount(mContext.getContentResolver()));
+
+        insertReadBook();
+
+        assertTrue(AlexandriaContract.bookExists(mContext.getContentResolver(), TestDb.ean));
+        assertEquals(1, AlexandriaContract.bookCount(mContext.getContentResolver()));
+
+        boolean[] present = AlexandriaContract.booksExist(mContext.getContentResolver(),
+                new long[]{TestDb.ean + 1, TestDb.ean});
+        assertFalse(present[0]);
+        assertTrue(present[1]);
+
+        // a method that needs EANs refuses a call without them instead of crashing
+        try {
+            mContext.getContentResolver().call(AlexandriaContract.BASE_CONTENT_URI,
+                    AlexandriaContract.METHOD_EXISTS_MANY, null, null);
+            fail("existsMany without extras");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testBackupRestore() throws Exception {
+        insertReadBook();
+        insertReadAuthor();
+        insertReadCategory();
+
+        Uri backup = Uri.fromFile(new File(mContext.getCacheDir(), "library.backup"));
+        assertEquals(1, AlexandriaContract.exportLibrary(mContext.getContentResolver(), backup));
+
+        mContext.getContentResolver().delete(
+                AlexandriaContract.BookEntry.buildBookUri(TestDb.ean), null, null);
+        assertRowCount(AlexandriaContract.BookEntry.CONTENT_URI, 0);
+
+        assertEquals(1, AlexandriaContract.restoreLibrary(mContext.getContentResolver(), backup));
+        assertDetailTitle(AlexandriaContract.BookEntry.buildFullBookUri(TestDb.ean), TestDb.title);
+        assertFacet(AlexandriaContract.FacetEntry.AUTHOR_URI, TestDb.author, 1);
+        assertFacet(AlexandriaContract.FacetEntry.CATEGORY_URI, TestDb.category, 1);
+        assertSearchCount(TestDb.author, 1);
+
+        // a file that is not a backup is refused and the library is left alone
+        File garbage = new File(mContext.getCacheDir(), "garbage.backup");
+        FileOutputStream out = new FileOutputStream(garbage);
+        out.write("not a backup".getBytes("UTF-8"));
+        out.close();
+        assertEquals(-1, AlexandriaContract.restoreLibrary(mContext.getContentResolver(),
+                Uri.fromFile(garbage)));
+        assertRowCount(AlexandriaContract.BookEntry.CONTENT_URI, 1);
+
+        // so is a backup whose title claims to be larger than any string could be
+        File corrupt = new File(mContext.getCacheDir(), "corrupt.backup");
+        DataOutputStream data = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(corrupt)));
+        data.writeInt(0x414c5842);
+        data.writeInt(1);
+        data.writeByte('B');
+        data.writeLong(TestDb.ean);
+        data.writeInt(Integer.MAX_VALUE);
+        data.close();
+        assertEquals(-1, AlexandriaContract.restoreLibrary(mContext.getContentResolver(),
+                Uri.fromFile(corrupt)));
+        assertRowCount(AlexandriaContract.BookEntry.CONTENT_URI, 1);
+    }
+
+    public void testLookupFailures() {
+        ContentResolver resolver = mContext.getContentResolver();
+        AlexandriaContract.clearLookupFailures(resolver);
+        long[] eans = {TestDb.ean, TestDb.ean + 1, TestDb.ean + 2};
+
+        AlexandriaContract.recordFailure(resolver, new long[]{eans[0]}, "not found", 60000);
+        // already expired, looked up again
+        AlexandriaContract.recordFailure(resolver, new long[]{eans[1]}, "not found", -1);
+
+        String[] failures = AlexandriaContract.lookupFailures(resolver, eans);
+        assertEquals("not found", failures[0]);
+        assertNull(failures[1]);
+        assertNull(failures[2]);
+
+        assertEquals(2, AlexandriaContract.clearLookupFailures(resolver));
+        assertNull(AlexandriaContract.lookupFailure(resolver, eans[0]));
+    }
+
+    public void testPendingFetches() {
+        ContentResolver resolver = mContext.getContentResolver();
+        long[] eans = {TestDb.ean, TestDb.ean + 1};
+        AlexandriaContract.removeFetches(resolver, eans);
+
+        long nextAttempt = AlexandriaContract.queueFetches(resolver, eans, "network");
+        assertTrue(nextAttempt > System.currentTimeMillis());
+        assertEquals(nextAttempt, AlexandriaContract.nextFetchAttempt(resolver));
+
+        // backoff has not passed yet, only a drain of everything sees them
+        assertEquals(0, AlexandriaContract.dueFetches(resolver, 0, false, 10).length);
+        long[] due = AlexandriaContract.dueFetches(resolver, 0, true, 10);
+        assertEquals(2, due.length);
+        assertEquals(eans[0], due[0]);
+        assertEquals(1, AlexandriaContract.dueFetches(resolver, eans[0], true, 10).length);
+
+        assertEquals(0, AlexandriaContract.removeFetches(resolver, eans));
+        assertEquals(0, AlexandriaContract.nextFetchAttempt(resolver));
+        assertEquals(0, AlexandriaContract.dueFetches(resolver, 0, true, 10).length);
+    }
+
+    public void testDetailCache() {
+        insertReadBook();
+        Uri detailUri = AlexandriaContract.BookEntry.buildFullBookUri(TestDb.ean);
+
+        // the first read fills the cache, the second is served from it
+        assertDetailTitle(detailUri, TestDb.title);
+        Bundle before = cacheStats();
+        assertDetailTitle(detailUri, TestDb.title);
+        Bundle after = cacheStats();
+        assertEquals(before.getInt(AlexandriaContract.KEY_CACHE_HITS) + 1,
+                after.getInt(AlexandriaContract.KEY_CACHE_HITS));
+        assertEquals(before.getInt(AlexandriaContract.KEY_CACHE_MISSES),
+                after.getInt(AlexandriaContract.KEY_CACHE_MISSES));
+
+        // a write to the book drops it from the cache
+        ContentValues values = new ContentValues();
+        values.put(AlexandriaContract.BookEntry.TITLE, "Changed");
+        mContext.getContentResolver().update(AlexandriaContract.BookEntry.CONTENT_URI, values,
+                AlexandriaContract.BookEntry._ID + " = ?", new String[]{String.valueOf(TestDb.ean)});
+        assertDetailTitle(detailUri, "Changed");
+    }
+
+    public void testDetailSelection() {
+        insertReadBook();
+        Uri detailUri = AlexandriaContract.BookEntry.buildFullBookUri(TestDb.ean);
+        assertDetailTitle(detailUri, TestDb.title);
+        Bundle before = cacheStats();
+
+        // the caller's selection narrows the EAN lookup and the cached detail is not used
+        String selection = AlexandriaContract.BookEntry.TITLE + " = ?";
+        Cursor cursor = mContext.getContentResolver().query(detailUri, null, selection,
+                new String[]{TestDb.title}, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+        cursor = mContext.getContentResolver().query(detailUri, null, selection,
+                new String[]{"Another title"}, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        assertEquals(before.getInt(AlexandriaContract.KEY_CACHE_HITS),
+                cacheStats().getInt(AlexandriaContract.KEY_CACHE_HITS));
+    }
+
+    private void assertDetailTitle(Uri uri, String title) {
+        Cursor cursor = mContext.getContentResolver().query(uri, null, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(title, cursor.getString(cursor.getColumnIndex(AlexandriaContract.BookEntry.TITLE)));
+        cursor.close();
+    }
+
+    private Bundle cacheStats() {
+        return mContext.getContentResolver().call(AlexandriaContract.BASE_CONTENT_URI,
+                AlexandriaContract.METHOD_CACHE_STATS, null, null);
+    }
+
+    public void testMetrics() {
+        insertReadBook();
+
+        // explaining samples every query, so this one is sized
+        Bundle extras = new Bundle();
+        extras.putBoolean(AlexandriaContract.KEY_METRICS_RESET, true);
+        extras.putBoolean(AlexandriaContract.KEY_METRICS_EXPLAIN, true);
+        mContext.getContentResolver().call(AlexandriaContract.BASE_CONTENT_URI,
+                AlexandriaContract.METHOD_METRICS, null, extras);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                AlexandriaContract.BookEntry.FULL_CONTENT_URI, null, null, null, null);
+        cursor.close();
+
+        extras = new Bundle();
+        extras.putBoolean(AlexandriaContract.KEY_METRICS_EXPLAIN, false);
+        Bundle metrics = mContext.getContentResolver().call(AlexandriaContract.BASE_CONTENT_URI,
+                AlexandriaContract.METHOD_METRICS, null, extras);
+        Bundle fullList = metrics.getBundle("query:BOOK_FULL");
+        assertNotNull(fullList);
+        assertEquals(1, fullList.getLong(AlexandriaContract.KEY_METRIC_COUNT));
+        assertEquals(1, fullList.getLong(AlexandriaContract.KEY_METRIC_SAMPLED));
+        assertEquals(1, fullList.getLong(AlexandriaContract.KEY_METRIC_ROWS));
+        // at least the title of the one book
+        assertTrue(fullList.getLong(AlexandriaContract.KEY_METRIC_WINDOW_BYTES) >= TestDb.title.length());
+        long[] histogram = fullList.getLongArray(AlexandriaContract.KEY_METRIC_HISTOGRAM);
+        assertEquals(metrics.getLongArray(AlexandriaContract.KEY_METRIC_BOUNDS_MS).length + 1,
+                histogram.length);
+    }
+
+    public void testBookPages() {
+        for (int i = 0; i < 3; i++) {
+            ContentValues bookValues = TestDb.getBookValues();
+            bookValues.put(AlexandriaContract.BookEntry._ID, TestDb.ean + i);
+            mContext.getContentResolver().insert(AlexandriaContract.BookEntry.CONTENT_URI, bookValues);
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(
+                AlexandriaContract.BookEntry.buildBookPageUri(2, -1),
+                AlexandriaContract.BookEntry.LIST_PROJECTION,
+                null, // selection
+                null, // selection args
+                null  // sort order
+        );
+        assertEquals(2, cursor.getCount());
+        assertTrue(cursor.moveToLast());
+        long lastId = cursor.getLong(cursor.getColumnIndex(AlexandriaContract.BookEntry._ID));
+        assertEquals(TestDb.ean + 1, lastId);
+        cursor.close();
+
+        cursor = mContext.getContentResolver().query(
+                AlexandriaContract.BookEntry.buildBookPageUri(2, lastId),
+                AlexandriaContract.BookEntry.LIST_PROJECTION,
+                null, // selection
+                null, // selection args
+                null  // sort order
+        );
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(TestDb.ean + 2, cursor.getLong(cursor.getColumnIndex(AlexandriaContract.BookEntry._ID)));
+        cursor.close();
+
+        // a reload through the last EAN loaded keeps every row up to it
+        assertRowCount(AlexandriaContract.BookEntry.buildBookRangeUri(1, TestDb.ean + 2), 3);
+        // but never comes back shorter than the first page
+        assertRowCount(AlexandriaContract.BookEntry.buildBookRangeUri(2, TestDb.ean), 2);
+    }
+
     public void insertReadBook(){
         ContentValues bookValues = TestDb.getBookValues();
 
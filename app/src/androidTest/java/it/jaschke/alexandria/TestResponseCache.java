@@ -0,0 +1,131 @@
+package it.jaschke.alexandria;
+
+import android.test.AndroidTestCase;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import it.jaschke.alexandria.services.ResponseCache;
+import it.jaschke.alexandria.services.VolumesClient;
+
+/**
+ * TestResponseCache -- revalidation, offline lookups and eviction of cached volumes responses
+ */
+public class TestResponseCache extends AndroidTestCase {
+
+    private static final String ETAG = "\"aima-1\"";
+
+    private File mDirectory;
+    private StubHttpServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(mContext.getCacheDir(), "test-volumes");
+        new ResponseCache(mDirectory, Long.MAX_VALUE).clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mServer != null) {
+            mServer.shutdown();
+        }
+        new ResponseCache(mDirectory, Long.MAX_VALUE).clear();
+        super.tearDown();
+    }
+
+    public void testRevalidate() throws Exception {
+        mServer = new StubHttpServer(new StubHttpServer.Handler() {
+            @Override
+            public StubHttpServer.Response handle(String path, List<String> headers) {
+                if (headers.contains("If-None-Match: " + ETAG)) {
+                    return new StubHttpServer.Response(304, null);
+                }
+                return new StubHttpServer.Response(200,
+                        TestVolumesClient.volumes(TestVolumesClient.AIMA_VOLUME)).header("ETag", ETAG);
+            }
+        });
+        ResponseCache cache = new ResponseCache(mDirectory, 64 * 1024);
+        VolumesClient client = new VolumesClient(mServer.getUrl("/books/v1/volumes"), cache);
+
+        // the first lookup downloads, the second is answered 304 and read from disk
+        assertEquals("Artificial Intelligence", client.lookup(TestVolumesClient.AIMA_EAN).book.title);
+        assertEquals("Artificial Intelligence", client.lookup(TestVolumesClient.AIMA_EAN).book.title);
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals(1, cache.hitCount());
+        assertEquals(1, cache.missCount());
+        assertEquals(0.5f, cache.hitRatio());
+        assertTrue(cache.bytesSaved() > 0);
+
+        // offline the cached response is served stale
+        mServer.shutdown();
+        mServer = null;
+        assertEquals("Artificial Intelligence", client.lookup(TestVolumesClient.AIMA_EAN).book.title);
+        assertEquals(1, cache.staleCount());
+
+        // nothing cached, nothing to serve
+        assertNull(client.lookup(TestVolumesClient.CLRS_EAN).book);
+    }
+
+    public void testCachedEanLeavesBatch() throws Exception {
+        mServer = new StubHttpServer(new TestVolumesClient.RecordedVolumes());
+        ResponseCache cache = new ResponseCache(mDirectory, 64 * 1024);
+        VolumesClient client = new VolumesClient(mServer.getUrl("/books/v1/volumes"), cache);
+
+        client.lookup(TestVolumesClient.AIMA_EAN);
+        client.lookupAll(Arrays.asList(TestVolumesClient.AIMA_EAN,
+                TestVolumesClient.CLRS_EAN, TestVolumesClient.UNLISTED_EAN));
+
+        // the cached EAN is revalidated on its own, the others still share a request
+        List<String> requests = mServer.getRequests();
+        assertEquals(3, requests.size());
+        assertFalse(requests.get(2).contains(TestVolumesClient.AIMA_EAN));
+        assertTrue(requests.get(2).contains(TestVolumesClient.CLRS_EAN));
+    }
+
+    public void testEviction() throws Exception {
+        ResponseCache cache = new ResponseCache(mDirectory, 4 * 1024);
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 1500; i++) {
+            body.append('x');
+        }
+        for (int i = 0; i < 5; i++) {
+            cache.put("key" + i, new ResponseCache.Entry(null, null, body.toString()));
+        }
+        assertTrue(cache.size() <= 4 * 1024);
+
+        // the newest response is never the one evicted
+        assertNotNull(cache.get("key4"));
+        int cached = 0;
+        for (int i = 0; i < 5; i++) {
+            cached += cache.contains("key" + i) ? 1 : 0;
+        }
+        assertEquals(2, cached);
+    }
+
+    public void testCorruptEntry() throws Exception {
+        ResponseCache cache = new ResponseCache(mDirectory, 64 * 1024);
+        cache.put("key", new ResponseCache.Entry(ETAG, null, "{}"));
+
+        // a body length far beyond the file is dropped, not allocated
+        DataOutputStream out = new DataOutputStream(
+                new FileOutputStream(new File(mDirectory, "key.resp")));
+        out.writeInt(1);
+        out.writeBoolean(false);
+        out.writeBoolean(false);
+        out.writeInt(Integer.MAX_VALUE);
+        out.close();
+        assertNull(cache.get("key"));
+        assertFalse(cache.contains("key"));
+    }
+
+    public void testBytesSaved() {
+        ResponseCache cache = new ResponseCache(mDirectory, 64 * 1024);
+        // counted as downloaded, two bytes for the accented letter
+        cache.recordHit(new ResponseCache.Entry(null, null, "caf\u00e9"), false);
+        assertEquals(5, cache.bytesSaved());
+    }
+}
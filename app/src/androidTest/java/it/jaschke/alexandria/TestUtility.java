@@ -0,0 +1,37 @@
+package it.jaschke.alexandria;
+
+import junit.framework.TestCase;
+
+/**
+ * TestUtility -- ISBN handling shared by AddBook and the bulk import
+ */
+public class TestUtility extends TestCase {
+
+    public void testNormalizeISBN() {
+        // ISBN-13 as typed, hyphenated or quoted in a CSV file
+        assertEquals("9780137903955", Utility.normalizeISBN("9780137903955"));
+        assertEquals("9780137903955", Utility.normalizeISBN("978-0-13-790395-5"));
+        assertEquals("9780137903955", Utility.normalizeISBN("\"9780137903955\""));
+
+        // ISBN-10 is converted, including a check digit of X
+        assertEquals("9780137903955", Utility.normalizeISBN("0-13-790395-2"));
+        assertEquals("9780804429573", Utility.normalizeISBN("0-8044-2957-X"));
+
+        // not ISBNs
+        assertNull(Utility.normalizeISBN("9780137903956"));
+        assertNull(Utility.normalizeISBN("1234567890123"));
+        // ten digits whose ISBN-10 check digit is wrong, phone numbers and ids in a file
+        assertNull(Utility.normalizeISBN("000000004X"));
+        assertNull(Utility.normalizeISBN("0-13-790395-3"));
+        assertNull(Utility.normalizeISBN("555-123-4567"));
+        assertNull(Utility.normalizeISBN("12.99"));
+        assertNull(Utility.normalizeISBN("Artificial"));
+        assertNull(Utility.normalizeISBN(null));
+    }
+
+    public void testConvertISBN10toISBN13() {
+        assertEquals("9780137903955", Utility.convertISBN10toISBN13("0137903952"));
+        // check digit 0 when the weighted sum is already a multiple of 10
+        assertEquals("9780000000040", Utility.convertISBN10toISBN13("0000000040"));
+    }
+}
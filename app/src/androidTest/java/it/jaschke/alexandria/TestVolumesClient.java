@@ -0,0 +1,156 @@
+package it.jaschke.alexandria;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import it.jaschke.alexandria.services.BookService;
+import it.jaschke.alexandria.services.MetadataSource;
+import it.jaschke.alexandria.services.VolumesClient;
+import it.jaschke.alexandria.services.VolumesParser;
+
+/**
+ * TestVolumesClient -- single and batched lookups against recorded volumes responses
+ */
+public class TestVolumesClient extends TestCase {
+
+    static final String AIMA_EAN = "9780137903955";
+    static final String CLRS_EAN = "9780262033848";
+    static final String UNLISTED_EAN = "9780000000040";
+
+    static final String AIMA_VOLUME = "{\"kind\":\"books#volume\",\"id\":\"5rkWAQAAIAAJ\"," +
+            "\"volumeInfo\":{\"title\":\"Artificial Intelligence\",\"subtitle\":\"A Modern Approach\"," +
+            "\"authors\":[\"Stuart Jonathan Russell\",\"Peter Norvig\"]," +
+            "\"description\":\"The long-anticipated revision of this best-selling text.\"," +
+            "\"industryIdentifiers\":[{\"type\":\"ISBN_10\",\"identifier\":\"0137903952\"}," +
+            "{\"type\":\"ISBN_13\",\"identifier\":\"9780137903955\"}]," +
+            "\"categories\":[\"Computers\"]," +
+            "\"imageLinks\":{\"smallThumbnail\":\"http://books.google.com/books/content?id=5rkWAQAAIAAJ&zoom=5\"," +
+            "\"thumbnail\":\"http://books.google.com/books/content?id=5rkWAQAAIAAJ&zoom=1\"}," +
+            "\"language\":\"en\"}}";
+
+    // only the ISBN-10 is listed, the client has to convert it to find the EAN
+    static final String CLRS_VOLUME = "{\"kind\":\"books#volume\",\"id\":\"i-bUBQAAQBAJ\"," +
+            "\"volumeInfo\":{\"title\":\"Introduction to Algorithms\"," +
+            "\"authors\":[\"Thomas H. Cormen\",\"Charles E. Leiserson\",\"Ronald L. Rivest\",\"Clifford Stein\"]," +
+            "\"industryIdentifiers\":[{\"type\":\"ISBN_10\",\"identifier\":\"0262033844\"}]," +
+            "\"categories\":[\"Computers\"],\"language\":\"en\"}}";
+
+    static final String NO_VOLUMES = "{\"kind\":\"books#volumes\",\"totalItems\":0}";
+
+    static String volumes(String... items) {
+        StringBuilder json = new StringBuilder("{\"kind\":\"books#volumes\",\"totalItems\":")
+                .append(items.length).append(",\"items\":[");
+        for (int i = 0; i < items.length; i++) {
+            json.append((i == 0) ? "" : ",").append(items[i]);
+        }
+        return json.append("]}").toString();
+    }
+
+    /**
+     * RecordedVolumes -- answers each isbn: term of a search with the recorded volume, if any
+     */
+    static class RecordedVolumes implements StubHttpServer.Handler {
+        @Override
+        public StubHttpServer.Response handle(String path, List<String> headers) {
+            List<String> items = new ArrayList<>();
+            if (path.contains("isbn:" + AIMA_EAN)) {
+                items.add(AIMA_VOLUME);
+            }
+            if (path.contains("isbn:" + CLRS_EAN)) {
+                items.add(CLRS_VOLUME);
+            }
+            String body = items.isEmpty() ? NO_VOLUMES : volumes(items.toArray(new String[items.size()]));
+            return new StubHttpServer.Response(200, body);
+        }
+    }
+
+    private StubHttpServer mServer;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mServer != null) {
+            mServer.shutdown();
+        }
+        super.tearDown();
+    }
+
+    public void testLookup() throws Exception {
+        mServer = new StubHttpServer(new RecordedVolumes());
+        VolumesClient client = new VolumesClient(mServer.getUrl("/books/v1/volumes"));
+
+        MetadataSource.Result result = client.lookup(AIMA_EAN);
+        assertNotNull(result.book);
+        assertEquals("Artificial Intelligence", result.book.title);
+        assertEquals(Arrays.asList("Stuart Jonathan Russell", "Peter Norvig"), result.book.authors);
+        assertTrue(mServer.getRequests().get(0).startsWith("/books/v1/volumes?q=isbn:" + AIMA_EAN));
+        assertTrue(mServer.getRequests().get(0).contains("fields=" + VolumesParser.FIELDS));
+
+        assertEquals(BookService.FETCH_NOT_FOUND, client.lookup(UNLISTED_EAN).failure);
+    }
+
+    public void testLookupAll() throws Exception {
+        mServer = new StubHttpServer(new RecordedVolumes());
+        VolumesClient client = new VolumesClient(mServer.getUrl("/books/v1/volumes"));
+
+        Map<String, MetadataSource.Result> results =
+                client.lookupAll(Arrays.asList(AIMA_EAN, UNLISTED_EAN, CLRS_EAN));
+
+        // one round trip, split back out per EAN in the order asked
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals(Arrays.asList(AIMA_EAN, UNLISTED_EAN, CLRS_EAN), new ArrayList<>(results.keySet()));
+        assertEquals("Artificial Intelligence", results.get(AIMA_EAN).book.title);
+        assertEquals("Introduction to Algorithms", results.get(CLRS_EAN).book.title);
+        assertNull(results.get(UNLISTED_EAN).book);
+        assertEquals(BookService.FETCH_NOT_FOUND, results.get(UNLISTED_EAN).failure);
+    }
+
+    public void testLookupAllSplitsBatches() throws Exception {
+        mServer = new StubHttpServer(new RecordedVolumes());
+        VolumesClient client = new VolumesClient(mServer.getUrl("/books/v1/volumes"));
+
+        List<String> eans = new ArrayList<>();
+        eans.add(AIMA_EAN);
+        for (int i = 1; i <= VolumesClient.MAX_BATCH_SIZE; i++) {
+            eans.add(Utility.convertISBN10toISBN13(String.format("%09d0", i)));
+        }
+
+        Map<String, MetadataSource.Result> results = client.lookupAll(eans);
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals(eans.size(), results.size());
+        assertNotNull(results.get(AIMA_EAN).book);
+    }
+
+    public void testLookupAllServerFailure() throws Exception {
+        mServer = new StubHttpServer(new StubHttpServer.Handler() {
+            @Override
+            public StubHttpServer.Response handle(String path, List<String> headers) {
+                return new StubHttpServer.Response(503, "{\"error\":{\"code\":503}}");
+            }
+        });
+        VolumesClient client = new VolumesClient(mServer.getUrl("/books/v1/volumes"));
+
+        Map<String, MetadataSource.Result> results = client.lookupAll(Arrays.asList(AIMA_EAN, CLRS_EAN));
+        assertEquals(BookService.FETCH_SERVER_FAILURE, results.get(AIMA_EAN).failure);
+        assertEquals(BookService.FETCH_SERVER_FAILURE, results.get(CLRS_EAN).failure);
+    }
+
+    public void testLookupAllBadVolume() throws Exception {
+        // a volume without a title fails only its own EAN
+        final String untitled = CLRS_VOLUME.replace("\"title\":\"Introduction to Algorithms\",", "");
+        mServer = new StubHttpServer(new StubHttpServer.Handler() {
+            @Override
+            public StubHttpServer.Response handle(String path, List<String> headers) {
+                return new StubHttpServer.Response(200, volumes(AIMA_VOLUME, untitled));
+            }
+        });
+        VolumesClient client = new VolumesClient(mServer.getUrl("/books/v1/volumes"));
+
+        Map<String, MetadataSource.Result> results = client.lookupAll(Arrays.asList(AIMA_EAN, CLRS_EAN));
+        assertNotNull(results.get(AIMA_EAN).book);
+        assertEquals(BookService.FETCH_OTHER_FAILURE, results.get(CLRS_EAN).failure);
+    }
+}
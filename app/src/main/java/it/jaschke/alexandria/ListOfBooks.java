@@ -1,16 +1,13 @@
 package it.jaschke.alexandria;
 
-import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.database.Cursor;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
-import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -20,45 +17,36 @@ import android.widget.AdapterView;
 import android.widget.EditText;
 import android.widget.ListView;
 
-import it.jaschke.alexandria.api.BookListAdapter;
+import java.util.concurrent.atomic.AtomicLong;
+
+import it.jaschke.alexandria.api.BookPageAdapter;
 import it.jaschke.alexandria.api.Callback;
 import it.jaschke.alexandria.data.AlexandriaContract;
-import it.jaschke.alexandria.services.BookService;
 
 /**
  * ListOfBooks -- fragment used to support the book list
  *
  */
-public class ListOfBooks extends Fragment implements LoaderManager.LoaderCallbacks<Cursor> {
+public class ListOfBooks extends Fragment
+        implements LoaderManager.LoaderCallbacks<Cursor>, BookPageAdapter.PageLoader {
 
     private final String LOG_TAG = ListOfBooks.class.getSimpleName();
 
     private EditText mEditTextSearch;
     private ListView mListViewBooks;
 
-    private BookListAdapter mBookListAdapter;
-
-    private int mListViewPosition = ListView.INVALID_POSITION;
-
-    private final int LOADER_ID = 10;
-
-    private BroadcastReceiver mBroadcastReceiver;
+    private BookPageAdapter mBookListAdapter;
 
+    // rows per keyset page, a few screens worth so scrolling rarely waits on a page
+    private static final int PAGE_SIZE = 50;
 
+    private int mListViewPosition = ListView.INVALID_POSITION;
 
-    /**
-     * MessageReceiver -- used to handle broadcast sent from BookService when a book has been
-     *     deleted, tells us to refresh the list of books
-     */
-    private class MessageReceiver extends BroadcastReceiver {
+    // last EAN the list has loaded past the first page, written on the main thread and read by
+    //     the loader when the books change
+    private final AtomicLong mLoadedThrough = new AtomicLong(-1);
 
-        @Override
-        public void onReceive (Context context, Intent intent) {
-            String deletedEAN = intent.getStringExtra(BookService.MESSAGE_KEY);
-            Log.d (LOG_TAG, "onReceive() -- deletedEAN ==> " + deletedEAN);
-            ListOfBooks.this.restartLoader();
-        }
-    }
+    private final int LOADER_ID = 10;
 
     public ListOfBooks() {
     }
@@ -95,25 +83,17 @@ public class ListOfBooks extends Fragment implements LoaderManager.LoaderCallbac
 
         mListViewBooks = (ListView) rootView.findViewById(R.id.listOfBooks);
 
-        // moved query here as there seemed to be a possible race where query returned before
-        //     the view was inflated
-        Cursor cursor = getActivity().getContentResolver().query(
-                AlexandriaContract.BookEntry.CONTENT_URI,
-                null, // leaving "columns" null just returns all the columns.
-                null, // cols for "where" clause
-                null, // values for "where" clause
-                null  // sort order
-        );
-
-        mBookListAdapter = new BookListAdapter(getActivity(), cursor, 0);
+        // list is loaded one keyset page at a time, the loader provides the first page and the
+        //     adapter asks for the following pages as the user scrolls
+        mBookListAdapter = new BookPageAdapter(getActivity(), PAGE_SIZE, this);
         mListViewBooks.setAdapter(mBookListAdapter);
 
         mListViewBooks.setOnItemClickListener(new AdapterView.OnItemClickListener() {
 
             @Override
             public void onItemClick(AdapterView<?> adapterView, View view, int position, long l) {
-                Cursor cursor = mBookListAdapter.getCursor();
-                if (cursor != null && cursor.moveToPosition(position)) {
+                Cursor cursor = (Cursor) mBookListAdapter.getItem(position);
+                if (cursor != null) {
                     // hide keypad if showing
                     Utility.hideSoftInput(getActivity());
                     ((Callback) getActivity())
@@ -123,44 +103,99 @@ public class ListOfBooks extends Fragment implements LoaderManager.LoaderCallbac
             }
         });
 
+        getLoaderManager().initLoader(LOADER_ID, null, this);
+
         return rootView;
     }
 
+    /**
+     * loadPageAfter -- query the next page of books in the background and hand it to the adapter
+     * @param lastId
+     * @param generation
+     */
+    @Override
+    public void loadPageAfter(final long lastId, final int generation) {
+        final Context context = getActivity().getApplicationContext();
+        new AsyncTask<Void, Void, Cursor>() {
+            @Override
+            protected Cursor doInBackground(Void... params) {
+                Cursor page = context.getContentResolver().query(
+                        AlexandriaContract.BookEntry.buildBookPageUri(PAGE_SIZE, lastId),
+                        AlexandriaContract.BookEntry.LIST_PROJECTION,
+                        null,
+                        null,
+                        null
+                );
+                if (page != null) {
+                    // fill the cursor window here rather than on the main thread
+                    page.getCount();
+                }
+                return page;
+            }
+
+            @Override
+            protected void onPostExecute(Cursor page) {
+                mBookListAdapter.appendPage(page, generation);
+                mLoadedThrough.set(mBookListAdapter.getLastId());
+            }
+            // not the default serial executor, the page would wait behind every cover download
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
     private void restartLoader(){
+        mLoadedThrough.set(-1);
         getLoaderManager().restartLoader(LOADER_ID, null, this);
     }
 
+    /**
+     * BookRangeLoader -- reloads the books up to the last one the list has loaded rather than
+     *     only the first page, so a change to the books (each batch of an import) does not cut
+     *     the list back to one page and make the scroll position jump
+     */
+    private static class BookRangeLoader extends CursorLoader {
+        private final AtomicLong mThrough;
+
+        BookRangeLoader(Context context, AtomicLong through) {
+            super(context, AlexandriaContract.BookEntry.buildBookPageUri(PAGE_SIZE, -1),
+                    AlexandriaContract.BookEntry.LIST_PROJECTION, null, null, null);
+            mThrough = through;
+        }
+
+        @Override
+        public Cursor loadInBackground() {
+            long through = mThrough.get();
+            setUri((through < 0) ? AlexandriaContract.BookEntry.buildBookPageUri(PAGE_SIZE, -1) :
+                    AlexandriaContract.BookEntry.buildBookRangeUri(PAGE_SIZE, through));
+            return super.loadInBackground();
+        }
+    }
+
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
 
-        final String selection = AlexandriaContract.BookEntry.TITLE +" LIKE ? OR " + AlexandriaContract.BookEntry.SUBTITLE + " LIKE ? ";
         String searchString = mEditTextSearch.getText().toString();
 
-        if(searchString.length()>0){
-            searchString = "%"+searchString+"%";
+        // search uses the full text index over titles, descriptions, authors and categories
+        if(searchString.trim().length()>0){
+            mBookListAdapter.setPaging(false);
             return new CursorLoader(
                     getActivity(),
-                    AlexandriaContract.BookEntry.CONTENT_URI,
+                    AlexandriaContract.BookEntry.buildSearchUri(searchString),
+                    null,
+                    null,
                     null,
-                    selection,
-                    new String[]{searchString,searchString},
                     null
             );
         }
 
-        return new CursorLoader(
-                getActivity(),
-                AlexandriaContract.BookEntry.CONTENT_URI,
-                null,
-                null,
-                null,
-                null
-        );
+        mBookListAdapter.setPaging(true);
+        return new BookRangeLoader(getActivity(), mLoadedThrough);
     }
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
         mBookListAdapter.swapCursor(data);
+        mLoadedThrough.set(mBookListAdapter.getLastId());
         if (mListViewPosition != ListView.INVALID_POSITION) {
             mListViewBooks.smoothScrollToPosition(mListViewPosition);
         }
@@ -171,28 +206,18 @@ public class ListOfBooks extends Fragment implements LoaderManager.LoaderCallbac
         mBookListAdapter.swapCursor(null);
     }
 
-    @Override
-    public void onPause () {
-        // added broadcast receiver handling to AddBook since this is the best place to deal
-        // with fetch failures
-        LocalBroadcastManager.getInstance(getActivity()).unregisterReceiver(mBroadcastReceiver);
-        super.onPause();
-    }
-
     @Override
     public void onResume () {
         // fixed but where "onAttach" would not always set up the title after back pressed...
         super.onResume();
 
-        Log.d(LOG_TAG, "onResume, registering broadcast receiver and updating title...");
+        Log.d(LOG_TAG, "onResume, updating title...");
 
         // make sure the pesky keypad is not showing
         Utility.hideSoftInput(getActivity());
 
-        // used to receive notice when book deleted from library
-        mBroadcastReceiver  = new MessageReceiver ();
-        IntentFilter filter = new IntentFilter(BookService.MESSAGE_DELETE_EVENT);
-        LocalBroadcastManager.getInstance(getActivity()).registerReceiver(mBroadcastReceiver, filter);
+        // no broadcast needed to refresh the list, the loader is notified by BookProvider once
+        // per batch of changes
 
         getActivity().setTitle(R.string.menu_books);
 
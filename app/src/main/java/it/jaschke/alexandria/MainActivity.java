@@ -1,11 +1,15 @@
 package it.jaschke.alexandria;
 
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.res.Configuration;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentManager;
 import android.support.v4.app.FragmentTransaction;
+import android.support.v4.content.LocalBroadcastManager;
 import android.support.v4.widget.DrawerLayout;
 import android.support.v7.app.ActionBar;
 import android.support.v7.app.ActionBarActivity;
@@ -13,8 +17,10 @@ import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.Toast;
 
 import it.jaschke.alexandria.api.Callback;
+import it.jaschke.alexandria.services.BookService;
 
 /**
  * Changes made as part of the Alexandria project:
@@ -79,6 +85,11 @@ public class MainActivity
     private static final String TAG_FRAGMENT_LIST   = "fragment_list";
     private static final String TAG_FRAGMENT_DETAIL = "fragment_detail";
 
+    // request code used when the user picks a file of ISBNs to import
+    private static final int REQUEST_IMPORT = 1;
+
+    private BroadcastReceiver mImportReceiver;
+
     // used to see if configuration changed to/from portrait and landscape mode and restore book
     // detail
     private static boolean mTwoPanels  = false;
@@ -202,9 +213,70 @@ public class MainActivity
             return true;
         }
 
+        if (id == R.id.action_import) {
+            Intent pickIntent = new Intent(Intent.ACTION_GET_CONTENT);
+            pickIntent.setType("text/*");
+            pickIntent.addCategory(Intent.CATEGORY_OPENABLE);
+            startActivityForResult(
+                    Intent.createChooser(pickIntent, getString(R.string.menu_import)), REQUEST_IMPORT);
+            return true;
+        }
+
         return super.onOptionsItemSelected(item);
     }
 
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if ((requestCode == REQUEST_IMPORT) && (resultCode == RESULT_OK) &&
+                (data != null) && (data.getData() != null)) {
+            // the file is streamed by BookService, progress comes back as broadcasts
+            Intent importIntent = new Intent(this, BookService.class);
+            importIntent.setAction(BookService.IMPORT_BOOKS);
+            importIntent.setData(data.getData());
+            importIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            startService(importIntent);
+            return;
+        }
+        super.onActivityResult(requestCode, resultCode, data);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        // used to show import progress below the title
+        mImportReceiver = new ImportReceiver();
+        LocalBroadcastManager.getInstance(this).registerReceiver(mImportReceiver,
+                new IntentFilter(BookService.MESSAGE_IMPORT_EVENT));
+    }
+
+    @Override
+    protected void onPause() {
+        LocalBroadcastManager.getInstance(this).unregisterReceiver(mImportReceiver);
+        super.onPause();
+    }
+
+    /**
+     * ImportReceiver -- shows import progress as the action bar subtitle and a summary when the
+     *     import is done
+     */
+    private class ImportReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            int added = intent.getIntExtra(BookService.IMPORT_ADDED, 0);
+            int present = intent.getIntExtra(BookService.IMPORT_PRESENT, 0);
+            int failed = intent.getIntExtra(BookService.IMPORT_FAILED, 0);
+            if (intent.getBooleanExtra(BookService.IMPORT_DONE, false)) {
+                getSupportActionBar().setSubtitle(null);
+                Toast.makeText(MainActivity.this,
+                        getString(R.string.import_done, added, present, failed),
+                        Toast.LENGTH_LONG).show();
+            } else {
+                getSupportActionBar().setSubtitle(getString(R.string.import_progress,
+                        added, present, failed, intent.getIntExtra(BookService.IMPORT_PER_MINUTE, 0)));
+            }
+        }
+    }
+
     @Override
     protected void onDestroy() {
         // LocalBroadcastManager.getInstance(this).unregisterReceiver(messageReciever);
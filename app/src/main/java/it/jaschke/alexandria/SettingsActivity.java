@@ -1,7 +1,13 @@
 package it.jaschke.alexandria;
 
+import android.content.Intent;
 import android.os.Bundle;
+import android.preference.Preference;
 import android.preference.PreferenceActivity;
+import android.preference.PreferenceScreen;
+import android.widget.Toast;
+
+import it.jaschke.alexandria.services.BookService;
 
 /**
  * Created by saj on 27/01/15.
@@ -13,4 +19,20 @@ public class SettingsActivity extends PreferenceActivity {
         super.onCreate(savedInstanceState);
         addPreferencesFromResource(R.xml.preferences);
     }
+
+    /**
+     * onPreferenceTreeClick -- the clear lookup failures preference is an action, BookService
+     *     forgets the ISBNs it remembered as not found
+     */
+    @Override
+    public boolean onPreferenceTreeClick(PreferenceScreen preferenceScreen, Preference preference) {
+        if ("pref_clearLookupFailures".equals(preference.getKey())) {
+            Intent clearIntent = new Intent(this, BookService.class);
+            clearIntent.setAction(BookService.CLEAR_LOOKUP_FAILURES);
+            startService(clearIntent);
+            Toast.makeText(this, R.string.lookup_failures_cleared, Toast.LENGTH_SHORT).show();
+            return true;
+        }
+        return super.onPreferenceTreeClick(preferenceScreen, preference);
+    }
 }
@@ -33,10 +33,58 @@ public class Utility {
             sum += ((((int) ISBN13.charAt(i)) - 48) * d);
             //if (LOG_D) Log.d(TAG, "adding " + ISBN13.charAt(i) + "x" + d + "=" + ((((int) ISBN13.charAt(i)) - 48) * d));
         }
-        sum = 10 - (sum % 10);
+        // a sum that is already a multiple of 10 has check digit 0, not 10
+        sum = (10 - (sum % 10)) % 10;
         return ISBN13 + String.valueOf(sum);
     }
 
+    /**
+     * normalizeISBN -- turn an ISBN as typed, scanned or found in a file (with or without
+     *     hyphens, spaces or quotes, ISBN-10 or ISBN-13) into the 13 digit EAN used as the book
+     *     key. ISBN-10 (mod 11) and ISBN-13 (mod 10) check digits are verified so stray numbers
+     *     in a file, phone numbers or order ids, are not taken for books.
+     * @param isbn
+     * @return 13 digit EAN or null when the text is not an ISBN
+     */
+    public static String normalizeISBN(String isbn) {
+        if (isbn == null) {
+            return null;
+        }
+        StringBuilder digits = new StringBuilder(13);
+        for (int i = 0; i < isbn.length(); i++) {
+            char c = isbn.charAt(i);
+            if ((c >= '0') && (c <= '9')) {
+                digits.append(c);
+            } else if ((c == 'X') || (c == 'x')) {
+                digits.append('X');
+            }
+            if (digits.length() > 13) {
+                return null;
+            }
+        }
+
+        if ((digits.length() == 10) && (digits.indexOf("X") < 0 || digits.indexOf("X") == 9)) {
+            int sum = 0;
+            for (int i = 0; i < 10; i++) {
+                int d = (digits.charAt(i) == 'X') ? 10 : (digits.charAt(i) - '0');
+                sum += d * (10 - i);
+            }
+            return (sum % 11 == 0) ? convertISBN10toISBN13(digits.toString()) : null;
+        }
+        if ((digits.length() != 13) || (digits.indexOf("X") >= 0)) {
+            return null;
+        }
+        if ((digits.charAt(0) != '9') || (digits.charAt(1) != '7') ||
+                ((digits.charAt(2) != '8') && (digits.charAt(2) != '9'))) {
+            return null;
+        }
+        int sum = 0;
+        for (int i = 0; i < 13; i++) {
+            sum += (digits.charAt(i) - '0') * ((i % 2 == 0) ? 1 : 3);
+        }
+        return (sum % 10 == 0) ? digits.toString() : null;
+    }
+
 
     /**
      * hideSoftInput -- code used to hide input associated with any active view and also to make
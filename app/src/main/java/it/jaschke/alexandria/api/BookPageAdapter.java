@@ -0,0 +1,189 @@
+package it.jaschke.alexandria.api;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.view.View;
+import android.view.ViewGroup;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import it.jaschke.alexandria.data.AlexandriaContract;
+
+/**
+ * BookPageAdapter -- book list adapter that holds the list as a chain of keyset pages. The first
+ *     page comes from the fragment's loader, each following page is asked for through the
+ *     PageLoader as the user scrolls near the end of what is loaded, so only the rows the user
+ *     has actually reached are ever held in cursor windows.
+ */
+public class BookPageAdapter extends BookListAdapter {
+
+    // start loading the next page when this many rows from the end
+    private static final int PREFETCH_ROWS = 10;
+
+    /**
+     * PageLoader -- loads the page after the given EAN off the main thread and hands it back
+     *     through appendPage with the same generation
+     */
+    public interface PageLoader {
+        public void loadPageAfter(long lastId, int generation);
+    }
+
+    private final int mPageSize;
+    private final PageLoader mPageLoader;
+
+    // pages after the first one, the first page is owned by the loader and is the adapter cursor
+    private final List<Cursor> mPages = new ArrayList<>();
+    private int mGeneration = 0;
+    private boolean mPaging = true;
+    private boolean mLoading = false;
+    private boolean mLastPage = true;
+
+    public BookPageAdapter(Context context, int pageSize, PageLoader pageLoader) {
+        super(context, null, 0);
+        mPageSize = pageSize;
+        mPageLoader = pageLoader;
+    }
+
+    public int getPageSize() {
+        return mPageSize;
+    }
+
+    /**
+     * setPaging -- turn paging off for cursors that already hold the whole result (search)
+     * @param paging
+     */
+    public void setPaging(boolean paging) {
+        mPaging = paging;
+    }
+
+    /**
+     * getLastId -- EAN of the last row loaded, the loader reloads up to it so a change to the
+     *     books keeps every page the user has scrolled through
+     * @return EAN or -1 when not paging or no more than the first page is loaded
+     */
+    public long getLastId() {
+        if (!mPaging || (getCount() <= mPageSize)) {
+            return -1;
+        }
+        Cursor last = cursorAt(getCount() - 1);
+        return (last == null) ? -1 :
+                last.getLong(last.getColumnIndex(AlexandriaContract.BookEntry._ID));
+    }
+
+    /**
+     * swapCursor -- a new first page replaces every page loaded so far, the loader reloads the
+     *     range covering them (see getLastId) so the list keeps its length
+     * @param newCursor
+     * @return the previous first page
+     */
+    @Override
+    public Cursor swapCursor(Cursor newCursor) {
+        closePages();
+        mGeneration++;
+        mLoading = false;
+        mLastPage = !mPaging || (newCursor == null) || (newCursor.getCount() < mPageSize);
+        return super.swapCursor(newCursor);
+    }
+
+    /**
+     * appendPage -- add the next page loaded by the PageLoader, pages from an older generation
+     *     (the list was reloaded meanwhile) are dropped
+     * @param page
+     * @param generation
+     */
+    public void appendPage(Cursor page, int generation) {
+        if (generation != mGeneration) {
+            if (page != null) {
+                page.close();
+            }
+            return;
+        }
+        mLoading = false;
+        if ((page == null) || (page.getCount() == 0)) {
+            mLastPage = true;
+            if (page != null) {
+                page.close();
+            }
+            return;
+        }
+        mLastPage = (page.getCount() < mPageSize);
+        mPages.add(page);
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public int getCount() {
+        int count = super.getCount();
+        for (Cursor page : mPages) {
+            count += page.getCount();
+        }
+        return count;
+    }
+
+    @Override
+    public Object getItem(int position) {
+        return cursorAt(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        Cursor cursor = cursorAt(position);
+        return (cursor == null) ? 0 :
+                cursor.getLong(cursor.getColumnIndex(AlexandriaContract.BookEntry._ID));
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        if (!mLoading && !mLastPage && (position >= getCount() - PREFETCH_ROWS)) {
+            Cursor last = cursorAt(getCount() - 1);
+            if (last != null) {
+                mLoading = true;
+                mPageLoader.loadPageAfter(
+                        last.getLong(last.getColumnIndex(AlexandriaContract.BookEntry._ID)), mGeneration);
+            }
+        }
+
+        if (position < super.getCount()) {
+            return super.getView(position, convertView, parent);
+        }
+
+        Cursor cursor = cursorAt(position);
+        if (cursor == null) {
+            throw new IllegalStateException("couldn't move cursor to position " + position);
+        }
+        View view = (convertView != null) ? convertView : newView(mContext, cursor, parent);
+        bindView(view, mContext, cursor);
+        return view;
+    }
+
+    /**
+     * cursorAt -- find the page holding the given list position and move it to that row
+     * @param position
+     * @return cursor positioned on the row or null when the position is out of range
+     */
+    private Cursor cursorAt(int position) {
+        Cursor first = getCursor();
+        if (first == null) {
+            return null;
+        }
+        if (position < first.getCount()) {
+            return first.moveToPosition(position) ? first : null;
+        }
+        position -= first.getCount();
+        for (Cursor page : mPages) {
+            if (position < page.getCount()) {
+                return page.moveToPosition(position) ? page : null;
+            }
+            position -= page.getCount();
+        }
+        return null;
+    }
+
+    private void closePages() {
+        for (Cursor page : mPages) {
+            page.close();
+        }
+        mPages.clear();
+    }
+}
@@ -4,8 +4,10 @@ package it.jaschke.alexandria.data;
  * Created by saj on 22/12/14.
  */
 
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.net.Uri;
+import android.os.Bundle;
 import android.provider.BaseColumns;
 import android.util.Log;
 
@@ -20,12 +22,283 @@ public class AlexandriaContract{
     public static final String PATH_CATEGORIES = "categories";
 
     public static final String PATH_FULLBOOK = "fullbook";
+    public static final String PATH_BY_AUTHOR = "author";
+    public static final String PATH_BY_CATEGORY = "category";
+
+    public static final String PATH_SEARCH = "search";
+
+    public static final String PATH_FACETS = "facets";
+
+    // keyset paging query parameters for BookEntry.CONTENT_URI
+    public static final String QUERY_PAGE_SIZE = "limit";
+    public static final String QUERY_PAGE_AFTER = "after";
+    public static final String QUERY_PAGE_THROUGH = "through";
+
+    // BookProvider.call() methods, these answer from compiled statements without a cursor
+    public static final String METHOD_EXISTS = "exists";
+    public static final String METHOD_EXISTS_MANY = "existsMany";
+    public static final String METHOD_COUNT = "count";
+    public static final String METHOD_COMPACT = "compact";
+    public static final String METHOD_CHECKPOINT = "checkpoint";
+    public static final String METHOD_CACHE_STATS = "cacheStats";
+    public static final String METHOD_METRICS = "metrics";
+    public static final String METHOD_EXPORT = "export";
+    public static final String METHOD_RESTORE = "restore";
+    public static final String METHOD_LOOKUP_FAILURES = "lookupFailures";
+    public static final String METHOD_RECORD_FAILURE = "recordFailure";
+    public static final String METHOD_CLEAR_FAILURES = "clearFailures";
+    public static final String METHOD_QUEUE_FETCHES = "queueFetches";
+    public static final String METHOD_DUE_FETCHES = "dueFetches";
+    public static final String METHOD_REMOVE_FETCHES = "removeFetches";
+    public static final String METHOD_NEXT_FETCH = "nextFetch";
+    public static final String METHOD_FLUSH_NOTIFICATIONS = "flushNotifications";
+
+    // BookProvider.call() bundle keys
+    public static final String KEY_EXISTS = "exists";
+    public static final String KEY_EANS = "eans";
+    public static final String KEY_PRESENT = "present";
+    public static final String KEY_COUNT = "count";
+    public static final String KEY_RECLAIMED = "reclaimed";
+    public static final String KEY_FRAMES = "frames";
+    public static final String KEY_CACHE_HITS = "cacheHits";
+    public static final String KEY_CACHE_MISSES = "cacheMisses";
+    public static final String KEY_CACHE_EVICTIONS = "cacheEvictions";
+    public static final String KEY_CACHE_BYTES = "cacheBytes";
+    public static final String KEY_FAILURES = "failures";
+    public static final String KEY_EXPIRES = "expires";
+    public static final String KEY_NEXT_ATTEMPT = "nextAttempt";
+    public static final String KEY_AFTER = "after";
+    public static final String KEY_ALL = "all";
+    public static final String KEY_LIMIT = "limit";
+    public static final String KEY_FLUSHED = "flushed";
+
+    // METHOD_METRICS returns one bundle per "operation:uri type" (e.g. "query:BOOK_FULL") holding
+    //     the KEY_METRIC_* values, extras may set KEY_METRICS_RESET and KEY_METRICS_EXPLAIN.
+    //     Queries are only sized when sampled, KEY_METRIC_ROWS, KEY_METRIC_WINDOW_BYTES and
+    //     KEY_METRIC_FILL_MS of a query are totals over its KEY_METRIC_SAMPLED queries. Every
+    //     query is sampled while KEY_METRICS_EXPLAIN is on.
+    public static final String KEY_METRICS_RESET = "reset";
+    public static final String KEY_METRICS_EXPLAIN = "explain";
+    public static final String KEY_METRIC_COUNT = "count";
+    public static final String KEY_METRIC_TOTAL_MS = "totalMs";
+    public static final String KEY_METRIC_MAX_MS = "maxMs";
+    public static final String KEY_METRIC_ROWS = "rows";
+    public static final String KEY_METRIC_SAMPLED = "sampled";
+    public static final String KEY_METRIC_WINDOW_BYTES = "windowBytes";
+    public static final String KEY_METRIC_FILL_MS = "fillMs";
+    public static final String KEY_METRIC_HISTOGRAM = "histogram";
+    public static final String KEY_METRIC_BOUNDS_MS = "boundsMs";
+    public static final String KEY_SLOW_QUERIES = "slowQueries";
+
+    /**
+     * bookExists -- ask the provider whether a book is in the library
+     * @param resolver
+     * @param ean
+     * @return true when the book is present
+     */
+    public static boolean bookExists(ContentResolver resolver, long ean) {
+        Bundle result = resolver.call(BASE_CONTENT_URI, METHOD_EXISTS, String.valueOf(ean), null);
+        return (result != null) && result.getBoolean(KEY_EXISTS);
+    }
+
+    /**
+     * booksExist -- ask the provider which of the given books are in the library
+     * @param resolver
+     * @param eans
+     * @return for each EAN, true when the book is present
+     */
+    public static boolean[] booksExist(ContentResolver resolver, long[] eans) {
+        Bundle extras = new Bundle();
+        extras.putLongArray(KEY_EANS, eans);
+        Bundle result = resolver.call(BASE_CONTENT_URI, METHOD_EXISTS_MANY, null, extras);
+        boolean[] present = (result == null) ? null : result.getBooleanArray(KEY_PRESENT);
+        return (present == null) ? new boolean[eans.length] : present;
+    }
+
+    /**
+     * bookCount -- ask the provider for the number of books in the library
+     * @param resolver
+     * @return book count
+     */
+    public static long bookCount(ContentResolver resolver) {
+        Bundle result = resolver.call(BASE_CONTENT_URI, METHOD_COUNT, null, null);
+        return (result == null) ? 0 : result.getLong(KEY_COUNT);
+    }
+
+    /**
+     * compactDatabase -- ask the provider to give free database pages back to the file system,
+     *     may take a while so call it from a background thread
+     * @param resolver
+     * @return number of pages reclaimed
+     */
+    public static int compactDatabase(ContentResolver resolver) {
+        return compactDatabase(resolver, 1);
+    }
+
+    /**
+     * compactDatabase -- same, but only once at least minFreePages pages are free so a few
+     *     deletes do not each pay for a compaction
+     * @param resolver
+     * @param minFreePages
+     * @return number of pages reclaimed
+     */
+    public static int compactDatabase(ContentResolver resolver, int minFreePages) {
+        Bundle result = resolver.call(BASE_CONTENT_URI, METHOD_COMPACT, String.valueOf(minFreePages), null);
+        return (result == null) ? 0 : result.getInt(KEY_RECLAIMED);
+    }
+
+    /**
+     * checkpoint -- ask the provider to copy the write ahead log back into the database, used
+     *     after large imports
+     * @param resolver
+     * @return number of log frames checkpointed, -1 when not in WAL mode
+     */
+    public static int checkpoint(ContentResolver resolver) {
+        Bundle result = resolver.call(BASE_CONTENT_URI, METHOD_CHECKPOINT, null, null);
+        return (result == null) ? -1 : result.getInt(KEY_FRAMES);
+    }
+
+    /**
+     * exportLibrary -- write every book, author and category to a backup file, streams so it
+     *     runs in constant memory but call it from a background thread
+     * @param resolver
+     * @param destination file or document uri that can be opened for writing
+     * @return number of books written, -1 when the backup failed
+     */
+    public static int exportLibrary(ContentResolver resolver, Uri destination) {
+        Bundle result = resolver.call(BASE_CONTENT_URI, METHOD_EXPORT, destination.toString(), null);
+        return (result == null) ? -1 : result.getInt(KEY_COUNT);
+    }
+
+    /**
+     * restoreLibrary -- replace the library with the contents of a backup file written by
+     *     exportLibrary, nothing changes when the file cannot be read
+     * @param resolver
+     * @param source
+     * @return number of books restored, -1 when the restore failed
+     */
+    public static int restoreLibrary(ContentResolver resolver, Uri source) {
+        Bundle result = resolver.call(BASE_CONTENT_URI, METHOD_RESTORE, source.toString(), null);
+        return (result == null) ? -1 : result.getInt(KEY_COUNT);
+    }
+
+    /**
+     * lookupFailures -- the failures remembered for EANs whose last lookup found nothing, so they
+     *     are not looked up again until the failure expires
+     * @param resolver
+     * @param eans
+     * @return for each EAN the remembered failure or null
+     */
+    public static String[] lookupFailures(ContentResolver resolver, long[] eans) {
+        Bundle extras = new Bundle();
+        extras.putLongArray(KEY_EANS, eans);
+        Bundle result = resolver.call(BASE_CONTENT_URI, METHOD_LOOKUP_FAILURES, null, extras);
+        String[] failures = (result == null) ? null : result.getStringArray(KEY_FAILURES);
+        return (failures == null) ? new String[eans.length] : failures;
+    }
+
+    public static String lookupFailure(ContentResolver resolver, long ean) {
+        return lookupFailures(resolver, new long[]{ean})[0];
+    }
+
+    /**
+     * recordFailure -- remember that looking up the EANs failed for good
+     * @param resolver
+     * @param eans
+     * @param failure BookService.FETCH_* reason
+     * @param ttlMillis how long to remember it
+     */
+    public static void recordFailure(ContentResolver resolver, long[] eans, String failure, long ttlMillis) {
+        Bundle extras = new Bundle();
+        extras.putLongArray(KEY_EANS, eans);
+        extras.putLong(KEY_EXPIRES, System.currentTimeMillis() + ttlMillis);
+        resolver.call(BASE_CONTENT_URI, METHOD_RECORD_FAILURE, failure, extras);
+    }
+
+    /**
+     * queueFetches -- keep EANs whose lookup failed on the network or server to be retried, an
+     *     EAN already queued has its next attempt pushed further back
+     * @param resolver
+     * @param eans
+     * @param failure BookService.FETCH_* reason
+     * @return when the earliest queued EAN is due (ms since the epoch), 0 when none are queued
+     */
+    public static long queueFetches(ContentResolver resolver, long[] eans, String failure) {
+        Bundle extras = new Bundle();
+        extras.putLongArray(KEY_EANS, eans);
+        Bundle result = resolver.call(BASE_CONTENT_URI, METHOD_QUEUE_FETCHES, failure, extras);
+        return (result == null) ? 0 : result.getLong(KEY_NEXT_ATTEMPT);
+    }
+
+    /**
+     * dueFetches -- a page of queued EANs to retry, paged by EAN
+     * @param resolver
+     * @param afterEan last EAN of the previous page, 0 for the first
+     * @param all true to take every queued EAN, not only those due
+     * @param limit page size
+     * @return EANs, empty after the last page
+     */
+    public static long[] dueFetches(ContentResolver resolver, long afterEan, boolean all, int limit) {
+        Bundle extras = new Bundle();
+        extras.putLong(KEY_AFTER, afterEan);
+        extras.putBoolean(KEY_ALL, all);
+        extras.putInt(KEY_LIMIT, limit);
+        Bundle result = resolver.call(BASE_CONTENT_URI, METHOD_DUE_FETCHES, null, extras);
+        long[] eans = (result == null) ? null : result.getLongArray(KEY_EANS);
+        return (eans == null) ? new long[0] : eans;
+    }
+
+    /**
+     * removeFetches -- take EANs off the retry queue
+     * @param resolver
+     * @param eans
+     * @return when the earliest queued EAN is due (ms since the epoch), 0 when none are queued
+     */
+    public static long removeFetches(ContentResolver resolver, long[] eans) {
+        Bundle extras = new Bundle();
+        extras.putLongArray(KEY_EANS, eans);
+        Bundle result = resolver.call(BASE_CONTENT_URI, METHOD_REMOVE_FETCHES, null, extras);
+        return (result == null) ? 0 : result.getLong(KEY_NEXT_ATTEMPT);
+    }
+
+    /**
+     * nextFetchAttempt -- when the earliest EAN of the retry queue is due
+     * @param resolver
+     * @return ms since the epoch, 0 when none are queued
+     */
+    public static long nextFetchAttempt(ContentResolver resolver) {
+        Bundle result = resolver.call(BASE_CONTENT_URI, METHOD_NEXT_FETCH, null, null);
+        return (result == null) ? 0 : result.getLong(KEY_NEXT_ATTEMPT);
+    }
+
+    /**
+     * flushNotifications -- send the change notifications the provider is still gathering
+     *     instead of at the end of their window, so tests need not sleep through it
+     * @param resolver
+     * @return true once they have been sent, false when the provider timed out waiting
+     */
+    public static boolean flushNotifications(ContentResolver resolver) {
+        Bundle result = resolver.call(BASE_CONTENT_URI, METHOD_FLUSH_NOTIFICATIONS, null, null);
+        return (result != null) && result.getBoolean(KEY_FLUSHED);
+    }
+
+    /**
+     * clearLookupFailures -- forget every remembered failure so each EAN is looked up again
+     * @param resolver
+     * @return number of failures forgotten
+     */
+    public static int clearLookupFailures(ContentResolver resolver) {
+        Bundle result = resolver.call(BASE_CONTENT_URI, METHOD_CLEAR_FAILURES, null, null);
+        return (result == null) ? 0 : result.getInt(KEY_COUNT);
+    }
 
     public static final class BookEntry implements BaseColumns {
         public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon().appendPath(PATH_BOOKS).build();
 
         public static final Uri FULL_CONTENT_URI = BASE_CONTENT_URI.buildUpon().appendPath(PATH_FULLBOOK).build();
 
+        public static final Uri SEARCH_URI = BASE_CONTENT_URI.buildUpon().appendPath(PATH_SEARCH).build();
+
         public static final String CONTENT_TYPE =
                 "vnd.android.cursor.dir/" + CONTENT_AUTHORITY + "/" + PATH_BOOKS;
         public static final String CONTENT_ITEM_TYPE =
@@ -41,16 +314,84 @@ public class AlexandriaContract{
 
         public static final String DESC = "description";
 
+        // light columns shown by the book list, which passes them explicitly. The description is
+        //     stored apart (see DescriptionEntry) and only read when DESC or every column (null
+        //     projection) is asked for.
+        public static final String[] LIST_PROJECTION = {_ID, TITLE, SUBTITLE, IMAGE_URL};
+
         public static Uri buildBookUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
 
+        /**
+         * buildBookPageUri -- uri for one page of books in EAN order, the next page starts after
+         *     the last EAN of the previous page
+         * @param pageSize
+         * @param afterId last EAN of the previous page or -1 for the first page
+         * @return page uri
+         */
+        public static Uri buildBookPageUri(int pageSize, long afterId) {
+            Uri.Builder builder = CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PAGE_SIZE, String.valueOf(pageSize));
+            if (afterId >= 0) {
+                builder.appendQueryParameter(QUERY_PAGE_AFTER, String.valueOf(afterId));
+            }
+            return builder.build();
+        }
+
+        /**
+         * buildBookRangeUri -- uri for every book up to and including the given EAN, or the
+         *     first page when that is more. Used to reload the pages a list has already loaded.
+         * @param pageSize
+         * @param throughId last EAN loaded
+         * @return range uri
+         */
+        public static Uri buildBookRangeUri(int pageSize, long throughId) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PAGE_SIZE, String.valueOf(pageSize))
+                    .appendQueryParameter(QUERY_PAGE_THROUGH, String.valueOf(throughId))
+                    .build();
+        }
+
         public static Uri buildFullBookUri(long id) {
             return ContentUris.withAppendedId(FULL_CONTENT_URI, id);
         }
 
+        /**
+         * buildAuthorBooksUri -- uri for the full list rows of every book by the given author
+         * @param author exact author name
+         * @return books by author uri
+         */
+        public static Uri buildAuthorBooksUri(String author) {
+            return FULL_CONTENT_URI.buildUpon().appendPath(PATH_BY_AUTHOR).appendPath(author).build();
+        }
+
+        /**
+         * buildCategoryBooksUri -- uri for the full list rows of every book in the given category
+         * @param category exact category name
+         * @return books in category uri
+         */
+        public static Uri buildCategoryBooksUri(String category) {
+            return FULL_CONTENT_URI.buildUpon().appendPath(PATH_BY_CATEGORY).appendPath(category).build();
+        }
+
+        /**
+         * buildSearchUri -- uri for a ranked full text search of title, subtitle, description,
+         *     authors and categories. Each word in the query is matched as a prefix.
+         * @param query
+         * @return search uri
+         */
+        public static Uri buildSearchUri(String query) {
+            return SEARCH_URI.buildUpon().appendPath(query).build();
+        }
+
     }
 
+    /**
+     * AuthorEntry -- the authors of each book, _id is the book EAN. The table name is a view
+     *     over BookAuthorEntry and AuthorNameEntry, so each name is stored once however many
+     *     books share it. LINK_ID is the row of the link behind each view row.
+     */
     public static final class AuthorEntry implements BaseColumns {
         public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon().appendPath(PATH_AUTHORS).build();
 
@@ -63,11 +404,18 @@ public class AlexandriaContract{
 
         public static final String AUTHOR = "author";
 
+        public static final String LINK_ID = "link_id";
+
         public static Uri buildAuthorUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
     }
 
+    /**
+     * CategoryEntry -- the categories of each book, _id is the book EAN. The table name is a
+     *     view over BookCategoryEntry and CategoryNameEntry, LINK_ID is the row of the link
+     *     behind each view row.
+     */
     public static final class CategoryEntry implements BaseColumns {
         public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon().appendPath(PATH_CATEGORIES).build();
 
@@ -80,9 +428,147 @@ public class AlexandriaContract{
 
         public static final String CATEGORY = "category";
 
+        public static final String LINK_ID = "link_id";
+
         public static Uri buildCategoryUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
 
     }
-}
\ No newline at end of file
+
+    /**
+     * FacetEntry -- authors and categories with the number of books for each, e.g. to show
+     *     "Science (1,204)". The counts are kept up to date as books are written, so reading
+     *     them costs one row per name whatever the size of the library. Names with no books are
+     *     left out, the default order is by name.
+     */
+    public static final class FacetEntry implements BaseColumns {
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon().appendPath(PATH_FACETS).build();
+
+        public static final Uri AUTHOR_URI = CONTENT_URI.buildUpon().appendPath(PATH_BY_AUTHOR).build();
+
+        public static final Uri CATEGORY_URI = CONTENT_URI.buildUpon().appendPath(PATH_BY_CATEGORY).build();
+
+        public static final String CONTENT_TYPE =
+                "vnd.android.cursor.dir/" + CONTENT_AUTHORITY + "/" + PATH_FACETS;
+
+        public static final String NAME = "name";
+
+        public static final String BOOK_COUNT = "book_count";
+    }
+
+    /**
+     * DescriptionEntry -- book descriptions, kept out of the books table so list queries and
+     *     table scans never touch the large text. The _id is the book EAN, the column is
+     *     BookEntry.DESC.
+     */
+    public static final class DescriptionEntry implements BaseColumns {
+
+        public static final String TABLE_NAME = "book_descriptions";
+
+    }
+
+    /**
+     * SearchEntry -- full text index over each book, kept in sync by BookProvider. The docid of
+     *     each row is the book EAN.
+     */
+    public static final class SearchEntry {
+
+        public static final String TABLE_NAME = "books_fts";
+
+        public static final String DOCID = "docid";
+
+    }
+
+    /**
+     * SummaryEntry -- one row per book with its authors and categories already joined into comma
+     *     separated strings, kept in sync by BookProvider so list reads do no joins
+     */
+    public static final class SummaryEntry implements BaseColumns {
+
+        public static final String TABLE_NAME = "book_summary";
+
+    }
+
+    /**
+     * AuthorNameEntry -- every distinct author name, stored once
+     */
+    public static final class AuthorNameEntry implements BaseColumns {
+
+        public static final String TABLE_NAME = "author_names";
+
+        public static final String NAME = "name";
+
+        public static final String BOOK_COUNT = "book_count";
+
+    }
+
+    /**
+     * BookAuthorEntry -- links a book to each of its author names
+     */
+    public static final class BookAuthorEntry {
+
+        public static final String TABLE_NAME = "book_authors";
+
+        public static final String BOOK_ID = "book_id";
+
+        public static final String AUTHOR_ID = "author_id";
+
+    }
+
+    /**
+     * CategoryNameEntry -- every distinct category name, stored once
+     */
+    public static final class CategoryNameEntry implements BaseColumns {
+
+        public static final String TABLE_NAME = "category_names";
+
+        public static final String NAME = "name";
+
+        public static final String BOOK_COUNT = "book_count";
+
+    }
+
+    /**
+     * BookCategoryEntry -- links a book to each of its category names
+     */
+    public static final class BookCategoryEntry {
+
+        public static final String TABLE_NAME = "book_categories";
+
+        public static final String BOOK_ID = "book_id";
+
+        public static final String CATEGORY_ID = "category_id";
+
+    }
+
+    /**
+     * LookupFailureEntry -- EANs the metadata lookup could not find, with the failure and the
+     *     time (ms since the epoch) after which the EAN is looked up again
+     */
+    public static final class LookupFailureEntry implements BaseColumns {
+
+        public static final String TABLE_NAME = "lookup_failures";
+
+        public static final String FAILURE = "failure";
+
+        public static final String EXPIRES = "expires";
+
+    }
+
+    /**
+     * PendingFetchEntry -- EANs waiting for their lookup to be retried, with the failed attempts
+     *     so far and when (ms since the epoch) the next one is due
+     */
+    public static final class PendingFetchEntry implements BaseColumns {
+
+        public static final String TABLE_NAME = "pending_fetches";
+
+        public static final String ATTEMPTS = "attempts";
+
+        public static final String NEXT_ATTEMPT = "next_attempt";
+
+        public static final String FAILURE = "failure";
+
+    }
+}
@@ -0,0 +1,159 @@
+package it.jaschke.alexandria.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.Collection;
+
+/**
+ * BookIndexer -- maintains the tables derived from books, authors and categories: the full text
+ *     search index and the pre-joined book summary. BookProvider collects the EANs touched by a
+ *     write and calls refreshBooks once before the write commits, so the join cost is paid once
+ *     per write instead of on every read.
+ */
+final class BookIndexer {
+
+    private static final String BOOKS = AlexandriaContract.BookEntry.TABLE_NAME;
+    private static final String DESCRIPTIONS = AlexandriaContract.DescriptionEntry.TABLE_NAME;
+    private static final String SEARCH = AlexandriaContract.SearchEntry.TABLE_NAME;
+    private static final String SUMMARY = AlexandriaContract.SummaryEntry.TABLE_NAME;
+
+    /**
+     * authorNames -- subquery joining the interned author names of the current books row, each
+     *     book links to a name once so no DISTINCT is needed
+     * @param separator SQL string literal placed between names
+     * @return subquery
+     */
+    private static String authorNames(String separator) {
+        return linkedNames(AlexandriaContract.BookAuthorEntry.TABLE_NAME,
+                AlexandriaContract.BookAuthorEntry.BOOK_ID,
+                AlexandriaContract.BookAuthorEntry.AUTHOR_ID,
+                AlexandriaContract.AuthorNameEntry.TABLE_NAME, separator);
+    }
+
+    /**
+     * categoryNames -- subquery joining the interned category names of the current books row
+     * @param separator SQL string literal placed between names
+     * @return subquery
+     */
+    private static String categoryNames(String separator) {
+        return linkedNames(AlexandriaContract.BookCategoryEntry.TABLE_NAME,
+                AlexandriaContract.BookCategoryEntry.BOOK_ID,
+                AlexandriaContract.BookCategoryEntry.CATEGORY_ID,
+                AlexandriaContract.CategoryNameEntry.TABLE_NAME, separator);
+    }
+
+    private static String linkedNames(String linkTable, String bookColumn, String nameColumn,
+                                      String nameTable, String separator) {
+        return "(SELECT group_concat(" + nameTable + ".name, " + separator + ")" +
+                " FROM " + linkTable + " JOIN " + nameTable +
+                " ON " + nameTable + "._id = " + linkTable + "." + nameColumn +
+                " WHERE " + linkTable + "." + bookColumn + " = " +
+                BOOKS + "." + AlexandriaContract.BookEntry._ID + ")";
+    }
+
+    private static final String SQL_SEARCH_COLUMNS = " (" +
+            AlexandriaContract.SearchEntry.DOCID + ", " +
+            AlexandriaContract.BookEntry.TITLE + ", " +
+            AlexandriaContract.BookEntry.SUBTITLE + ", " +
+            AlexandriaContract.BookEntry.DESC + ", " +
+            AlexandriaContract.AuthorEntry.AUTHOR + ", " +
+            AlexandriaContract.CategoryEntry.CATEGORY + ")";
+
+    private static final String SQL_SELECT_SEARCH_ROWS = " SELECT " +
+            BOOKS + "." + AlexandriaContract.BookEntry._ID + ", " +
+            BOOKS + "." + AlexandriaContract.BookEntry.TITLE + ", " +
+            BOOKS + "." + AlexandriaContract.BookEntry.SUBTITLE + ", " +
+            "(SELECT " + AlexandriaContract.BookEntry.DESC + " FROM " + DESCRIPTIONS +
+            " WHERE " + DESCRIPTIONS + "." + AlexandriaContract.DescriptionEntry._ID + " = " +
+            BOOKS + "." + AlexandriaContract.BookEntry._ID + "), " +
+            authorNames("' '") + ", " +
+            categoryNames("' '") +
+            " FROM " + BOOKS;
+
+    private static final String SQL_DELETE_SEARCH_ROW = "DELETE FROM " + SEARCH +
+            " WHERE " + AlexandriaContract.SearchEntry.DOCID + " = ?";
+
+    private static final String SQL_INSERT_SEARCH_ROW = "INSERT INTO " + SEARCH + SQL_SEARCH_COLUMNS +
+            SQL_SELECT_SEARCH_ROWS +
+            " WHERE " + BOOKS + "." + AlexandriaContract.BookEntry._ID + " = ?";
+
+    private static final String SQL_SUMMARY_COLUMNS = " (" +
+            AlexandriaContract.SummaryEntry._ID + ", " +
+            AlexandriaContract.BookEntry.TITLE + ", " +
+            AlexandriaContract.BookEntry.SUBTITLE + ", " +
+            AlexandriaContract.BookEntry.IMAGE_URL + ", " +
+            AlexandriaContract.AuthorEntry.AUTHOR + ", " +
+            AlexandriaContract.CategoryEntry.CATEGORY + ")";
+
+    private static final String SQL_SELECT_SUMMARY_ROWS = " SELECT " +
+            BOOKS + "." + AlexandriaContract.BookEntry._ID + ", " +
+            BOOKS + "." + AlexandriaContract.BookEntry.TITLE + ", " +
+            BOOKS + "." + AlexandriaContract.BookEntry.SUBTITLE + ", " +
+            BOOKS + "." + AlexandriaContract.BookEntry.IMAGE_URL + ", " +
+            authorNames("','") + ", " +
+            categoryNames("','") +
+            " FROM " + BOOKS;
+
+    private static final String SQL_DELETE_SUMMARY_ROW = "DELETE FROM " + SUMMARY +
+            " WHERE " + AlexandriaContract.SummaryEntry._ID + " = ?";
+
+    private static final String SQL_INSERT_SUMMARY_ROW = "INSERT INTO " + SUMMARY + SQL_SUMMARY_COLUMNS +
+            SQL_SELECT_SUMMARY_ROWS +
+            " WHERE " + BOOKS + "." + AlexandriaContract.BookEntry._ID + " = ?";
+
+    private BookIndexer() {
+    }
+
+    /**
+     * refreshBooks -- rebuild the derived rows of each given book, a book that no longer exists
+     *     only has its derived rows removed
+     * @param db
+     * @param eans
+     */
+    static void refreshBooks(SQLiteDatabase db, Collection<Long> eans) {
+        for (Long ean : eans) {
+            Object[] bindArgs = {ean};
+            db.execSQL(SQL_DELETE_SEARCH_ROW, bindArgs);
+            db.execSQL(SQL_INSERT_SEARCH_ROW, bindArgs);
+            db.execSQL(SQL_DELETE_SUMMARY_ROW, bindArgs);
+            db.execSQL(SQL_INSERT_SUMMARY_ROW, bindArgs);
+        }
+    }
+
+    /**
+     * rebuildAll -- rebuild the derived rows of every book, used after a restore or a write
+     *     without a selection
+     * @param db
+     */
+    static void rebuildAll(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM " + SEARCH);
+        db.execSQL("INSERT INTO " + SEARCH + SQL_SEARCH_COLUMNS + SQL_SELECT_SEARCH_ROWS);
+        db.execSQL("DELETE FROM " + SUMMARY);
+        db.execSQL("INSERT INTO " + SUMMARY + SQL_SUMMARY_COLUMNS + SQL_SELECT_SUMMARY_ROWS);
+    }
+
+    /**
+     * buildMatchQuery -- turn free text typed by the user into an FTS query where every word
+     *     must match as a prefix, anything other than letters and digits is dropped so the user
+     *     cannot produce FTS syntax errors
+     * @param text
+     * @param column column filter or null to match any column
+     * @return match expression or null when the text holds no words
+     */
+    static String buildMatchQuery(String text, String column) {
+        StringBuilder query = new StringBuilder();
+        for (String word : text.split("[^\\p{L}\\p{N}]+")) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            if (query.length() > 0) {
+                query.append(' ');
+            }
+            if (column != null) {
+                query.append(column).append(':');
+            }
+            query.append(word).append('*');
+        }
+        return (query.length() == 0) ? null : query.toString();
+    }
+}
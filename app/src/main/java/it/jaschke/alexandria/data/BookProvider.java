@@ -1,20 +1,39 @@
 package it.jaschke.alexandria.data;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.database.AbstractWindowedCursor;
 import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
 import android.util.Log;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
 /**
  * Created by saj on 24/12/14.
  */
 public class BookProvider extends ContentProvider {
 
+    private static final String LOG_TAG = BookProvider.class.getSimpleName();
+
     private static final int BOOK_ID = 100;
     private static final int BOOK = 101;
 
@@ -26,19 +45,106 @@ public class BookProvider extends ContentProvider {
 
     private static final int BOOK_FULL = 500;
     private static final int BOOK_FULLDETAIL = 501;
+    private static final int BOOK_BY_AUTHOR = 502;
+    private static final int BOOK_BY_CATEGORY = 503;
+
+    private static final int BOOK_SEARCH = 600;
+
+    private static final int FACET_AUTHOR = 700;
+    private static final int FACET_CATEGORY = 701;
+
+    // longest METHOD_FLUSH_NOTIFICATIONS waits for the notifier thread
+    private static final long FLUSH_TIMEOUT_MS = 5000;
 
     private static final UriMatcher uriMatcher = buildUriMatcher();
 
     private DbHelper dbHelper;
 
+    private BookStatements statements;
+
+    private ChangeNotifier notifier;
+
+    private final DetailCache detailCache = new DetailCache();
+
+    private final ProviderMetrics metrics = new ProviderMetrics();
+
+    /**
+     * SqlTrace -- SQL and arguments of the last query run on a thread
+     */
+    private static class SqlTrace {
+        final String sql;
+        final String[] args;
+
+        SqlTrace(String sql, String[] args) {
+            this.sql = sql;
+            this.args = args;
+        }
+    }
+
+    private final ThreadLocal<SqlTrace> mLastQuery = new ThreadLocal<>();
+
     private static final SQLiteQueryBuilder bookFull;
 
+    /**
+     * PendingChanges -- what a write on this thread has touched so far. Derived tables are
+     *     refreshed once before the outermost write commits and change notifications are sent
+     *     once after it commits.
+     */
+    private static class PendingChanges {
+        final Set<Uri> notifications = new LinkedHashSet<>();
+        final Set<Long> books = new HashSet<>();
+        boolean allBooks = false;
+    }
+
+    private final ThreadLocal<PendingChanges> mPendingChanges = new ThreadLocal<>();
+
+    // ranks title matches first, then by the number of matched terms over all columns
+    private static final String SQL_SEARCH =
+            "SELECT " + AlexandriaContract.BookEntry.TABLE_NAME + "." + AlexandriaContract.BookEntry._ID + ", " +
+            AlexandriaContract.BookEntry.TABLE_NAME + "." + AlexandriaContract.BookEntry.TITLE + ", " +
+            AlexandriaContract.BookEntry.TABLE_NAME + "." + AlexandriaContract.BookEntry.SUBTITLE + ", " +
+            AlexandriaContract.BookEntry.TABLE_NAME + "." + AlexandriaContract.BookEntry.IMAGE_URL +
+            " FROM " + AlexandriaContract.SearchEntry.TABLE_NAME + " JOIN " + AlexandriaContract.BookEntry.TABLE_NAME +
+            " ON " + AlexandriaContract.BookEntry.TABLE_NAME + "." + AlexandriaContract.BookEntry._ID + " = " +
+            AlexandriaContract.SearchEntry.TABLE_NAME + "." + AlexandriaContract.SearchEntry.DOCID +
+            " WHERE " + AlexandriaContract.SearchEntry.TABLE_NAME + " MATCH ?" +
+            " ORDER BY " + AlexandriaContract.SearchEntry.TABLE_NAME + "." + AlexandriaContract.SearchEntry.DOCID +
+            " IN (SELECT " + AlexandriaContract.SearchEntry.DOCID + " FROM " + AlexandriaContract.SearchEntry.TABLE_NAME +
+            " WHERE " + AlexandriaContract.SearchEntry.TABLE_NAME + " MATCH ?) DESC," +
+            " length(offsets(" + AlexandriaContract.SearchEntry.TABLE_NAME + ")) DESC";
+
+    // default columns of the full book list
+    private static final String[] FULL_LIST_PROJECTION = {
+            AlexandriaContract.BookEntry._ID,
+            AlexandriaContract.BookEntry.TITLE,
+            AlexandriaContract.BookEntry.IMAGE_URL,
+            AlexandriaContract.AuthorEntry.AUTHOR,
+            AlexandriaContract.CategoryEntry.CATEGORY
+    };
+
+    // full detail lookup by EAN, built once with a bind argument for the EAN
+    private static final String SQL_FULLDETAIL;
+
+    private static final String FULLDETAIL_ID =
+            AlexandriaContract.SummaryEntry.TABLE_NAME + "." + AlexandriaContract.BookEntry._ID;
+
+    private static final String[] FULLDETAIL_PROJECTION = {
+            AlexandriaContract.SummaryEntry.TABLE_NAME + "." + AlexandriaContract.BookEntry.TITLE,
+            AlexandriaContract.SummaryEntry.TABLE_NAME + "." + AlexandriaContract.BookEntry.SUBTITLE,
+            AlexandriaContract.SummaryEntry.TABLE_NAME + "." + AlexandriaContract.BookEntry.IMAGE_URL,
+            AlexandriaContract.DescriptionEntry.TABLE_NAME + "." + AlexandriaContract.BookEntry.DESC,
+            AlexandriaContract.SummaryEntry.TABLE_NAME + "." + AlexandriaContract.AuthorEntry.AUTHOR,
+            AlexandriaContract.SummaryEntry.TABLE_NAME + "." + AlexandriaContract.CategoryEntry.CATEGORY
+    };
+
     static{
         bookFull = new SQLiteQueryBuilder();
         bookFull.setTables(
-                AlexandriaContract.BookEntry.TABLE_NAME + " LEFT OUTER JOIN " +
-                AlexandriaContract.AuthorEntry.TABLE_NAME + " USING (" +AlexandriaContract.BookEntry._ID + ")" +
-                " LEFT OUTER JOIN " +  AlexandriaContract.CategoryEntry.TABLE_NAME + " USING (" +AlexandriaContract.BookEntry._ID + ")");
+                AlexandriaContract.SummaryEntry.TABLE_NAME + " LEFT OUTER JOIN " +
+                AlexandriaContract.DescriptionEntry.TABLE_NAME + " USING (" +AlexandriaContract.BookEntry._ID + ")");
+
+        SQL_FULLDETAIL = bookFull.buildQuery(FULLDETAIL_PROJECTION, idSelection(FULLDETAIL_ID, null),
+                null, null, null, null);
     }
 
 
@@ -57,6 +163,17 @@ public class BookProvider extends ContentProvider {
 
         matcher.addURI(authority, AlexandriaContract.PATH_FULLBOOK +"/#", BOOK_FULLDETAIL);
         matcher.addURI(authority, AlexandriaContract.PATH_FULLBOOK, BOOK_FULL);
+        matcher.addURI(authority, AlexandriaContract.PATH_FULLBOOK + "/" +
+                AlexandriaContract.PATH_BY_AUTHOR + "/*", BOOK_BY_AUTHOR);
+        matcher.addURI(authority, AlexandriaContract.PATH_FULLBOOK + "/" +
+                AlexandriaContract.PATH_BY_CATEGORY + "/*", BOOK_BY_CATEGORY);
+
+        matcher.addURI(authority, AlexandriaContract.PATH_SEARCH + "/*", BOOK_SEARCH);
+
+        matcher.addURI(authority, AlexandriaContract.PATH_FACETS + "/" +
+                AlexandriaContract.PATH_BY_AUTHOR, FACET_AUTHOR);
+        matcher.addURI(authority, AlexandriaContract.PATH_FACETS + "/" +
+                AlexandriaContract.PATH_BY_CATEGORY, FACET_CATEGORY);
 
         return matcher;
     }
@@ -64,17 +181,26 @@ public class BookProvider extends ContentProvider {
     @Override
     public boolean onCreate() {
         dbHelper = new DbHelper(getContext());
+        statements = new BookStatements(dbHelper);
+        notifier = new ChangeNotifier(getContext().getContentResolver());
         return true;
 
     }
 
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        final int match = uriMatcher.match(uri);
+        final long start = System.nanoTime();
+        mLastQuery.remove();
         Cursor retCursor;
-        switch (uriMatcher.match(uri)) {
+        switch (match) {
             case BOOK:
-                retCursor=dbHelper.getReadableDatabase().query(
-                        AlexandriaContract.BookEntry.TABLE_NAME,
+                if (uri.getQueryParameter(AlexandriaContract.QUERY_PAGE_SIZE) != null) {
+                    retCursor = queryBookPage(uri, projection, selection, selectionArgs);
+                    break;
+                }
+                retCursor=readQuery(
+                        bookTables(projection),
                         projection,
                         selection,
                         selection==null? null : selectionArgs,
@@ -84,7 +210,7 @@ public class BookProvider extends ContentProvider {
                 );
                 break;
             case AUTHOR:
-                retCursor=dbHelper.getReadableDatabase().query(
+                retCursor=readQuery(
                         AlexandriaContract.AuthorEntry.TABLE_NAME,
                         projection,
                         selection,
@@ -95,7 +221,7 @@ public class BookProvider extends ContentProvider {
                 );
                 break;
             case CATEGORY:
-                retCursor=dbHelper.getReadableDatabase().query(
+                retCursor=readQuery(
                         AlexandriaContract.CategoryEntry.TABLE_NAME,
                         projection,
                         selection,
@@ -106,69 +232,99 @@ public class BookProvider extends ContentProvider {
                 );
                 break;
             case BOOK_ID:
-                retCursor=dbHelper.getReadableDatabase().query(
-                        AlexandriaContract.BookEntry.TABLE_NAME,
+                retCursor=readQuery(
+                        bookTables(projection),
                         projection,
-                        AlexandriaContract.BookEntry._ID + " = '" + ContentUris.parseId(uri) + "'",
-                        selectionArgs,
+                        idSelection(AlexandriaContract.BookEntry._ID, selection),
+                        idSelectionArgs(uri, selectionArgs),
                         null,
                         null,
                         sortOrder
                 );
                 break;
             case AUTHOR_ID:
-                retCursor=dbHelper.getReadableDatabase().query(
+                retCursor=readQuery(
                         AlexandriaContract.AuthorEntry.TABLE_NAME,
                         projection,
-                        AlexandriaContract.AuthorEntry._ID + " = '" + ContentUris.parseId(uri) + "'",
-                        selectionArgs,
+                        idSelection(AlexandriaContract.AuthorEntry._ID, selection),
+                        idSelectionArgs(uri, selectionArgs),
                         null,
                         null,
                         sortOrder
                 );
                 break;
             case CATEGORY_ID:
-                retCursor=dbHelper.getReadableDatabase().query(
+                retCursor=readQuery(
                         AlexandriaContract.CategoryEntry.TABLE_NAME,
                         projection,
-                        AlexandriaContract.CategoryEntry._ID + " = '" + ContentUris.parseId(uri) + "'",
-                        selectionArgs,
+                        idSelection(AlexandriaContract.CategoryEntry._ID, selection),
+                        idSelectionArgs(uri, selectionArgs),
                         null,
                         null,
                         sortOrder
                 );
                 break;
-            case BOOK_FULLDETAIL:
-                String[] bfd_projection ={
-                    AlexandriaContract.BookEntry.TABLE_NAME + "." + AlexandriaContract.BookEntry.TITLE,
-                    AlexandriaContract.BookEntry.TABLE_NAME + "." + AlexandriaContract.BookEntry.SUBTITLE,
-                    AlexandriaContract.BookEntry.TABLE_NAME + "." + AlexandriaContract.BookEntry.IMAGE_URL,
-                    AlexandriaContract.BookEntry.TABLE_NAME + "." + AlexandriaContract.BookEntry.DESC,
-                    "group_concat(DISTINCT " + AlexandriaContract.AuthorEntry.TABLE_NAME+ "."+ AlexandriaContract.AuthorEntry.AUTHOR +") as " + AlexandriaContract.AuthorEntry.AUTHOR,
-                    "group_concat(DISTINCT " + AlexandriaContract.CategoryEntry.TABLE_NAME+ "."+ AlexandriaContract.CategoryEntry.CATEGORY +") as " + AlexandriaContract.CategoryEntry.CATEGORY
-                };
-                retCursor = bookFull.query(dbHelper.getReadableDatabase(),
-                        bfd_projection,
-                        AlexandriaContract.BookEntry.TABLE_NAME + "." + AlexandriaContract.BookEntry._ID + " = '" + ContentUris.parseId(uri) + "'",
-                        selectionArgs,
-                        AlexandriaContract.BookEntry.TABLE_NAME + "." + AlexandriaContract.BookEntry._ID,
-                        null,
-                        sortOrder);
+            case BOOK_FULLDETAIL: {
+                if ((selection != null) || (sortOrder != null)) {
+                    // narrowed by the caller, ANDed onto the EAN and never cached
+                    retCursor = readRawQuery(bookFull.buildQuery(FULLDETAIL_PROJECTION,
+                            idSelection(FULLDETAIL_ID, selection), null, null, sortOrder, null),
+                            idSelectionArgs(uri, selectionArgs));
+                    break;
+                }
+                long ean = ContentUris.parseId(uri);
+                retCursor = detailCache.get(ean);
+                if (retCursor == null) {
+                    // authors and categories come pre-joined from the summary table, the SQL
+                    // text is the same for every EAN so the compiled statement is reused
+                    long generation = detailCache.generation();
+                    retCursor = detailCache.put(ean, readRawQuery(
+                            SQL_FULLDETAIL, new String[]{String.valueOf(ean)}), generation);
+                }
                 break;
+            }
             case BOOK_FULL:
-                String[] bf_projection ={
-                        AlexandriaContract.BookEntry.TABLE_NAME + "." + AlexandriaContract.BookEntry.TITLE,
-                        AlexandriaContract.BookEntry.TABLE_NAME + "." + AlexandriaContract.BookEntry.IMAGE_URL,
-                        "group_concat(DISTINCT " + AlexandriaContract.AuthorEntry.TABLE_NAME+ "."+ AlexandriaContract.AuthorEntry.AUTHOR + ") as " + AlexandriaContract.AuthorEntry.AUTHOR,
-                        "group_concat(DISTINCT " + AlexandriaContract.CategoryEntry.TABLE_NAME+ "."+ AlexandriaContract.CategoryEntry.CATEGORY +") as " + AlexandriaContract.CategoryEntry.CATEGORY
-                };
-                retCursor = bookFull.query(dbHelper.getReadableDatabase(),
-                        bf_projection,
-                        null,
+                retCursor=readQuery(
+                        AlexandriaContract.SummaryEntry.TABLE_NAME,
+                        projection == null ? FULL_LIST_PROJECTION : projection,
+                        selection,
                         selectionArgs,
-                        AlexandriaContract.BookEntry.TABLE_NAME + "." + AlexandriaContract.BookEntry._ID,
                         null,
-                        sortOrder);
+                        null,
+                        sortOrder
+                );
+                break;
+            case BOOK_BY_AUTHOR:
+                retCursor = queryBooksByName(NameLinks.AUTHORS, uri, projection, selection,
+                        selectionArgs, sortOrder);
+                break;
+            case BOOK_BY_CATEGORY:
+                retCursor = queryBooksByName(NameLinks.CATEGORIES, uri, projection, selection,
+                        selectionArgs, sortOrder);
+                break;
+            case BOOK_SEARCH:
+                String text = uri.getLastPathSegment();
+                String matchAll = BookIndexer.buildMatchQuery(text, null);
+                if (matchAll == null) {
+                    // nothing to search for, return an empty result with the expected columns
+                    retCursor = new MatrixCursor(new String[]{
+                            AlexandriaContract.BookEntry._ID,
+                            AlexandriaContract.BookEntry.TITLE,
+                            AlexandriaContract.BookEntry.SUBTITLE,
+                            AlexandriaContract.BookEntry.IMAGE_URL});
+                } else {
+                    retCursor = readRawQuery(SQL_SEARCH, new String[]{
+                            matchAll,
+                            BookIndexer.buildMatchQuery(text, AlexandriaContract.BookEntry.TITLE)});
+                }
+                break;
+            case FACET_AUTHOR:
+                retCursor = queryFacets(AlexandriaContract.AuthorNameEntry.TABLE_NAME, projection,
+                        selection, selectionArgs, sortOrder);
+                break;
+            case FACET_CATEGORY:
+                retCursor = queryFacets(AlexandriaContract.CategoryNameEntry.TABLE_NAME, projection,
+                        selection, selectionArgs, sortOrder);
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -176,10 +332,545 @@ public class BookProvider extends ContentProvider {
 
         retCursor.setNotificationUri(getContext().getContentResolver(), uri);
 
+        recordQuery(match, start, retCursor);
         return retCursor;
     }
 
+    /**
+     * recordQuery -- add a query to the metrics. The cursor runs its query when it is first
+     *     stepped, so a sampled query is counted here which fills the window early and the fill
+     *     is timed apart, other queries are left for the caller to step. A slow query has its
+     *     plan captured when that is turned on, which also samples every query.
+     * @param match
+     * @param start
+     * @param cursor
+     */
+    private void recordQuery(int match, long start, Cursor cursor) {
+        long nanos = System.nanoTime() - start;
+        metrics.record(ProviderMetrics.QUERY, matchName(match), nanos, -1);
+        if (!metrics.sampleQuery()) {
+            return;
+        }
 
+        long fillStart = System.nanoTime();
+        int rows = cursor.getCount();
+        long fillNanos = System.nanoTime() - fillStart;
+        long windowBytes = 0;
+        if (cursor instanceof AbstractWindowedCursor) {
+            windowBytes = windowBytes(((AbstractWindowedCursor) cursor).getWindow());
+        }
+        metrics.recordSize(matchName(match), fillNanos, rows, windowBytes);
+
+        SqlTrace trace = mLastQuery.get();
+        if ((trace != null) && metrics.isExplainSlow() &&
+                (nanos + fillNanos >= ProviderMetrics.SLOW_QUERY_MS * 1000000)) {
+            metrics.recordSlowQuery(matchName(match), nanos + fillNanos, trace.sql, explain(trace));
+        }
+    }
+
+    /**
+     * windowBytes -- bytes of column data held in a cursor window, strings are held as UTF-8
+     *     and read back as such by getBlob
+     * @param window
+     * @return bytes, 0 for no window
+     */
+    private static long windowBytes(CursorWindow window) {
+        if (window == null) {
+            return 0;
+        }
+        long bytes = 0;
+        int first = window.getStartPosition();
+        for (int row = first; row < first + window.getNumRows(); row++) {
+            for (int column = 0; column < window.getNumColumns(); column++) {
+                switch (window.getType(row, column)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        bytes += 8;
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                    case Cursor.FIELD_TYPE_BLOB:
+                        bytes += window.getBlob(row, column).length;
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * explain -- the query plan of a traced query, one step per line joined with "; "
+     * @param trace
+     * @return plan
+     */
+    private String explain(SqlTrace trace) {
+        Cursor cursor = dbHelper.getReadableDatabase().rawQuery(
+                "EXPLAIN QUERY PLAN " + trace.sql, trace.args);
+        try {
+            StringBuilder plan = new StringBuilder();
+            int detail = cursor.getColumnIndex("detail");
+            while (cursor.moveToNext()) {
+                if (plan.length() > 0) {
+                    plan.append("; ");
+                }
+                plan.append(cursor.getString(detail));
+            }
+            return plan.toString();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * readQuery -- same as SQLiteDatabase.query, the SQL is kept for this thread so a slow query
+     *     can be explained
+     * @return cursor
+     */
+    private Cursor readQuery(String table, String[] columns, String selection, String[] selectionArgs,
+                             String groupBy, String having, String orderBy) {
+        return readQuery(table, columns, selection, selectionArgs, groupBy, having, orderBy, null);
+    }
+
+    private Cursor readQuery(String table, String[] columns, String selection, String[] selectionArgs,
+                             String groupBy, String having, String orderBy, String limit) {
+        return readRawQuery(SQLiteQueryBuilder.buildQueryString(false, table, columns, selection,
+                groupBy, having, orderBy, limit), selectionArgs);
+    }
+
+    /**
+     * readRawQuery -- same as SQLiteDatabase.rawQuery, the SQL is kept for this thread so a slow
+     *     query can be explained
+     * @param sql
+     * @param selectionArgs
+     * @return cursor
+     */
+    private Cursor readRawQuery(String sql, String[] selectionArgs) {
+        mLastQuery.set(new SqlTrace(sql, selectionArgs));
+        return dbHelper.getReadableDatabase().rawQuery(sql, selectionArgs);
+    }
+
+    /**
+     * matchName -- name of a uri type as reported in the metrics
+     * @param match
+     * @return name
+     */
+    private static String matchName(int match) {
+        switch (match) {
+            case BOOK_ID:
+                return "BOOK_ID";
+            case BOOK:
+                return "BOOK";
+            case AUTHOR_ID:
+                return "AUTHOR_ID";
+            case AUTHOR:
+                return "AUTHOR";
+            case CATEGORY_ID:
+                return "CATEGORY_ID";
+            case CATEGORY:
+                return "CATEGORY";
+            case BOOK_FULL:
+                return "BOOK_FULL";
+            case BOOK_FULLDETAIL:
+                return "BOOK_FULLDETAIL";
+            case BOOK_BY_AUTHOR:
+                return "BOOK_BY_AUTHOR";
+            case BOOK_BY_CATEGORY:
+                return "BOOK_BY_CATEGORY";
+            case BOOK_SEARCH:
+                return "BOOK_SEARCH";
+            case FACET_AUTHOR:
+                return "FACET_AUTHOR";
+            case FACET_CATEGORY:
+                return "FACET_CATEGORY";
+            default:
+                return String.valueOf(match);
+        }
+    }
+
+
+
+    /**
+     * call -- fast lookups answered from compiled statements, no Cursor or CursorWindow is
+     *     allocated, and database maintenance. See AlexandriaContract.METHOD_* for the methods
+     *     and KEY_* for the results.
+     * @param method
+     * @param arg
+     * @param extras
+     * @return result bundle
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        Bundle result = new Bundle();
+        switch (method) {
+            case AlexandriaContract.METHOD_EXISTS:
+                result.putBoolean(AlexandriaContract.KEY_EXISTS, statements.bookExists(Long.parseLong(arg)));
+                break;
+            case AlexandriaContract.METHOD_EXISTS_MANY:
+                result.putBooleanArray(AlexandriaContract.KEY_PRESENT,
+                        statements.booksExist(requireEans(method, extras)));
+                break;
+            case AlexandriaContract.METHOD_COUNT:
+                result.putLong(AlexandriaContract.KEY_COUNT, statements.bookCount());
+                break;
+            case AlexandriaContract.METHOD_CACHE_STATS:
+                result.putInt(AlexandriaContract.KEY_CACHE_HITS, detailCache.hitCount());
+                result.putInt(AlexandriaContract.KEY_CACHE_MISSES, detailCache.missCount());
+                result.putInt(AlexandriaContract.KEY_CACHE_EVICTIONS, detailCache.evictionCount());
+                result.putInt(AlexandriaContract.KEY_CACHE_BYTES, detailCache.size());
+                break;
+            case AlexandriaContract.METHOD_METRICS:
+                if (extras != null && extras.containsKey(AlexandriaContract.KEY_METRICS_EXPLAIN)) {
+                    metrics.setExplainSlow(extras.getBoolean(AlexandriaContract.KEY_METRICS_EXPLAIN));
+                }
+                result = metrics.snapshot();
+                if (extras != null && extras.getBoolean(AlexandriaContract.KEY_METRICS_RESET)) {
+                    metrics.reset();
+                }
+                break;
+            case AlexandriaContract.METHOD_CHECKPOINT:
+                result.putInt(AlexandriaContract.KEY_FRAMES, dbHelper.checkpoint());
+                break;
+            case AlexandriaContract.METHOD_COMPACT:
+                result.putInt(AlexandriaContract.KEY_RECLAIMED,
+                        dbHelper.compact((arg == null) ? 1 : Integer.parseInt(arg)));
+                break;
+            case AlexandriaContract.METHOD_EXPORT:
+                result.putInt(AlexandriaContract.KEY_COUNT, exportLibrary(Uri.parse(arg)));
+                break;
+            case AlexandriaContract.METHOD_RESTORE:
+                result.putInt(AlexandriaContract.KEY_COUNT, restoreLibrary(Uri.parse(arg)));
+                break;
+            case AlexandriaContract.METHOD_LOOKUP_FAILURES:
+                result.putStringArray(AlexandriaContract.KEY_FAILURES, statements.lookupFailures(
+                        requireEans(method, extras), System.currentTimeMillis()));
+                break;
+            case AlexandriaContract.METHOD_RECORD_FAILURE:
+                statements.recordFailure(requireEans(method, extras), arg,
+                        extras.getLong(AlexandriaContract.KEY_EXPIRES));
+                break;
+            case AlexandriaContract.METHOD_QUEUE_FETCHES:
+            case AlexandriaContract.METHOD_REMOVE_FETCHES:
+                result.putLong(AlexandriaContract.KEY_NEXT_ATTEMPT,
+                        writePendingFetches(method, requireEans(method, extras), arg));
+                break;
+            case AlexandriaContract.METHOD_DUE_FETCHES:
+                requireExtras(method, extras);
+                result.putLongArray(AlexandriaContract.KEY_EANS, PendingFetches.due(
+                        dbHelper.getReadableDatabase(),
+                        extras.getLong(AlexandriaContract.KEY_AFTER),
+                        extras.getBoolean(AlexandriaContract.KEY_ALL),
+                        System.currentTimeMillis(),
+                        extras.getInt(AlexandriaContract.KEY_LIMIT)));
+                break;
+            case AlexandriaContract.METHOD_NEXT_FETCH:
+                result.putLong(AlexandriaContract.KEY_NEXT_ATTEMPT,
+                        PendingFetches.nextAttempt(dbHelper.getReadableDatabase()));
+                break;
+            case AlexandriaContract.METHOD_FLUSH_NOTIFICATIONS:
+                result.putBoolean(AlexandriaContract.KEY_FLUSHED, notifier.flushNow(FLUSH_TIMEOUT_MS));
+                break;
+            case AlexandriaContract.METHOD_CLEAR_FAILURES:
+                result.putInt(AlexandriaContract.KEY_COUNT, dbHelper.getWritableDatabase().delete(
+                        AlexandriaContract.LookupFailureEntry.TABLE_NAME, "1", null));
+                break;
+            default:
+                return super.call(method, arg, extras);
+        }
+        return result;
+    }
+
+    /**
+     * requireExtras -- the extras of a call() method that cannot do without them
+     * @param method
+     * @param extras
+     * @return extras
+     * @throws IllegalArgumentException when there are none
+     */
+    private static Bundle requireExtras(String method, Bundle extras) {
+        if (extras == null) {
+            throw new IllegalArgumentException("Method " + method + " needs extras");
+        }
+        return extras;
+    }
+
+    /**
+     * requireEans -- the KEY_EANS extra of a call() method
+     * @param method
+     * @param extras
+     * @return EANs
+     * @throws IllegalArgumentException when the extras or the EANs are missing
+     */
+    private static long[] requireEans(String method, Bundle extras) {
+        long[] eans = requireExtras(method, extras).getLongArray(AlexandriaContract.KEY_EANS);
+        if (eans == null) {
+            throw new IllegalArgumentException("Method " + method + " needs " +
+                    AlexandriaContract.KEY_EANS);
+        }
+        return eans;
+    }
+
+    /**
+     * writePendingFetches -- queue or remove EANs of the retry queue in one transaction
+     * @param method METHOD_QUEUE_FETCHES or METHOD_REMOVE_FETCHES
+     * @param eans
+     * @param failure reason of the failed attempt when queueing
+     * @return when the earliest queued EAN is due, 0 when the queue is empty
+     */
+    private long writePendingFetches(String method, long[] eans, String failure) {
+        final SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            if (AlexandriaContract.METHOD_QUEUE_FETCHES.equals(method)) {
+                int dropped = PendingFetches.queue(db, eans, failure, System.currentTimeMillis());
+                if (dropped > 0) {
+                    Log.d(LOG_TAG, "writePendingFetches() -- gave up on " + dropped + " EANs");
+                }
+            } else {
+                PendingFetches.remove(db, eans);
+            }
+            long nextAttempt = PendingFetches.nextAttempt(db);
+            db.setTransactionSuccessful();
+            return nextAttempt;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * exportLibrary -- stream the library to a backup file from a read snapshot so the books and
+     *     their links agree. The snapshot is a deferred transaction on a read only connection of
+     *     its own, under WAL it never holds up the writers for the length of the export.
+     *     SQLiteDatabase only begins IMMEDIATE or EXCLUSIVE transactions, a SAVEPOINT outside a
+     *     transaction begins a deferred one.
+     * @param destination
+     * @return number of books written or -1 when the backup could not be written
+     */
+    private int exportLibrary(Uri destination) {
+        final long start = System.nanoTime();
+        int books = -1;
+        SQLiteDatabase snapshot = null;
+        try {
+            // a single connection, every read below runs inside the one snapshot
+            snapshot = SQLiteDatabase.openDatabase(dbHelper.getReadableDatabase().getPath(), null,
+                    SQLiteDatabase.OPEN_READONLY);
+            snapshot.execSQL("SAVEPOINT export");
+            try {
+                OutputStream out = getContext().getContentResolver().openOutputStream(destination);
+                if (out == null) {
+                    throw new IOException("Cannot open " + destination);
+                }
+                books = LibraryBackup.export(snapshot, out);
+            } finally {
+                snapshot.execSQL("RELEASE export");
+            }
+        } catch (IOException | SQLiteException e) {
+            Log.e(LOG_TAG, "Export to " + destination + " failed", e);
+        } finally {
+            if (snapshot != null) {
+                snapshot.close();
+            }
+        }
+        metrics.record(ProviderMetrics.QUERY, "export", System.nanoTime() - start, books);
+        return books;
+    }
+
+    /**
+     * restoreLibrary -- replace the library with a backup in a single batch, the derived tables
+     *     are rebuilt once at the end and every list is notified. A bad or truncated file rolls
+     *     back and leaves the library as it was.
+     * @param source
+     * @return number of books restored or -1 when the backup could not be read
+     */
+    private int restoreLibrary(Uri source) {
+        final long start = System.nanoTime();
+        final SQLiteDatabase db = dbHelper.getWritableDatabase();
+        final boolean outerBatch = beginBatch(db);
+        boolean successful = false;
+        int books = -1;
+        try {
+            InputStream in = getContext().getContentResolver().openInputStream(source);
+            if (in == null) {
+                throw new IOException("Cannot open " + source);
+            }
+            books = LibraryBackup.restore(db, in);
+            mPendingChanges.get().allBooks = true;
+            successful = true;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Restore from " + source + " failed", e);
+        } finally {
+            endBatch(db, outerBatch, successful);
+        }
+        metrics.record(ProviderMetrics.BATCH, "restore", System.nanoTime() - start, books);
+        return books;
+    }
+
+    /**
+     * queryFacets -- names with their book counts read straight from the dictionary table, the
+     *     counts are kept by triggers on the link tables so nothing is grouped or counted here
+     * @param nameTable
+     * @param projection
+     * @param selection
+     * @param selectionArgs
+     * @param sortOrder
+     * @return cursor
+     */
+    private Cursor queryFacets(String nameTable, String[] projection, String selection,
+                               String[] selectionArgs, String sortOrder) {
+        String[] facetProjection = {
+                AlexandriaContract.FacetEntry._ID,
+                AlexandriaContract.FacetEntry.NAME,
+                AlexandriaContract.FacetEntry.BOOK_COUNT
+        };
+        String facetSelection = AlexandriaContract.FacetEntry.BOOK_COUNT + " > 0";
+        return readQuery(
+                nameTable,
+                projection == null ? facetProjection : projection,
+                (selection == null) ? facetSelection : facetSelection + " AND (" + selection + ")",
+                selectionArgs,
+                null,
+                null,
+                sortOrder == null ? AlexandriaContract.FacetEntry.NAME : sortOrder
+        );
+    }
+
+    /**
+     * queryBooksByName -- full list rows of the books linked to the author or category named
+     *     by the last path segment, found through the link index rather than by scanning names
+     * @param links
+     * @param uri
+     * @param projection
+     * @param selection
+     * @param selectionArgs
+     * @param sortOrder
+     * @return cursor
+     */
+    private Cursor queryBooksByName(NameLinks links, Uri uri, String[] projection, String selection,
+                                    String[] selectionArgs, String sortOrder) {
+        String booksSelection = links.booksSelection(AlexandriaContract.SummaryEntry._ID);
+        return readQuery(
+                AlexandriaContract.SummaryEntry.TABLE_NAME,
+                projection == null ? FULL_LIST_PROJECTION : projection,
+                (selection == null) ? booksSelection : booksSelection + " AND (" + selection + ")",
+                prependArg(uri.getLastPathSegment(), selectionArgs),
+                null,
+                null,
+                sortOrder
+        );
+    }
+
+    /**
+     * idSelection -- selection for a single row uri, the id is always a bind argument so the SQL
+     *     text does not change from one EAN to the next and SQLite reuses the compiled statement
+     * @param idColumn
+     * @param selection optional extra selection from the caller
+     * @return selection
+     */
+    private static String idSelection(String idColumn, String selection) {
+        return (selection == null) ? idColumn + " = ?" : idColumn + " = ? AND (" + selection + ")";
+    }
+
+    /**
+     * idSelectionArgs -- arguments for idSelection, the id from the uri comes first
+     * @param uri
+     * @param selectionArgs
+     * @return selection arguments
+     */
+    private static String[] idSelectionArgs(Uri uri, String[] selectionArgs) {
+        return prependArg(String.valueOf(ContentUris.parseId(uri)), selectionArgs);
+    }
+
+    /**
+     * prependArg -- selection arguments with the given argument first
+     * @param arg
+     * @param selectionArgs
+     * @return selection arguments
+     */
+    private static String[] prependArg(String arg, String[] selectionArgs) {
+        int argCount = (selectionArgs == null) ? 0 : selectionArgs.length;
+        String[] args = new String[argCount + 1];
+        args[0] = arg;
+        if (argCount > 0) {
+            System.arraycopy(selectionArgs, 0, args, 1, argCount);
+        }
+        return args;
+    }
+
+    /**
+     * bookTables -- descriptions live in their own table, only join it when the caller asks for
+     *     the description column or for every column (null projection). The list asks for
+     *     BookEntry.LIST_PROJECTION so the description never reaches its cursor windows.
+     * @param projection
+     * @return table or join to query
+     */
+    private static String bookTables(String[] projection) {
+        boolean withDescription = (projection == null);
+        if (projection != null) {
+            for (String column : projection) {
+                if (AlexandriaContract.BookEntry.DESC.equals(column)) {
+                    withDescription = true;
+                }
+            }
+        }
+        if (withDescription) {
+            return AlexandriaContract.BookEntry.TABLE_NAME + " LEFT OUTER JOIN " +
+                    AlexandriaContract.DescriptionEntry.TABLE_NAME +
+                    " USING (" + AlexandriaContract.BookEntry._ID + ")";
+        }
+        return AlexandriaContract.BookEntry.TABLE_NAME;
+    }
+
+    /**
+     * queryBookPage -- keyset paging over the books table, rows come back in EAN order starting
+     *     after the "after" EAN so each page is an index range scan no matter how deep the user
+     *     has scrolled. The sort order is always EAN since that is the page key. With a
+     *     "through" EAN instead every row up to it is returned, but never less than the first
+     *     page, so a list can reload what it has loaded without shrinking to one page.
+     * @param uri
+     * @param projection
+     * @param selection
+     * @param selectionArgs
+     * @return cursor holding at most one page of books, or the range asked for
+     */
+    private Cursor queryBookPage(Uri uri, String[] projection, String selection, String[] selectionArgs) {
+        final String pageSize = uri.getQueryParameter(AlexandriaContract.QUERY_PAGE_SIZE);
+        final String after = uri.getQueryParameter(AlexandriaContract.QUERY_PAGE_AFTER);
+        final String through = uri.getQueryParameter(AlexandriaContract.QUERY_PAGE_THROUGH);
+
+        String pageSelection = selection;
+        String[] pageArgs = (selection == null) ? null : selectionArgs;
+        String limit = String.valueOf(Integer.parseInt(pageSize));
+        if ((after != null) || (through != null)) {
+            String keySelection = AlexandriaContract.BookEntry._ID + " > ?";
+            if (through != null) {
+                keySelection = "(" + AlexandriaContract.BookEntry._ID + " <= ? OR " +
+                        AlexandriaContract.BookEntry._ID + " IN (SELECT " +
+                        AlexandriaContract.BookEntry._ID + " FROM " +
+                        AlexandriaContract.BookEntry.TABLE_NAME + " ORDER BY " +
+                        AlexandriaContract.BookEntry._ID + " LIMIT " + limit + "))";
+                limit = null;
+            }
+            pageSelection = (selection == null) ? keySelection : "(" + selection + ") AND " + keySelection;
+            int argCount = (pageArgs == null) ? 0 : pageArgs.length;
+            String[] args = new String[argCount + 1];
+            if (argCount > 0) {
+                System.arraycopy(pageArgs, 0, args, 0, argCount);
+            }
+            args[argCount] = String.valueOf(Long.parseLong((through != null) ? through : after));
+            pageArgs = args;
+        }
+
+        return readQuery(
+                bookTables(projection),
+                projection,
+                pageSelection,
+                pageArgs,
+                null,
+                null,
+                AlexandriaContract.BookEntry._ID,
+                limit
+        );
+    }
 
     @Override
     public String getType(Uri uri) {
@@ -196,6 +887,16 @@ public class BookProvider extends ContentProvider {
                 return AlexandriaContract.CategoryEntry.CONTENT_ITEM_TYPE;
             case BOOK:
                 return AlexandriaContract.BookEntry.CONTENT_TYPE;
+            case BOOK_SEARCH:
+                return AlexandriaContract.BookEntry.CONTENT_TYPE;
+            case BOOK_BY_AUTHOR:
+                return AlexandriaContract.BookEntry.CONTENT_TYPE;
+            case BOOK_BY_CATEGORY:
+                return AlexandriaContract.BookEntry.CONTENT_TYPE;
+            case FACET_AUTHOR:
+                return AlexandriaContract.FacetEntry.CONTENT_TYPE;
+            case FACET_CATEGORY:
+                return AlexandriaContract.FacetEntry.CONTENT_TYPE;
             case AUTHOR:
                 return AlexandriaContract.AuthorEntry.CONTENT_TYPE;
             case CATEGORY:
@@ -207,34 +908,65 @@ public class BookProvider extends ContentProvider {
 
     @Override
     public Uri insert(Uri uri, ContentValues values) {
+        final long start = System.nanoTime();
         final SQLiteDatabase db = dbHelper.getWritableDatabase();
+        final boolean outerBatch = beginBatch(db);
+        boolean successful = false;
+        Uri returnUri;
+        try {
+            returnUri = insertRow(db, uri, values);
+            successful = true;
+        } finally {
+            endBatch(db, outerBatch, successful);
+        }
+        metrics.record(ProviderMetrics.INSERT, matchName(uriMatcher.match(uri)),
+                System.nanoTime() - start, 1);
+        return returnUri;
+    }
+
+    private Uri insertRow(SQLiteDatabase db, Uri uri, ContentValues values) {
         final int match = uriMatcher.match(uri);
+        final PendingChanges changes = mPendingChanges.get();
         Uri returnUri;
         switch (match) {
             case BOOK: {
-                long _id = db.insert(AlexandriaContract.BookEntry.TABLE_NAME, null, values);
+                // the description is kept apart from the list columns
+                ContentValues bookValues = new ContentValues(values);
+                bookValues.remove(AlexandriaContract.BookEntry.DESC);
+                long _id = db.insert(AlexandriaContract.BookEntry.TABLE_NAME, null, bookValues);
                 if ( _id > 0 ){
                     returnUri = AlexandriaContract.BookEntry.buildBookUri(_id);
                 } else {
+                    // ON CONFLICT IGNORE kept a book written since the caller checked for it, e.g.
+                    // by a fetch on another lane, skipped so the rest of the batch still commits
+                    Long ean = bookValues.getAsLong(AlexandriaContract.BookEntry._ID);
+                    if ((ean != null) && statements.bookExists(ean)) {
+                        returnUri = AlexandriaContract.BookEntry.buildBookUri(ean);
+                        break;
+                    }
                     throw new android.database.SQLException("Failed to insert row into " + uri);
                 }
-                getContext().getContentResolver().notifyChange(AlexandriaContract.BookEntry.buildFullBookUri(_id), null);
+                if (values.containsKey(AlexandriaContract.BookEntry.DESC)) {
+                    ContentValues descValues = new ContentValues();
+                    descValues.put(AlexandriaContract.DescriptionEntry._ID, _id);
+                    descValues.put(AlexandriaContract.BookEntry.DESC, values.getAsString(AlexandriaContract.BookEntry.DESC));
+                    db.insertWithOnConflict(AlexandriaContract.DescriptionEntry.TABLE_NAME, null,
+                            descValues, SQLiteDatabase.CONFLICT_REPLACE);
+                }
+                changes.books.add(_id);
                 break;
             }
             case AUTHOR:{
-                long _id = db.insert(AlexandriaContract.AuthorEntry.TABLE_NAME, null, values);
-                if ( _id > 0 )
-                    returnUri = AlexandriaContract.AuthorEntry.buildAuthorUri(values.getAsLong("_id"));
-                else
-                    throw new android.database.SQLException("Failed to insert row into " + uri);
+                // the name is interned, the row written is the link from the book to it
+                long _id = NameLinks.AUTHORS.insert(db, values);
+                returnUri = AlexandriaContract.AuthorEntry.buildAuthorUri(_id);
+                changes.books.add(_id);
                 break;
             }
             case CATEGORY: {
-                long _id = db.insert(AlexandriaContract.CategoryEntry.TABLE_NAME, null, values);
-                if (_id > 0)
-                    returnUri = AlexandriaContract.CategoryEntry.buildCategoryUri(values.getAsLong("_id"));
-                else
-                    throw new android.database.SQLException("Failed to insert row into " + uri);
+                long _id = NameLinks.CATEGORIES.insert(db, values);
+                returnUri = AlexandriaContract.CategoryEntry.buildCategoryUri(_id);
+                changes.books.add(_id);
                 break;
             }
             default:
@@ -245,63 +977,307 @@ public class BookProvider extends ContentProvider {
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        final long start = System.nanoTime();
         final SQLiteDatabase db = dbHelper.getWritableDatabase();
+        final boolean outerBatch = beginBatch(db);
+        boolean successful = false;
+        int rowsDeleted;
+        try {
+            rowsDeleted = deleteRows(db, uri, selection, selectionArgs);
+            successful = true;
+        } finally {
+            endBatch(db, outerBatch, successful);
+        }
+        metrics.record(ProviderMetrics.DELETE, matchName(uriMatcher.match(uri)),
+                System.nanoTime() - start, rowsDeleted);
+        return rowsDeleted;
+    }
+
+    private int deleteRows(SQLiteDatabase db, Uri uri, String selection, String[] selectionArgs) {
         final int match = uriMatcher.match(uri);
+        final PendingChanges changes = mPendingChanges.get();
         int rowsDeleted;
         switch (match) {
             case BOOK:
+                // authors, categories and descriptions go with their book (ON DELETE CASCADE)
+                selectBooks(db, AlexandriaContract.BookEntry.TABLE_NAME, selection, selectionArgs);
                 rowsDeleted = db.delete(
                         AlexandriaContract.BookEntry.TABLE_NAME, selection, selectionArgs);
                 break;
             case AUTHOR:
-                rowsDeleted = db.delete(
-                        AlexandriaContract.AuthorEntry.TABLE_NAME, selection, selectionArgs);
+                selectBooks(db, AlexandriaContract.AuthorEntry.TABLE_NAME, selection, selectionArgs);
+                rowsDeleted = NameLinks.AUTHORS.delete(db, selection, selectionArgs);
                 break;
             case CATEGORY:
-                rowsDeleted = db.delete(
-                        AlexandriaContract.CategoryEntry.TABLE_NAME, selection, selectionArgs);
+                selectBooks(db, AlexandriaContract.CategoryEntry.TABLE_NAME, selection, selectionArgs);
+                rowsDeleted = NameLinks.CATEGORIES.delete(db, selection, selectionArgs);
                 break;
             case BOOK_ID:
                 rowsDeleted = db.delete(
                         AlexandriaContract.BookEntry.TABLE_NAME,
-                        AlexandriaContract.BookEntry._ID + " = '" + ContentUris.parseId(uri) + "'",
-                        selectionArgs);
+                        idSelection(AlexandriaContract.BookEntry._ID, selection),
+                        idSelectionArgs(uri, selectionArgs));
+                changes.books.add(ContentUris.parseId(uri));
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         // Because a null deletes all rows
         if (selection == null || rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return rowsDeleted;
     }
 
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        final long start = System.nanoTime();
         final SQLiteDatabase db = dbHelper.getWritableDatabase();
+        final boolean outerBatch = beginBatch(db);
+        boolean successful = false;
+        int rowsUpdated;
+        try {
+            rowsUpdated = updateRows(db, uri, values, selection, selectionArgs);
+            successful = true;
+        } finally {
+            endBatch(db, outerBatch, successful);
+        }
+        metrics.record(ProviderMetrics.UPDATE, matchName(uriMatcher.match(uri)),
+                System.nanoTime() - start, rowsUpdated);
+        return rowsUpdated;
+    }
+
+    private int updateRows(SQLiteDatabase db, Uri uri, ContentValues values, String selection, String[] selectionArgs) {
         final int match = uriMatcher.match(uri);
         int rowsUpdated;
         switch (match) {
             case BOOK:
-                rowsUpdated = db.update(AlexandriaContract.BookEntry.TABLE_NAME, values, selection,
-                        selectionArgs);
+                selectBooks(db, AlexandriaContract.BookEntry.TABLE_NAME, selection, selectionArgs);
+                rowsUpdated = updateBooks(db, values, selection, selectionArgs);
                 break;
             case AUTHOR:
-                rowsUpdated = db.update(AlexandriaContract.AuthorEntry.TABLE_NAME, values, selection,
-                        selectionArgs);
+                selectBooks(db, AlexandriaContract.AuthorEntry.TABLE_NAME, selection, selectionArgs);
+                rowsUpdated = NameLinks.AUTHORS.update(db, values, selection, selectionArgs);
                 break;
             case CATEGORY:
-                rowsUpdated = db.update(AlexandriaContract.CategoryEntry.TABLE_NAME, values, selection,
-                        selectionArgs);
+                selectBooks(db, AlexandriaContract.CategoryEntry.TABLE_NAME, selection, selectionArgs);
+                rowsUpdated = NameLinks.CATEGORIES.update(db, values, selection, selectionArgs);
                 break;
 
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
+        // a row moved to another EAN changes that book as well
+        Long movedTo = values.getAsLong(AlexandriaContract.BookEntry._ID);
+        if (movedTo != null) {
+            mPendingChanges.get().books.add(movedTo);
+        }
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
+        }
+        return rowsUpdated;
+    }
+
+    /**
+     * selectBooks -- add the EANs a selection matches to the changed books, run before the write
+     *     so only those books have their derived rows refreshed. A write without a selection
+     *     touches the whole library, which is rebuilt instead.
+     * @param db
+     * @param table books or one of the name views, both keyed by EAN in _id
+     * @param selection
+     * @param selectionArgs
+     */
+    private void selectBooks(SQLiteDatabase db, String table, String selection, String[] selectionArgs) {
+        PendingChanges changes = mPendingChanges.get();
+        if (selection == null) {
+            changes.allBooks = true;
+            return;
+        }
+        Cursor cursor = db.query(true, table, new String[]{AlexandriaContract.BookEntry._ID},
+                selection, selectionArgs, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                changes.books.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * updateBooks -- update the list columns in books and the description in its own table
+     * @param db
+     * @param values
+     * @param selection
+     * @param selectionArgs
+     * @return number of books updated
+     */
+    private int updateBooks(SQLiteDatabase db, ContentValues values, String selection, String[] selectionArgs) {
+        ContentValues bookValues = new ContentValues(values);
+        bookValues.remove(AlexandriaContract.BookEntry.DESC);
+        int rowsUpdated = 0;
+        if (bookValues.size() > 0) {
+            rowsUpdated = db.update(AlexandriaContract.BookEntry.TABLE_NAME, bookValues, selection,
+                    selectionArgs);
+        }
+        if (values.containsKey(AlexandriaContract.BookEntry.DESC)) {
+            // write the description of every selected book, whether or not it had one before
+            String books = "SELECT " + AlexandriaContract.BookEntry._ID + " FROM " +
+                    AlexandriaContract.BookEntry.TABLE_NAME +
+                    ((selection == null) ? "" : " WHERE " + selection);
+            int argCount = (selectionArgs == null) ? 0 : selectionArgs.length;
+            Object[] bindArgs = new Object[argCount + 1];
+            bindArgs[0] = values.getAsString(AlexandriaContract.BookEntry.DESC);
+            for (int i = 0; i < argCount; i++) {
+                bindArgs[i + 1] = selectionArgs[i];
+            }
+            db.execSQL("INSERT OR REPLACE INTO " + AlexandriaContract.DescriptionEntry.TABLE_NAME +
+                    " (" + AlexandriaContract.DescriptionEntry._ID + ", " + AlexandriaContract.BookEntry.DESC + ")" +
+                    " SELECT " + AlexandriaContract.BookEntry._ID + ", ? FROM (" + books + ")", bindArgs);
+            if (bookValues.size() == 0) {
+                rowsUpdated = (int) DatabaseUtils.queryNumEntries(db,
+                        AlexandriaContract.BookEntry.TABLE_NAME, selection, selectionArgs);
+            }
         }
         return rowsUpdated;
     }
-}
\ No newline at end of file
+
+    /**
+     * bulkInsert -- insert all rows for the given uri in a single transaction and send one change
+     *     notification once the rows are committed
+     * @param uri
+     * @param values
+     * @return number of rows inserted
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        final long start = System.nanoTime();
+        final SQLiteDatabase db = dbHelper.getWritableDatabase();
+        final boolean outerBatch = beginBatch(db);
+        boolean successful = false;
+        try {
+            for (ContentValues value : values) {
+                insertRow(db, uri, value);
+            }
+            successful = true;
+        } finally {
+            endBatch(db, outerBatch, successful);
+        }
+        metrics.record(ProviderMetrics.BATCH, matchName(uriMatcher.match(uri)),
+                System.nanoTime() - start, values.length);
+        return values.length;
+    }
+
+    /**
+     * applyBatch -- apply all operations in a single transaction so a fetched book, its authors
+     *     and its categories are committed together, change notifications are coalesced and sent
+     *     once after the commit
+     * @param operations
+     * @return results of each operation
+     * @throws OperationApplicationException
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final long start = System.nanoTime();
+        final SQLiteDatabase db = dbHelper.getWritableDatabase();
+        final boolean outerBatch = beginBatch(db);
+        boolean successful = false;
+        ContentProviderResult[] results;
+        try {
+            results = super.applyBatch(operations);
+            successful = true;
+        } finally {
+            endBatch(db, outerBatch, successful);
+        }
+        metrics.record(ProviderMetrics.BATCH, "applyBatch", System.nanoTime() - start,
+                operations.size());
+        return results;
+    }
+
+    /**
+     * beginBatch -- start a transaction and start collecting changes for this thread, unless a
+     *     batch is already running on this thread in which case the write joins it
+     * @param db
+     * @return true when this call started the batch
+     */
+    private boolean beginBatch(SQLiteDatabase db) {
+        if (mPendingChanges.get() != null) {
+            return false;
+        }
+        mPendingChanges.set(new PendingChanges());
+        // non-exclusive so loaders keep reading from the write ahead log during the batch
+        db.beginTransactionNonExclusive();
+        return true;
+    }
+
+    /**
+     * endBatch -- when the outermost batch ends, refresh the derived tables of the changed
+     *     books and commit, then drop those books from the detail cache and hand the changes to
+     *     the notifier which coalesces them with other batches committed in the same short window
+     * @param db
+     * @param outerBatch
+     * @param successful
+     */
+    private void endBatch(SQLiteDatabase db, boolean outerBatch, boolean successful) {
+        if (!outerBatch) {
+            return;
+        }
+        PendingChanges changes = mPendingChanges.get();
+        boolean committed = false;
+        try {
+            if (successful) {
+                if (changes.allBooks) {
+                    BookIndexer.rebuildAll(db);
+                } else {
+                    BookIndexer.refreshBooks(db, changes.books);
+                }
+                db.setTransactionSuccessful();
+                committed = true;
+            }
+        } finally {
+            db.endTransaction();
+            mPendingChanges.remove();
+        }
+        if (committed) {
+            if (changes.allBooks) {
+                detailCache.invalidateAll();
+            } else {
+                detailCache.invalidate(changes.books);
+            }
+            notifier.post(changedUris(changes));
+        }
+    }
+
+    /**
+     * changedUris -- the explicit notifications of a batch plus the book, full book, search and
+     *     facet uris of every changed book, the notifier collapses these to one per collection
+     * @param changes
+     * @return uris to notify
+     */
+    private static Set<Uri> changedUris(PendingChanges changes) {
+        Set<Uri> uris = new LinkedHashSet<>(changes.notifications);
+        if (changes.allBooks) {
+            uris.add(AlexandriaContract.BookEntry.CONTENT_URI);
+            uris.add(AlexandriaContract.BookEntry.FULL_CONTENT_URI);
+            uris.add(AlexandriaContract.BookEntry.SEARCH_URI);
+            uris.add(AlexandriaContract.FacetEntry.CONTENT_URI);
+        } else if (!changes.books.isEmpty()) {
+            for (long ean : changes.books) {
+                uris.add(AlexandriaContract.BookEntry.buildBookUri(ean));
+                uris.add(AlexandriaContract.BookEntry.buildFullBookUri(ean));
+            }
+            uris.add(AlexandriaContract.BookEntry.SEARCH_URI);
+            uris.add(AlexandriaContract.FacetEntry.CONTENT_URI);
+        }
+        return uris;
+    }
+
+    /**
+     * notifyChange -- queue a change notification to be sent once the current batch commits
+     * @param uri
+     */
+    private void notifyChange(Uri uri) {
+        mPendingChanges.get().notifications.add(uri);
+    }
+}
@@ -0,0 +1,147 @@
+package it.jaschke.alexandria.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * BookStatements -- compiled single value lookups used by BookProvider.call(). Each statement is
+ *     compiled once and reused with bind arguments, so a lookup allocates no Cursor or
+ *     CursorWindow. Bindings live on the statement, so each use is synchronized on it.
+ */
+final class BookStatements {
+
+    private final DbHelper mDbHelper;
+
+    private SQLiteStatement mBookExists;
+    private SQLiteStatement mBookCount;
+    private SQLiteStatement mLookupFailure;
+    private SQLiteStatement mRecordFailure;
+
+    BookStatements(DbHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * bookExists -- check for a book without building a cursor
+     * @param ean
+     * @return true when the book is in the library
+     */
+    boolean bookExists(long ean) {
+        SQLiteStatement statement = bookExistsStatement();
+        synchronized (statement) {
+            statement.bindLong(1, ean);
+            return statement.simpleQueryForLong() != 0;
+        }
+    }
+
+    /**
+     * booksExist -- check many books with one compiled statement
+     * @param eans
+     * @return for each EAN, true when the book is in the library
+     */
+    boolean[] booksExist(long[] eans) {
+        boolean[] present = new boolean[eans.length];
+        SQLiteStatement statement = bookExistsStatement();
+        synchronized (statement) {
+            for (int i = 0; i < eans.length; i++) {
+                statement.bindLong(1, eans[i]);
+                present[i] = statement.simpleQueryForLong() != 0;
+            }
+        }
+        return present;
+    }
+
+    /**
+     * bookCount -- number of books in the library
+     * @return book count
+     */
+    long bookCount() {
+        SQLiteStatement statement;
+        synchronized (this) {
+            if (mBookCount == null) {
+                mBookCount = mDbHelper.getWritableDatabase().compileStatement(
+                        "SELECT count(*) FROM " + AlexandriaContract.BookEntry.TABLE_NAME);
+            }
+            statement = mBookCount;
+        }
+        synchronized (statement) {
+            return statement.simpleQueryForLong();
+        }
+    }
+
+    /**
+     * lookupFailures -- the unexpired lookup failure of each EAN
+     * @param eans
+     * @param now ms since the epoch
+     * @return for each EAN the failure or null
+     */
+    String[] lookupFailures(long[] eans, long now) {
+        String[] failures = new String[eans.length];
+        SQLiteStatement statement;
+        synchronized (this) {
+            if (mLookupFailure == null) {
+                // an empty string rather than no row, simpleQueryForString throws on no row
+                mLookupFailure = mDbHelper.getWritableDatabase().compileStatement(
+                        "SELECT coalesce((SELECT " + AlexandriaContract.LookupFailureEntry.FAILURE +
+                        " FROM " + AlexandriaContract.LookupFailureEntry.TABLE_NAME +
+                        " WHERE " + AlexandriaContract.LookupFailureEntry._ID + " = ? AND " +
+                        AlexandriaContract.LookupFailureEntry.EXPIRES + " > ?), '')");
+            }
+            statement = mLookupFailure;
+        }
+        synchronized (statement) {
+            for (int i = 0; i < eans.length; i++) {
+                statement.bindLong(1, eans[i]);
+                statement.bindLong(2, now);
+                String failure = statement.simpleQueryForString();
+                failures[i] = failure.isEmpty() ? null : failure;
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * recordFailure -- remember a failure for each EAN in one transaction, replacing any older one
+     * @param eans
+     * @param failure
+     * @param expires ms since the epoch
+     */
+    void recordFailure(long[] eans, String failure, long expires) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        SQLiteStatement statement;
+        synchronized (this) {
+            if (mRecordFailure == null) {
+                mRecordFailure = db.compileStatement("INSERT OR REPLACE INTO " +
+                        AlexandriaContract.LookupFailureEntry.TABLE_NAME + " (" +
+                        AlexandriaContract.LookupFailureEntry._ID + ", " +
+                        AlexandriaContract.LookupFailureEntry.FAILURE + ", " +
+                        AlexandriaContract.LookupFailureEntry.EXPIRES + ") VALUES (?, ?, ?)");
+            }
+            statement = mRecordFailure;
+        }
+        db.beginTransactionNonExclusive();
+        try {
+            synchronized (statement) {
+                for (long ean : eans) {
+                    statement.bindLong(1, ean);
+                    statement.bindString(2, failure);
+                    statement.bindLong(3, expires);
+                    statement.executeInsert();
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private synchronized SQLiteStatement bookExistsStatement() {
+        if (mBookExists == null) {
+            SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            mBookExists = db.compileStatement(
+                    "SELECT EXISTS (SELECT 1 FROM " + AlexandriaContract.BookEntry.TABLE_NAME +
+                    " WHERE " + AlexandriaContract.BookEntry._ID + " = ?)");
+        }
+        return mBookExists;
+    }
+}
@@ -0,0 +1,136 @@
+package it.jaschke.alexandria.data;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ChangeNotifier -- coalesces provider change notifications. Uris committed within a short
+ *     window are gathered and sent together, and several items of one collection (for example
+ *     fullbook/1 and fullbook/2) are replaced by a single notification of the collection. Cursors
+ *     register for descendants, so a loader on the collection or on any of its items reloads
+ *     once per window rather than once per row.
+ */
+final class ChangeNotifier {
+
+    // how long committed changes are gathered before observers are told
+    private static final long WINDOW_MS = 100;
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+
+    private final Set<Uri> mPending = new LinkedHashSet<>();
+    private boolean mScheduled = false;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    ChangeNotifier(ContentResolver resolver) {
+        mResolver = resolver;
+        HandlerThread thread = new HandlerThread(ChangeNotifier.class.getSimpleName());
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * post -- queue committed changes, they are sent at the end of the current window
+     * @param uris
+     */
+    void post(Collection<Uri> uris) {
+        if (uris.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            mPending.addAll(uris);
+            if (!mScheduled) {
+                mScheduled = true;
+                mHandler.postDelayed(mFlush, WINDOW_MS);
+            }
+        }
+    }
+
+    /**
+     * flushNow -- send the pending changes without waiting for the window to end, on the
+     *     notifier thread behind any flush already under way
+     * @param timeoutMs longest wait for the notifier thread
+     * @return true once every change posted before the call has been sent
+     */
+    boolean flushNow(long timeoutMs) {
+        final CountDownLatch sent = new CountDownLatch(1);
+        mHandler.removeCallbacks(mFlush);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+                sent.countDown();
+            }
+        });
+        try {
+            return sent.await(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void flush() {
+        Collection<Uri> uris;
+        synchronized (this) {
+            uris = collapse(mPending);
+            mPending.clear();
+            mScheduled = false;
+        }
+        for (Uri uri : uris) {
+            mResolver.notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * collapse -- keep a single item uri as is, but when a collection itself or more than one of
+     *     its items changed, notify the collection once
+     * @param uris
+     * @return uris to notify
+     */
+    static Collection<Uri> collapse(Collection<Uri> uris) {
+        Map<String, List<Uri>> byCollection = new LinkedHashMap<>();
+        for (Uri uri : uris) {
+            List<String> segments = uri.getPathSegments();
+            String collection = segments.isEmpty() ? "" : segments.get(0);
+            List<Uri> items = byCollection.get(collection);
+            if (items == null) {
+                items = new ArrayList<>();
+                byCollection.put(collection, items);
+            }
+            items.add(uri);
+        }
+
+        List<Uri> collapsed = new ArrayList<>();
+        for (Map.Entry<String, List<Uri>> entry : byCollection.entrySet()) {
+            List<Uri> items = entry.getValue();
+            if ((items.size() == 1) && (items.get(0).getPathSegments().size() > 1)) {
+                collapsed.add(items.get(0));
+            } else if (entry.getKey().isEmpty()) {
+                collapsed.add(AlexandriaContract.BASE_CONTENT_URI);
+            } else {
+                collapsed.add(AlexandriaContract.BASE_CONTENT_URI.buildUpon()
+                        .appendPath(entry.getKey()).build());
+            }
+        }
+        return collapsed;
+    }
+}
@@ -1,8 +1,12 @@
 package it.jaschke.alexandria.data;
 
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 import android.util.Log;
 
 /**
@@ -10,35 +14,301 @@ import android.util.Log;
  */
 public class DbHelper extends SQLiteOpenHelper {
 
-    private static final int DATABASE_VERSION = 1;
+    private static final String LOG_TAG = DbHelper.class.getSimpleName();
+
+    private static final int DATABASE_VERSION = 11;
     public static final String DATABASE_NAME = "alexandria.db";
 
+    // write ahead log tuning, checkpoint after ~4MB of WAL pages and trim the log back to 1MB
+    private static final int WAL_AUTOCHECKPOINT_PAGES = 1000;
+    private static final int WAL_JOURNAL_SIZE_LIMIT = 1024 * 1024;
+
+    // compiled statements kept per connection, enough for every provider uri type and the
+    //     call() lookups so repeated queries never recompile
+    private static final int SQL_CACHE_SIZE = 50;
+
+    // PRAGMA auto_vacuum value for incremental mode, free pages are kept until compact() runs
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    // schema version that switches the database to incremental auto vacuum
+    private static final int AUTO_VACUUM_VERSION = 11;
+
+    // link indexes from a name to its books, behind the books by author and category uris
+    public static final String AUTHOR_INDEX_NAME = "book_authors_author";
+    public static final String CATEGORY_INDEX_NAME = "book_categories_category";
+
+    /**
+     * Migration -- one ordered schema step that moves the database from (version - 1) to
+     *     version. onCreate builds the version 1 schema and then applies every step so new and
+     *     upgraded databases always end up with the same schema.
+     */
+    public static abstract class Migration {
+        public final int version;
+
+        Migration(int version) {
+            this.version = version;
+        }
+
+        public abstract void apply(SQLiteDatabase db);
+    }
+
+    // each step's SQL is written out as it shipped, never built from the contract, so renaming
+    //     a table or column there cannot change what an old step does. Schema changes go in a
+    //     new step.
+    private static final Migration[] MIGRATIONS = {
+            new Migration(2) {
+                @Override
+                public void apply(SQLiteDatabase db) {
+                    // covering indexes used by the full book joins (USING _id) and group_concat
+                    // of names
+                    db.execSQL("CREATE INDEX IF NOT EXISTS authors_id_author ON authors (_id, author)");
+                    db.execSQL("CREATE INDEX IF NOT EXISTS categories_id_category ON categories" +
+                            " (_id, category)");
+                }
+            },
+            new Migration(3) {
+                @Override
+                public void apply(SQLiteDatabase db) {
+                    // full text index behind the search uri, docid is the book EAN
+                    db.execSQL("CREATE VIRTUAL TABLE books_fts" +
+                            " USING fts4 (title, subtitle, description, author, category)");
+                    db.execSQL("INSERT INTO books_fts" +
+                            " (docid, title, subtitle, description, author, category)" +
+                            " SELECT _id, title, subtitle, description," +
+                            " (SELECT group_concat(author, ' ') FROM authors WHERE authors._id = books._id)," +
+                            " (SELECT group_concat(category, ' ') FROM categories WHERE categories._id = books._id)" +
+                            " FROM books");
+                }
+            },
+            new Migration(4) {
+                @Override
+                public void apply(SQLiteDatabase db) {
+                    // pre-joined authors and categories per book, read by the full book uris
+                    db.execSQL("CREATE TABLE book_summary (" +
+                            "_id INTEGER PRIMARY KEY, title TEXT, subtitle TEXT, imgurl TEXT," +
+                            " author TEXT, category TEXT)");
+                    db.execSQL("INSERT INTO book_summary" +
+                            " (_id, title, subtitle, imgurl, author, category)" +
+                            " SELECT _id, title, subtitle, imgurl," +
+                            " (SELECT group_concat(DISTINCT author) FROM authors WHERE authors._id = books._id)," +
+                            " (SELECT group_concat(DISTINCT category) FROM categories WHERE categories._id = books._id)" +
+                            " FROM books");
+                }
+            },
+            new Migration(5) {
+                @Override
+                public void apply(SQLiteDatabase db) {
+                    // move descriptions out of books so list rows stay small
+                    db.execSQL("CREATE TABLE book_descriptions (" +
+                            "_id INTEGER PRIMARY KEY, description TEXT)");
+                    db.execSQL("INSERT INTO book_descriptions" +
+                            " (_id, description) SELECT _id, description FROM books" +
+                            " WHERE description IS NOT NULL");
+                    db.execSQL("CREATE TABLE books_v5 (_id INTEGER PRIMARY KEY,title TEXT NOT NULL," +
+                            "subtitle TEXT ,imgurl TEXT, UNIQUE (_id) ON CONFLICT IGNORE)");
+                    db.execSQL("INSERT INTO books_v5 (_id, title, subtitle, imgurl)" +
+                            " SELECT _id, title, subtitle, imgurl FROM books");
+                    db.execSQL("DROP TABLE books");
+                    db.execSQL("ALTER TABLE books_v5 RENAME TO books");
+                }
+            },
+            new Migration(6) {
+                @Override
+                public void apply(SQLiteDatabase db) {
+                    // rebuild the tables that hang off books so deleting a book deletes its
+                    // authors, categories and description, rows already orphaned are purged
+                    db.execSQL("CREATE TABLE authors_v6 (_id INTEGER REFERENCES books (_id)" +
+                            " ON DELETE CASCADE, author TEXT)");
+                    db.execSQL("INSERT INTO authors_v6 (_id, author) SELECT _id, author FROM authors" +
+                            " WHERE _id IN (SELECT _id FROM books)");
+                    db.execSQL("DROP TABLE authors");
+                    db.execSQL("ALTER TABLE authors_v6 RENAME TO authors");
+                    db.execSQL("CREATE INDEX authors_id_author ON authors (_id, author)");
+
+                    db.execSQL("CREATE TABLE categories_v6 (_id INTEGER REFERENCES books (_id)" +
+                            " ON DELETE CASCADE, category TEXT)");
+                    db.execSQL("INSERT INTO categories_v6 (_id, category) SELECT _id, category" +
+                            " FROM categories WHERE _id IN (SELECT _id FROM books)");
+                    db.execSQL("DROP TABLE categories");
+                    db.execSQL("ALTER TABLE categories_v6 RENAME TO categories");
+                    db.execSQL("CREATE INDEX categories_id_category ON categories (_id, category)");
+
+                    db.execSQL("CREATE TABLE book_descriptions_v6 (_id INTEGER PRIMARY KEY" +
+                            " REFERENCES books (_id) ON DELETE CASCADE, description TEXT)");
+                    db.execSQL("INSERT INTO book_descriptions_v6 (_id, description)" +
+                            " SELECT _id, description FROM book_descriptions" +
+                            " WHERE _id IN (SELECT _id FROM books)");
+                    db.execSQL("DROP TABLE book_descriptions");
+                    db.execSQL("ALTER TABLE book_descriptions_v6 RENAME TO book_descriptions");
+                }
+            },
+            new Migration(7) {
+                @Override
+                public void apply(SQLiteDatabase db) {
+                    // intern author and category names, each book links to the names it uses.
+                    // authors and categories become views with the old columns so readers and
+                    // selections written against them keep working.
+                    db.execSQL("CREATE TABLE author_names (_id INTEGER PRIMARY KEY," +
+                            " name TEXT NOT NULL UNIQUE)");
+                    db.execSQL("INSERT INTO author_names (name) SELECT DISTINCT author FROM authors" +
+                            " WHERE author IS NOT NULL");
+                    db.execSQL("CREATE TABLE book_authors (" +
+                            "book_id INTEGER NOT NULL REFERENCES books (_id) ON DELETE CASCADE," +
+                            " author_id INTEGER NOT NULL REFERENCES author_names (_id)," +
+                            " UNIQUE (book_id, author_id) ON CONFLICT IGNORE)");
+                    db.execSQL("INSERT INTO book_authors (book_id, author_id)" +
+                            " SELECT authors._id, author_names._id FROM authors" +
+                            " JOIN author_names ON author_names.name = authors.author");
+                    db.execSQL("CREATE INDEX book_authors_author ON book_authors (author_id, book_id)");
+                    db.execSQL("DROP TABLE authors");
+                    db.execSQL("CREATE VIEW authors AS SELECT book_authors.rowid AS link_id," +
+                            " book_authors.book_id AS _id, author_names.name AS author" +
+                            " FROM book_authors JOIN author_names" +
+                            " ON author_names._id = book_authors.author_id");
+
+                    db.execSQL("CREATE TABLE category_names (_id INTEGER PRIMARY KEY," +
+                            " name TEXT NOT NULL UNIQUE)");
+                    db.execSQL("INSERT INTO category_names (name) SELECT DISTINCT category" +
+                            " FROM categories WHERE category IS NOT NULL");
+                    db.execSQL("CREATE TABLE book_categories (" +
+                            "book_id INTEGER NOT NULL REFERENCES books (_id) ON DELETE CASCADE," +
+                            " category_id INTEGER NOT NULL REFERENCES category_names (_id)," +
+                            " UNIQUE (book_id, category_id) ON CONFLICT IGNORE)");
+                    db.execSQL("INSERT INTO book_categories (book_id, category_id)" +
+                            " SELECT categories._id, category_names._id FROM categories" +
+                            " JOIN category_names ON category_names.name = categories.category");
+                    db.execSQL("CREATE INDEX book_categories_category ON book_categories" +
+                            " (category_id, book_id)");
+                    db.execSQL("DROP TABLE categories");
+                    db.execSQL("CREATE VIEW categories AS SELECT book_categories.rowid AS link_id," +
+                            " book_categories.book_id AS _id, category_names.name AS category" +
+                            " FROM book_categories JOIN category_names" +
+                            " ON category_names._id = book_categories.category_id");
+                }
+            },
+            new Migration(8) {
+                @Override
+                public void apply(SQLiteDatabase db) {
+                    // facet counts, kept by triggers so links removed by the ON DELETE CASCADE
+                    // of a book are counted too
+                    for (String[] facet : new String[][]{
+                            {"author_names", "book_authors", "author_id"},
+                            {"category_names", "book_categories", "category_id"}}) {
+                        String names = facet[0];
+                        String links = facet[1];
+                        String nameId = facet[2];
+                        db.execSQL("ALTER TABLE " + names + " ADD COLUMN book_count INTEGER NOT NULL DEFAULT 0");
+                        db.execSQL("UPDATE " + names + " SET book_count = (SELECT count(*) FROM " + links +
+                                " WHERE " + links + "." + nameId + " = " + names + "._id)");
+                        db.execSQL("CREATE TRIGGER " + links + "_count_insert AFTER INSERT ON " + links +
+                                " BEGIN UPDATE " + names + " SET book_count = book_count + 1" +
+                                " WHERE _id = NEW." + nameId + "; END");
+                        db.execSQL("CREATE TRIGGER " + links + "_count_delete AFTER DELETE ON " + links +
+                                " BEGIN UPDATE " + names + " SET book_count = book_count - 1" +
+                                " WHERE _id = OLD." + nameId + "; END");
+                        db.execSQL("CREATE TRIGGER " + links + "_count_update AFTER UPDATE OF " + nameId +
+                                " ON " + links +
+                                " BEGIN UPDATE " + names + " SET book_count = book_count - 1" +
+                                " WHERE _id = OLD." + nameId + ";" +
+                                " UPDATE " + names + " SET book_count = book_count + 1" +
+                                " WHERE _id = NEW." + nameId + "; END");
+                    }
+                }
+            },
+            new Migration(9) {
+                @Override
+                public void apply(SQLiteDatabase db) {
+                    // negative cache of metadata lookups, not tied to books
+                    db.execSQL("CREATE TABLE lookup_failures (_id INTEGER PRIMARY KEY," +
+                            " failure TEXT NOT NULL, expires INTEGER NOT NULL)");
+                }
+            },
+            new Migration(10) {
+                @Override
+                public void apply(SQLiteDatabase db) {
+                    // lookups to retry, not tied to books
+                    db.execSQL("CREATE TABLE pending_fetches (_id INTEGER PRIMARY KEY," +
+                            " attempts INTEGER NOT NULL, next_attempt INTEGER NOT NULL, failure TEXT)");
+                    db.execSQL("CREATE INDEX pending_fetches_next_attempt ON pending_fetches (next_attempt)");
+                }
+            },
+            new Migration(AUTO_VACUUM_VERSION) {
+                @Override
+                public void apply(SQLiteDatabase db) {
+                    // incremental auto vacuum so compact() only has to release free pages. The
+                    // mode takes effect with a VACUUM, which cannot run inside the upgrade
+                    // transaction, onOpen runs it once right after.
+                    db.execSQL("PRAGMA auto_vacuum = 2");
+                }
+            }
+    };
+
+    // set when the auto vacuum migration ran in this open, onOpen finishes it with a VACUUM
+    private boolean mVacuumPending = false;
+
     public DbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        // in WAL mode readers use their own pooled connections and never wait on BookService
+        // writes, older releases turn WAL on in onOpen instead
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    /**
+     * onOpen -- runs after onCreate or onUpgrade. Foreign keys, off by default in SQLite, are
+     *     needed for the ON DELETE CASCADE of links and descriptions but are only turned on
+     *     here: the version 1 authors and categories reference books, and the migrations that
+     *     rebuild books would fail on them while the upgrade transaction is open.
+     * @param db
+     */
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (db.isReadOnly()) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            // set for every pooled connection, not just this one
+            db.setForeignKeyConstraintsEnabled(true);
+        } else {
+            db.enableWriteAheadLogging();
+            db.execSQL("PRAGMA foreign_keys = ON");
+        }
+        if (mVacuumPending) {
+            // the setting is per connection until the VACUUM writes it to the file
+            mVacuumPending = false;
+            db.execSQL("PRAGMA auto_vacuum = " + AUTO_VACUUM_INCREMENTAL);
+            db.execSQL("VACUUM");
+        }
+        db.setMaxSqlCacheSize(SQL_CACHE_SIZE);
+        // rows replaced by REPLACE conflict handling fire delete triggers, keeps facet counts right
+        db.execSQL("PRAGMA recursive_triggers = ON");
+        pragma(db, "wal_autocheckpoint = " + WAL_AUTOCHECKPOINT_PAGES);
+        pragma(db, "journal_size_limit = " + WAL_JOURNAL_SIZE_LIMIT);
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
 
-        final String SQL_CREATE_BOOK_TABLE = "CREATE TABLE " + AlexandriaContract.BookEntry.TABLE_NAME + " ("+
-                AlexandriaContract.BookEntry._ID + " INTEGER PRIMARY KEY," +
-                AlexandriaContract.BookEntry.TITLE + " TEXT NOT NULL," +
-                AlexandriaContract.BookEntry.SUBTITLE + " TEXT ," +
-                AlexandriaContract.BookEntry.DESC + " TEXT ," +
-                AlexandriaContract.BookEntry.IMAGE_URL + " TEXT, " +
-                "UNIQUE ("+ AlexandriaContract.BookEntry._ID +") ON CONFLICT IGNORE)";
+        // the version 1 schema, frozen like the migrations that build on it
+        final String SQL_CREATE_BOOK_TABLE = "CREATE TABLE books (" +
+                "_id INTEGER PRIMARY KEY," +
+                "title TEXT NOT NULL," +
+                "subtitle TEXT ," +
+                "description TEXT ," +
+                "imgurl TEXT, " +
+                "UNIQUE (_id) ON CONFLICT IGNORE)";
 
-        final String SQL_CREATE_AUTHOR_TABLE = "CREATE TABLE " + AlexandriaContract.AuthorEntry.TABLE_NAME + " ("+
-                AlexandriaContract.AuthorEntry._ID + " INTEGER," +
-                AlexandriaContract.AuthorEntry.AUTHOR + " TEXT," +
-                " FOREIGN KEY (" + AlexandriaContract.AuthorEntry._ID + ") REFERENCES " +
-                AlexandriaContract.BookEntry.TABLE_NAME + " (" + AlexandriaContract.BookEntry._ID + "))";
+        final String SQL_CREATE_AUTHOR_TABLE = "CREATE TABLE authors (" +
+                "_id INTEGER," +
+                "author TEXT," +
+                " FOREIGN KEY (_id) REFERENCES books (_id))";
 
-        final String SQL_CREATE_CATEGORY_TABLE = "CREATE TABLE " + AlexandriaContract.CategoryEntry.TABLE_NAME + " ("+
-                AlexandriaContract.CategoryEntry._ID + " INTEGER," +
-                AlexandriaContract.CategoryEntry.CATEGORY + " TEXT," +
-                " FOREIGN KEY (" + AlexandriaContract.CategoryEntry._ID + ") REFERENCES " +
-                AlexandriaContract.BookEntry.TABLE_NAME + " (" + AlexandriaContract.BookEntry._ID + "))";
+        final String SQL_CREATE_CATEGORY_TABLE = "CREATE TABLE categories (" +
+                "_id INTEGER," +
+                "category TEXT," +
+                " FOREIGN KEY (_id) REFERENCES books (_id))";
 
 
         Log.d("sql-statments",SQL_CREATE_BOOK_TABLE);
@@ -49,10 +319,104 @@ public class DbHelper extends SQLiteOpenHelper {
         db.execSQL(SQL_CREATE_AUTHOR_TABLE);
         db.execSQL(SQL_CREATE_CATEGORY_TABLE);
 
+        // the tables above are the version 1 schema, bring it up to date
+        applyMigrations(db, 1, DATABASE_VERSION);
+        mVacuumPending = true;
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        applyMigrations(db, oldVersion, newVersion);
+        mVacuumPending = (oldVersion < AUTO_VACUUM_VERSION) && (newVersion >= AUTO_VACUUM_VERSION);
+    }
+
+    /**
+     * applyMigrations -- apply, in order, each schema step after oldVersion up to and including
+     *     newVersion. Called inside the open helper's transaction so a failed step leaves the
+     *     database at oldVersion.
+     * @param db
+     * @param oldVersion
+     * @param newVersion
+     */
+    public static void applyMigrations(SQLiteDatabase db, int oldVersion, int newVersion) {
+        for (Migration migration : MIGRATIONS) {
+            if ((migration.version > oldVersion) && (migration.version <= newVersion)) {
+                Log.d(LOG_TAG, "applyMigrations: applying version " + migration.version);
+                migration.apply(db);
+            }
+        }
+    }
+
+    /**
+     * checkpoint -- copy the write ahead log back into the database without blocking readers or
+     *     writers, used after large batches so the log does not keep growing
+     * @return number of WAL frames checkpointed, -1 when the database is not in WAL mode
+     */
+    public int checkpoint() {
+        Cursor cursor = getWritableDatabase().rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+        try {
+            // columns are busy, frames in the log and frames checkpointed
+            if (cursor.moveToFirst() && (cursor.getColumnCount() >= 3)) {
+                Log.d(LOG_TAG, "checkpoint: " + cursor.getInt(2) + " of " + cursor.getInt(1) + " frames");
+                return cursor.getInt(2);
+            }
+            return -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * compact -- drop unused author and category names and give free pages back to the file
+     *     system once enough have been freed, the database is in incremental auto vacuum mode
+     *     (see AUTO_VACUUM_VERSION) so this only releases the pages freed since. Runs outside
+     *     any transaction, call it from a background thread.
+     * @param minFreePages free pages needed before any are released
+     * @return number of pages reclaimed
+     */
+    public int compact(int minFreePages) {
+        SQLiteDatabase db = getWritableDatabase();
+        try {
+            // names no book links to any more
+            db.delete(AlexandriaContract.AuthorNameEntry.TABLE_NAME,
+                    AlexandriaContract.AuthorNameEntry._ID + " NOT IN (SELECT " +
+                    AlexandriaContract.BookAuthorEntry.AUTHOR_ID + " FROM " +
+                    AlexandriaContract.BookAuthorEntry.TABLE_NAME + ")", null);
+            db.delete(AlexandriaContract.CategoryNameEntry.TABLE_NAME,
+                    AlexandriaContract.CategoryNameEntry._ID + " NOT IN (SELECT " +
+                    AlexandriaContract.BookCategoryEntry.CATEGORY_ID + " FROM " +
+                    AlexandriaContract.BookCategoryEntry.TABLE_NAME + ")", null);
+            // lookup failures that would be looked up again anyway
+            db.delete(AlexandriaContract.LookupFailureEntry.TABLE_NAME,
+                    AlexandriaContract.LookupFailureEntry.EXPIRES + " <= ?",
+                    new String[]{String.valueOf(System.currentTimeMillis())});
+
+            long before = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+            long free = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+            if ((free > 0) && (free >= minFreePages)) {
+                // incremental_vacuum frees one page per row stepped, getCount() steps them all
+                Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum", null);
+                cursor.getCount();
+                cursor.close();
+            }
+            int reclaimed = (int) (before - DatabaseUtils.longForQuery(db, "PRAGMA page_count", null));
+            Log.d(LOG_TAG, "compact: reclaimed " + reclaimed + " of " + before + " pages");
+            return reclaimed;
+        } catch (SQLiteException e) {
+            // a busy database is compacted next time
+            Log.e(LOG_TAG, "compact: " + e.getMessage());
+            return 0;
+        }
+    }
 
+    /**
+     * pragma -- run a PRAGMA that returns its new value, execSQL cannot be used for these
+     * @param db
+     * @param pragma
+     */
+    private static void pragma(SQLiteDatabase db, String pragma) {
+        Cursor cursor = db.rawQuery("PRAGMA " + pragma, null);
+        cursor.moveToFirst();
+        cursor.close();
     }
 }
@@ -0,0 +1,139 @@
+package it.jaschke.alexandria.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.LruCache;
+
+import java.util.Collection;
+
+/**
+ * DetailCache -- the full detail rows of recently opened books keyed by EAN, bounded by the
+ *     approximate memory the rows hold. BookProvider serves detail queries from here and drops
+ *     the books each committed write touched, so BookDetail and AddBook reopening the same
+ *     titles skip the database entirely.
+ */
+final class DetailCache {
+
+    // roughly a few hundred books with typical descriptions
+    private static final int MAX_BYTES = 512 * 1024;
+
+    // per row overhead of the record, its arrays and the cache entry
+    private static final int ROW_OVERHEAD_BYTES = 64;
+
+    /**
+     * Detail -- one cached detail row
+     */
+    private static final class Detail {
+        final String[] columns;
+        final String[] values;
+        final int bytes;
+
+        Detail(String[] columns, String[] values) {
+            this.columns = columns;
+            this.values = values;
+            int bytes = ROW_OVERHEAD_BYTES;
+            for (String value : values) {
+                bytes += (value == null) ? 4 : 2 * value.length() + 40;
+            }
+            this.bytes = bytes;
+        }
+    }
+
+    private final LruCache<Long, Detail> mCache = new LruCache<Long, Detail>(MAX_BYTES) {
+        @Override
+        protected int sizeOf(Long ean, Detail detail) {
+            return detail.bytes;
+        }
+    };
+
+    // bumped on every invalidation, a row read before a write committed is not cached after it
+    private long mGeneration = 0;
+
+    /**
+     * generation -- take before reading a row from the database, pass to put
+     * @return current generation
+     */
+    synchronized long generation() {
+        return mGeneration;
+    }
+
+    /**
+     * get -- cursor over the cached detail row of a book
+     * @param ean
+     * @return single row cursor or null on a miss
+     */
+    Cursor get(long ean) {
+        Detail detail = mCache.get(ean);
+        return (detail == null) ? null : toCursor(detail);
+    }
+
+    /**
+     * put -- cache the detail row the cursor is on and return a cursor over the copy, the given
+     *     cursor is closed. A book that is not there is not cached.
+     * @param ean
+     * @param cursor
+     * @param generation value of generation() taken before the query ran
+     * @return cursor over the row
+     */
+    Cursor put(long ean, Cursor cursor, long generation) {
+        try {
+            if (!cursor.moveToFirst()) {
+                return new MatrixCursor(cursor.getColumnNames(), 0);
+            }
+            String[] values = new String[cursor.getColumnCount()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = cursor.getString(i);
+            }
+            Detail detail = new Detail(cursor.getColumnNames(), values);
+            synchronized (this) {
+                if (generation == mGeneration) {
+                    mCache.put(ean, detail);
+                }
+            }
+            return toCursor(detail);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * invalidate -- drop the given books once their change has committed
+     * @param eans
+     */
+    synchronized void invalidate(Collection<Long> eans) {
+        mGeneration++;
+        for (Long ean : eans) {
+            mCache.remove(ean);
+        }
+    }
+
+    /**
+     * invalidateAll -- drop every book, used when a write does not tell us which books changed
+     */
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mCache.evictAll();
+    }
+
+    int hitCount() {
+        return mCache.hitCount();
+    }
+
+    int missCount() {
+        return mCache.missCount();
+    }
+
+    int evictionCount() {
+        return mCache.evictionCount();
+    }
+
+    int size() {
+        return mCache.size();
+    }
+
+    private static Cursor toCursor(Detail detail) {
+        MatrixCursor cursor = new MatrixCursor(detail.columns, 1);
+        cursor.addRow(detail.values);
+        return cursor;
+    }
+}
@@ -0,0 +1,294 @@
+package it.jaschke.alexandria.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * LibraryBackup -- streams the library to and from a compact backup file. The file is gzipped
+ *     and holds a header (MAGIC, FORMAT_VERSION) followed by tagged records: every book, then
+ *     every author and category link, then an end record with the book count. Rows are read
+ *     from cursors and written to compiled statements one at a time, so memory use does not
+ *     depend on the size of the library.
+ */
+final class LibraryBackup {
+
+    private static final int MAGIC = 0x414c5842; // "ALXB"
+    private static final int FORMAT_VERSION = 1;
+
+    private static final byte RECORD_BOOK = 'B';
+    private static final byte RECORD_AUTHOR = 'A';
+    private static final byte RECORD_CATEGORY = 'C';
+    private static final byte RECORD_END = 'E';
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // longest string a backup may hold, far above any description, a corrupt length fails the
+    // restore instead of allocating whatever it claims
+    private static final int MAX_STRING_BYTES = 1024 * 1024;
+
+    private LibraryBackup() {
+    }
+
+    /**
+     * export -- write every book with its description, authors and categories
+     * @param db
+     * @param out closed when done
+     * @return number of books written
+     * @throws IOException
+     */
+    static int export(SQLiteDatabase db, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(
+                new BufferedOutputStream(new GZIPOutputStream(out, BUFFER_SIZE), BUFFER_SIZE));
+        int books = 0;
+        try {
+            data.writeInt(MAGIC);
+            data.writeInt(FORMAT_VERSION);
+
+            Cursor cursor = db.rawQuery("SELECT " +
+                    AlexandriaContract.BookEntry.TABLE_NAME + "." + AlexandriaContract.BookEntry._ID + ", " +
+                    AlexandriaContract.BookEntry.TITLE + ", " +
+                    AlexandriaContract.BookEntry.SUBTITLE + ", " +
+                    AlexandriaContract.BookEntry.IMAGE_URL + ", " +
+                    AlexandriaContract.BookEntry.DESC +
+                    " FROM " + AlexandriaContract.BookEntry.TABLE_NAME + " LEFT OUTER JOIN " +
+                    AlexandriaContract.DescriptionEntry.TABLE_NAME +
+                    " USING (" + AlexandriaContract.BookEntry._ID + ")", null);
+            try {
+                while (cursor.moveToNext()) {
+                    data.writeByte(RECORD_BOOK);
+                    data.writeLong(cursor.getLong(0));
+                    writeString(data, cursor.getString(1));
+                    writeString(data, cursor.getString(2));
+                    writeString(data, cursor.getString(3));
+                    writeString(data, cursor.getString(4));
+                    books++;
+                }
+            } finally {
+                cursor.close();
+            }
+
+            exportLinks(db, data, RECORD_AUTHOR, AlexandriaContract.AuthorEntry.TABLE_NAME,
+                    AlexandriaContract.AuthorEntry.AUTHOR);
+            exportLinks(db, data, RECORD_CATEGORY, AlexandriaContract.CategoryEntry.TABLE_NAME,
+                    AlexandriaContract.CategoryEntry.CATEGORY);
+
+            data.writeByte(RECORD_END);
+            data.writeInt(books);
+        } finally {
+            data.close();
+        }
+        return books;
+    }
+
+    private static void exportLinks(SQLiteDatabase db, DataOutputStream data, byte record,
+                                    String view, String nameColumn) throws IOException {
+        Cursor cursor = db.query(view, new String[]{AlexandriaContract.AuthorEntry._ID, nameColumn},
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                data.writeByte(record);
+                data.writeLong(cursor.getLong(0));
+                writeString(data, cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * restore -- replace the library with the contents of a backup. Must be called inside a
+     *     transaction, the derived tables are left for the caller to rebuild. The name indexes
+     *     are dropped for the load and built once at the end.
+     * @param db
+     * @param in closed when done
+     * @return number of books restored
+     * @throws IOException when the file is not a backup, is from a newer version or is cut short
+     */
+    static int restore(SQLiteDatabase db, InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(
+                new BufferedInputStream(new GZIPInputStream(in, BUFFER_SIZE), BUFFER_SIZE));
+        SQLiteStatement insertBook = null;
+        SQLiteStatement insertDescription = null;
+        SQLiteStatement insertAuthor = null;
+        SQLiteStatement linkAuthor = null;
+        SQLiteStatement insertCategory = null;
+        SQLiteStatement linkCategory = null;
+        try {
+            if (data.readInt() != MAGIC) {
+                throw new IOException("Not a library backup");
+            }
+            int version = data.readInt();
+            if (version > FORMAT_VERSION) {
+                throw new IOException("Unsupported backup version " + version);
+            }
+
+            // links and descriptions go with their books, then the unused names
+            db.delete(AlexandriaContract.BookEntry.TABLE_NAME, null, null);
+            db.delete(AlexandriaContract.AuthorNameEntry.TABLE_NAME, null, null);
+            db.delete(AlexandriaContract.CategoryNameEntry.TABLE_NAME, null, null);
+            db.execSQL("DROP INDEX IF EXISTS " + DbHelper.AUTHOR_INDEX_NAME);
+            db.execSQL("DROP INDEX IF EXISTS " + DbHelper.CATEGORY_INDEX_NAME);
+
+            insertBook = db.compileStatement("INSERT INTO " + AlexandriaContract.BookEntry.TABLE_NAME +
+                    " (" + AlexandriaContract.BookEntry._ID + ", " + AlexandriaContract.BookEntry.TITLE + ", " +
+                    AlexandriaContract.BookEntry.SUBTITLE + ", " + AlexandriaContract.BookEntry.IMAGE_URL +
+                    ") VALUES (?, ?, ?, ?)");
+            insertDescription = db.compileStatement("INSERT INTO " +
+                    AlexandriaContract.DescriptionEntry.TABLE_NAME + " (" +
+                    AlexandriaContract.DescriptionEntry._ID + ", " + AlexandriaContract.BookEntry.DESC +
+                    ") VALUES (?, ?)");
+            insertAuthor = compileInsertName(db, AlexandriaContract.AuthorNameEntry.TABLE_NAME);
+            linkAuthor = compileLinkName(db, AlexandriaContract.BookAuthorEntry.TABLE_NAME,
+                    AlexandriaContract.BookAuthorEntry.BOOK_ID, AlexandriaContract.BookAuthorEntry.AUTHOR_ID,
+                    AlexandriaContract.AuthorNameEntry.TABLE_NAME);
+            insertCategory = compileInsertName(db, AlexandriaContract.CategoryNameEntry.TABLE_NAME);
+            linkCategory = compileLinkName(db, AlexandriaContract.BookCategoryEntry.TABLE_NAME,
+                    AlexandriaContract.BookCategoryEntry.BOOK_ID, AlexandriaContract.BookCategoryEntry.CATEGORY_ID,
+                    AlexandriaContract.CategoryNameEntry.TABLE_NAME);
+
+            int books = 0;
+            while (true) {
+                byte record = data.readByte();
+                if (record == RECORD_END) {
+                    int expected = data.readInt();
+                    if (expected != books) {
+                        throw new IOException("Backup holds " + expected + " books, read " + books);
+                    }
+                    break;
+                }
+                long ean = data.readLong();
+                switch (record) {
+                    case RECORD_BOOK:
+                        bind(insertBook, 1, ean);
+                        bind(insertBook, 2, readString(data));
+                        bind(insertBook, 3, readString(data));
+                        bind(insertBook, 4, readString(data));
+                        insertBook.executeInsert();
+                        String description = readString(data);
+                        if (description != null) {
+                            bind(insertDescription, 1, ean);
+                            bind(insertDescription, 2, description);
+                            insertDescription.executeInsert();
+                        }
+                        books++;
+                        break;
+                    case RECORD_AUTHOR:
+                        restoreLink(insertAuthor, linkAuthor, ean, readString(data));
+                        break;
+                    case RECORD_CATEGORY:
+                        restoreLink(insertCategory, linkCategory, ean, readString(data));
+                        break;
+                    default:
+                        throw new IOException("Unknown backup record " + record);
+                }
+            }
+
+            db.execSQL("CREATE INDEX " + DbHelper.AUTHOR_INDEX_NAME + " ON " +
+                    AlexandriaContract.BookAuthorEntry.TABLE_NAME + " (" +
+                    AlexandriaContract.BookAuthorEntry.AUTHOR_ID + ", " +
+                    AlexandriaContract.BookAuthorEntry.BOOK_ID + ")");
+            db.execSQL("CREATE INDEX " + DbHelper.CATEGORY_INDEX_NAME + " ON " +
+                    AlexandriaContract.BookCategoryEntry.TABLE_NAME + " (" +
+                    AlexandriaContract.BookCategoryEntry.CATEGORY_ID + ", " +
+                    AlexandriaContract.BookCategoryEntry.BOOK_ID + ")");
+            return books;
+        } catch (EOFException e) {
+            throw new IOException("Backup is cut short", e);
+        } finally {
+            close(insertBook);
+            close(insertDescription);
+            close(insertAuthor);
+            close(linkAuthor);
+            close(insertCategory);
+            close(linkCategory);
+            data.close();
+        }
+    }
+
+    private static SQLiteStatement compileInsertName(SQLiteDatabase db, String nameTable) {
+        return db.compileStatement("INSERT OR IGNORE INTO " + nameTable + " (" +
+                AlexandriaContract.AuthorNameEntry.NAME + ") VALUES (?)");
+    }
+
+    private static SQLiteStatement compileLinkName(SQLiteDatabase db, String linkTable,
+                                                   String bookColumn, String nameColumn, String nameTable) {
+        return db.compileStatement("INSERT INTO " + linkTable + " (" + bookColumn + ", " + nameColumn +
+                ") SELECT ?, " + AlexandriaContract.AuthorNameEntry._ID + " FROM " + nameTable +
+                " WHERE " + AlexandriaContract.AuthorNameEntry.NAME + " = ?");
+    }
+
+    private static void restoreLink(SQLiteStatement insertName, SQLiteStatement link, long ean,
+                                    String name) {
+        if (name == null) {
+            return;
+        }
+        insertName.bindString(1, name);
+        insertName.executeInsert();
+        link.bindLong(1, ean);
+        link.bindString(2, name);
+        link.executeInsert();
+    }
+
+    private static void bind(SQLiteStatement statement, int index, long value) {
+        statement.bindLong(index, value);
+    }
+
+    private static void bind(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    private static void close(SQLiteStatement statement) {
+        if (statement != null) {
+            statement.close();
+        }
+    }
+
+    /**
+     * writeString -- length prefixed UTF-8, -1 for null. Unlike writeUTF there is no 64KB limit
+     *     so long descriptions survive.
+     * @param data
+     * @param value
+     * @throws IOException
+     */
+    private static void writeString(DataOutputStream data, String value) throws IOException {
+        if (value == null) {
+            data.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    private static String readString(DataInputStream data) throws IOException {
+        int length = data.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > MAX_STRING_BYTES) {
+            throw new IOException("Backup string of " + length + " bytes");
+        }
+        byte[] bytes = new byte[length];
+        data.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
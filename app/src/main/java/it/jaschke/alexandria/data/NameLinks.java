@@ -0,0 +1,151 @@
+package it.jaschke.alexandria.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.BaseColumns;
+
+/**
+ * NameLinks -- writes to the authors and categories views. Each name is interned once in its
+ *     dictionary table and books point at it through a link table, the view joins the two back
+ *     into the (_id, name) rows callers have always used.
+ */
+final class NameLinks {
+
+    static final NameLinks AUTHORS = new NameLinks(
+            AlexandriaContract.AuthorEntry.TABLE_NAME,
+            AlexandriaContract.AuthorEntry.AUTHOR,
+            AlexandriaContract.AuthorNameEntry.TABLE_NAME,
+            AlexandriaContract.BookAuthorEntry.TABLE_NAME,
+            AlexandriaContract.BookAuthorEntry.BOOK_ID,
+            AlexandriaContract.BookAuthorEntry.AUTHOR_ID);
+
+    static final NameLinks CATEGORIES = new NameLinks(
+            AlexandriaContract.CategoryEntry.TABLE_NAME,
+            AlexandriaContract.CategoryEntry.CATEGORY,
+            AlexandriaContract.CategoryNameEntry.TABLE_NAME,
+            AlexandriaContract.BookCategoryEntry.TABLE_NAME,
+            AlexandriaContract.BookCategoryEntry.BOOK_ID,
+            AlexandriaContract.BookCategoryEntry.CATEGORY_ID);
+
+    // columns shared by both dictionary tables
+    private static final String NAME_ID = BaseColumns._ID;
+    private static final String NAME = AlexandriaContract.AuthorNameEntry.NAME;
+
+    private final String mView;
+    private final String mViewName;
+    private final String mNameTable;
+    private final String mLinkTable;
+    private final String mBookColumn;
+    private final String mNameColumn;
+
+    private NameLinks(String view, String viewName, String nameTable, String linkTable,
+                      String bookColumn, String nameColumn) {
+        mView = view;
+        mViewName = viewName;
+        mNameTable = nameTable;
+        mLinkTable = linkTable;
+        mBookColumn = bookColumn;
+        mNameColumn = nameColumn;
+    }
+
+    /**
+     * intern -- find the id of a name, adding it to the dictionary the first time it is seen
+     * @param db
+     * @param name
+     * @return name id
+     */
+    long intern(SQLiteDatabase db, String name) {
+        if (name == null) {
+            throw new SQLException("Missing " + mViewName + " for " + mView);
+        }
+        Cursor cursor = db.query(mNameTable, new String[]{NAME_ID}, NAME + " = ?",
+                new String[]{name}, null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                return cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        ContentValues values = new ContentValues();
+        values.put(NAME, name);
+        long nameId = db.insert(mNameTable, null, values);
+        if (nameId < 0) {
+            throw new SQLException("Failed to insert " + name + " into " + mNameTable);
+        }
+        return nameId;
+    }
+
+    /**
+     * insert -- link a book to a name, linking the same name twice is ignored
+     * @param db
+     * @param values _id of the book and the name column of the view
+     * @return EAN of the book
+     */
+    long insert(SQLiteDatabase db, ContentValues values) {
+        Long ean = values.getAsLong(BaseColumns._ID);
+        if (ean == null) {
+            throw new SQLException("Missing " + BaseColumns._ID + " for " + mView);
+        }
+        ContentValues link = new ContentValues();
+        link.put(mBookColumn, ean);
+        link.put(mNameColumn, intern(db, values.getAsString(mViewName)));
+        db.insertWithOnConflict(mLinkTable, null, link, SQLiteDatabase.CONFLICT_IGNORE);
+        return ean;
+    }
+
+    /**
+     * delete -- remove the links behind the view rows matching the selection
+     * @param db
+     * @param selection selection on the view columns
+     * @param selectionArgs
+     * @return number of rows deleted
+     */
+    int delete(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        return db.delete(mLinkTable, linkSelection(selection), selectionArgs);
+    }
+
+    /**
+     * update -- point the links behind the matching view rows at another book or name, a link
+     *     that would duplicate an existing one replaces it
+     * @param db
+     * @param values _id and/or the name column of the view
+     * @param selection selection on the view columns
+     * @param selectionArgs
+     * @return number of rows updated
+     */
+    int update(SQLiteDatabase db, ContentValues values, String selection, String[] selectionArgs) {
+        ContentValues link = new ContentValues();
+        if (values.containsKey(BaseColumns._ID)) {
+            link.put(mBookColumn, values.getAsLong(BaseColumns._ID));
+        }
+        if (values.containsKey(mViewName)) {
+            link.put(mNameColumn, intern(db, values.getAsString(mViewName)));
+        }
+        if (link.size() != values.size()) {
+            throw new IllegalArgumentException("Only " + BaseColumns._ID + " and " + mViewName +
+                    " can be updated in " + mView);
+        }
+        return db.updateWithOnConflict(mLinkTable, link, linkSelection(selection), selectionArgs,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * booksSelection -- selection on a table keyed by EAN for the books linked to one name,
+     *     the name is the only selection argument
+     * @param idColumn EAN column of the table being queried
+     * @return selection
+     */
+    String booksSelection(String idColumn) {
+        return idColumn + " IN (SELECT " + mBookColumn + " FROM " + mLinkTable +
+                " WHERE " + mNameColumn + " IN (SELECT " + NAME_ID + " FROM " + mNameTable +
+                " WHERE " + NAME + " = ?))";
+    }
+
+    private String linkSelection(String selection) {
+        return "rowid IN (SELECT " + AlexandriaContract.AuthorEntry.LINK_ID + " FROM " + mView +
+                ((selection == null) ? "" : " WHERE " + selection) + ")";
+    }
+}
@@ -0,0 +1,124 @@
+package it.jaschke.alexandria.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.Random;
+
+/**
+ * PendingFetches -- the durable queue of EANs whose lookup failed for want of a network or a
+ *     server. Each failure pushes the next attempt back exponentially, with jitter so a room
+ *     full of scanners does not retry in step, and an EAN is dropped after MAX_ATTEMPTS.
+ */
+final class PendingFetches {
+
+    static final long BASE_DELAY_MS = 30 * 1000;
+    static final long MAX_DELAY_MS = 60 * 60 * 1000;
+    static final int MAX_ATTEMPTS = 12;
+
+    private static final Random sRandom = new Random();
+
+    private PendingFetches() {
+    }
+
+    /**
+     * delay -- time before the next attempt after the given number of failed ones, between half
+     *     and all of BASE_DELAY_MS * 2^(attempts - 1), capped at MAX_DELAY_MS
+     * @param attempts failed attempts so far, at least 1
+     * @param random
+     * @return delay in ms
+     */
+    static long delay(int attempts, Random random) {
+        long delay = BASE_DELAY_MS << Math.min(attempts - 1, 20);
+        delay = Math.min(delay, MAX_DELAY_MS);
+        return (delay / 2) + (long) (random.nextDouble() * (delay / 2));
+    }
+
+    /**
+     * queue -- add the EANs to the queue or count another failed attempt for those already in it
+     * @param db inside a transaction
+     * @param eans
+     * @param failure BookService.FETCH_* reason of the last attempt
+     * @param now ms since the epoch
+     * @return number of EANs dropped after too many attempts
+     */
+    static int queue(SQLiteDatabase db, long[] eans, String failure, long now) {
+        int dropped = 0;
+        for (long ean : eans) {
+            String[] idArgs = {String.valueOf(ean)};
+            int attempts = 1 + (int) DatabaseUtils.longForQuery(db, "SELECT coalesce((SELECT " +
+                    AlexandriaContract.PendingFetchEntry.ATTEMPTS + " FROM " +
+                    AlexandriaContract.PendingFetchEntry.TABLE_NAME + " WHERE " +
+                    AlexandriaContract.PendingFetchEntry._ID + " = ?), 0)", idArgs);
+            if (attempts > MAX_ATTEMPTS) {
+                db.delete(AlexandriaContract.PendingFetchEntry.TABLE_NAME,
+                        AlexandriaContract.PendingFetchEntry._ID + " = ?", idArgs);
+                dropped++;
+                continue;
+            }
+            ContentValues values = new ContentValues();
+            values.put(AlexandriaContract.PendingFetchEntry._ID, ean);
+            values.put(AlexandriaContract.PendingFetchEntry.ATTEMPTS, attempts);
+            values.put(AlexandriaContract.PendingFetchEntry.NEXT_ATTEMPT, now + delay(attempts, sRandom));
+            values.put(AlexandriaContract.PendingFetchEntry.FAILURE, failure);
+            db.insertWithOnConflict(AlexandriaContract.PendingFetchEntry.TABLE_NAME, null, values,
+                    SQLiteDatabase.CONFLICT_REPLACE);
+        }
+        return dropped;
+    }
+
+    /**
+     * due -- the next page of queued EANs in EAN order
+     * @param db
+     * @param afterEan keyset position, 0 for the first page
+     * @param all true to ignore the backoff, used when the network comes back
+     * @param now ms since the epoch
+     * @param limit page size
+     * @return EANs to try now
+     */
+    static long[] due(SQLiteDatabase db, long afterEan, boolean all, long now, int limit) {
+        String selection = AlexandriaContract.PendingFetchEntry._ID + " > ?";
+        String[] selectionArgs = {String.valueOf(afterEan)};
+        if (!all) {
+            selection += " AND " + AlexandriaContract.PendingFetchEntry.NEXT_ATTEMPT + " <= ?";
+            selectionArgs = new String[]{String.valueOf(afterEan), String.valueOf(now)};
+        }
+        Cursor cursor = db.query(AlexandriaContract.PendingFetchEntry.TABLE_NAME,
+                new String[]{AlexandriaContract.PendingFetchEntry._ID}, selection, selectionArgs,
+                null, null, AlexandriaContract.PendingFetchEntry._ID, String.valueOf(limit));
+        try {
+            long[] eans = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                eans[i] = cursor.getLong(0);
+            }
+            return eans;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * remove -- take EANs off the queue once they were fetched or failed for good
+     * @param db inside a transaction
+     * @param eans
+     */
+    static void remove(SQLiteDatabase db, long[] eans) {
+        for (long ean : eans) {
+            db.delete(AlexandriaContract.PendingFetchEntry.TABLE_NAME,
+                    AlexandriaContract.PendingFetchEntry._ID + " = ?", new String[]{String.valueOf(ean)});
+        }
+    }
+
+    /**
+     * nextAttempt -- when the earliest queued EAN is due
+     * @param db
+     * @return ms since the epoch, 0 when the queue is empty
+     */
+    static long nextAttempt(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT coalesce(min(" +
+                AlexandriaContract.PendingFetchEntry.NEXT_ATTEMPT + "), 0) FROM " +
+                AlexandriaContract.PendingFetchEntry.TABLE_NAME, null);
+    }
+}
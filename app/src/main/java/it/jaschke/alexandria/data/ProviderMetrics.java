@@ -0,0 +1,164 @@
+package it.jaschke.alexandria.data;
+
+import android.os.Bundle;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ProviderMetrics -- latency histograms and result sizes of BookProvider operations, kept per
+ *     operation and uri type (for example "query:BOOK_FULLDETAIL"). Sizing a query result means
+ *     running it to fill the cursor window, so only one query in SIZE_SAMPLE_INTERVAL is sized
+ *     unless slow queries are being explained. Queries slower than SLOW_QUERY_MS can also keep
+ *     their SQL and query plan. Read through call("metrics").
+ */
+final class ProviderMetrics {
+
+    static final String QUERY = "query";
+    static final String INSERT = "insert";
+    static final String UPDATE = "update";
+    static final String DELETE = "delete";
+    static final String BATCH = "batch";
+
+    // histogram bucket upper bounds in milliseconds, one more bucket takes everything slower
+    private static final long[] BUCKET_BOUNDS_MS = {1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024};
+
+    static final long SLOW_QUERY_MS = 50;
+
+    private static final int MAX_SLOW_QUERIES = 20;
+
+    // one query in this many has its result sized, a power of two
+    static final int SIZE_SAMPLE_INTERVAL = 16;
+
+    /**
+     * Stat -- totals for one operation and uri type
+     */
+    private static final class Stat {
+        long count;
+        long totalNanos;
+        long maxNanos;
+        long rows;
+        long sampled;
+        long windowBytes;
+        long fillNanos;
+        final long[] buckets = new long[BUCKET_BOUNDS_MS.length + 1];
+    }
+
+    private final Map<String, Stat> mStats = new TreeMap<>();
+    private final LinkedList<String> mSlowQueries = new LinkedList<>();
+    private volatile boolean mExplainSlow = false;
+    private final AtomicInteger mQueryCount = new AtomicInteger();
+
+    /**
+     * record -- add one operation
+     * @param operation QUERY, INSERT, UPDATE, DELETE or BATCH
+     * @param target name of the uri type
+     * @param nanos elapsed time
+     * @param rows rows written or exported, -1 when not known without stepping through a result
+     */
+    synchronized void record(String operation, String target, long nanos, int rows) {
+        Stat stat = stat(operation, target);
+        stat.count++;
+        stat.totalNanos += nanos;
+        stat.maxNanos = Math.max(stat.maxNanos, nanos);
+        if (rows > 0) {
+            stat.rows += rows;
+        }
+
+        long millis = nanos / 1000000;
+        int bucket = 0;
+        while ((bucket < BUCKET_BOUNDS_MS.length) && (millis >= BUCKET_BOUNDS_MS[bucket])) {
+            bucket++;
+        }
+        stat.buckets[bucket]++;
+    }
+
+    /**
+     * sampleQuery -- whether the query about to be recorded should have its result sized
+     * @return true for one query in SIZE_SAMPLE_INTERVAL, or every query while explaining
+     */
+    boolean sampleQuery() {
+        return ((mQueryCount.getAndIncrement() & (SIZE_SAMPLE_INTERVAL - 1)) == 0) || mExplainSlow;
+    }
+
+    /**
+     * recordSize -- add the size of a sampled query result
+     * @param target name of the uri type
+     * @param fillNanos time taken to run the query into its first window
+     * @param rows rows returned
+     * @param windowBytes bytes of column data held in the first window, the result did not fit
+     *     when it is close to the window size
+     */
+    synchronized void recordSize(String target, long fillNanos, int rows, long windowBytes) {
+        Stat stat = stat(QUERY, target);
+        stat.sampled++;
+        stat.rows += rows;
+        stat.windowBytes += windowBytes;
+        stat.fillNanos += fillNanos;
+    }
+
+    boolean isExplainSlow() {
+        return mExplainSlow;
+    }
+
+    void setExplainSlow(boolean explainSlow) {
+        mExplainSlow = explainSlow;
+    }
+
+    /**
+     * recordSlowQuery -- keep the SQL and plan of a slow query, only the most recent are kept
+     * @param target
+     * @param nanos
+     * @param sql
+     * @param plan
+     */
+    synchronized void recordSlowQuery(String target, long nanos, String sql, String plan) {
+        mSlowQueries.addLast(target + " " + (nanos / 1000000) + "ms: " + sql + " PLAN: " + plan);
+        if (mSlowQueries.size() > MAX_SLOW_QUERIES) {
+            mSlowQueries.removeFirst();
+        }
+    }
+
+    /**
+     * snapshot -- every stat as a nested bundle under its "operation:target" key, plus the
+     *     histogram bounds and any slow queries captured
+     * @return metrics bundle
+     */
+    synchronized Bundle snapshot() {
+        Bundle result = new Bundle();
+        for (Map.Entry<String, Stat> entry : mStats.entrySet()) {
+            Stat stat = entry.getValue();
+            Bundle bundle = new Bundle();
+            bundle.putLong(AlexandriaContract.KEY_METRIC_COUNT, stat.count);
+            bundle.putDouble(AlexandriaContract.KEY_METRIC_TOTAL_MS, stat.totalNanos / 1e6);
+            bundle.putDouble(AlexandriaContract.KEY_METRIC_MAX_MS, stat.maxNanos / 1e6);
+            bundle.putLong(AlexandriaContract.KEY_METRIC_ROWS, stat.rows);
+            bundle.putLong(AlexandriaContract.KEY_METRIC_SAMPLED, stat.sampled);
+            bundle.putLong(AlexandriaContract.KEY_METRIC_WINDOW_BYTES, stat.windowBytes);
+            bundle.putDouble(AlexandriaContract.KEY_METRIC_FILL_MS, stat.fillNanos / 1e6);
+            bundle.putLongArray(AlexandriaContract.KEY_METRIC_HISTOGRAM, stat.buckets.clone());
+            result.putBundle(entry.getKey(), bundle);
+        }
+        result.putLongArray(AlexandriaContract.KEY_METRIC_BOUNDS_MS, BUCKET_BOUNDS_MS.clone());
+        result.putStringArrayList(AlexandriaContract.KEY_SLOW_QUERIES, new ArrayList<>(mSlowQueries));
+        return result;
+    }
+
+    synchronized void reset() {
+        mStats.clear();
+        mSlowQueries.clear();
+    }
+
+    private Stat stat(String operation, String target) {
+        String key = operation + ":" + target;
+        Stat stat = mStats.get(key);
+        if (stat == null) {
+            stat = new Stat();
+            mStats.put(key, stat);
+        }
+        return stat;
+    }
+}
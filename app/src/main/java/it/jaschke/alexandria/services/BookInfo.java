@@ -0,0 +1,27 @@
+package it.jaschke.alexandria.services;
+
+import java.util.List;
+
+/**
+ * BookInfo -- the details of one book as returned by a MetadataSource, ready to be written to
+ *     the library. VolumesParser and OpenLibraryClient read these from a response.
+ */
+public class BookInfo {
+
+    public final String title;
+    public final String subtitle;
+    public final String description;
+    public final String imageUrl;
+    public final List<String> authors;
+    public final List<String> categories;
+
+    public BookInfo(String title, String subtitle, String description, String imageUrl,
+                    List<String> authors, List<String> categories) {
+        this.title = title;
+        this.subtitle = subtitle;
+        this.description = description;
+        this.imageUrl = imageUrl;
+        this.authors = authors;
+        this.categories = categories;
+    }
+}
@@ -1,39 +1,65 @@
 package it.jaschke.alexandria.services;
 
-import android.app.IntentService;
-import android.content.ContentValues;
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.ComponentName;
+import android.content.ContentProviderOperation;
+import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
+import android.content.OperationApplicationException;
+import android.content.pm.PackageManager;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
-
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import it.jaschke.alexandria.R;
 import it.jaschke.alexandria.Utility;
 import it.jaschke.alexandria.data.AlexandriaContract;
 
 
 /**
- * An {@link IntentService} subclass for handling asynchronous task requests in
- * a service on a separate handler thread.
- * <p/>
+ * BookService -- handles fetch, delete and import requests in the background. Lookups run
+ *     concurrently on a FetchEngine, R.integer.fetch_parallelism at a time, while requests for
+ *     the same EAN keep their order and all database writes are applied one at a time. The
+ *     service stops itself once every queued request is done.
  */
-public class BookService extends IntentService {
+public class BookService extends Service {
 
     private final String LOG_TAG = BookService.class.getSimpleName();
 
     // define Intent actions and keys
     public static final String FETCH_BOOK  = "it.jaschke.alexandria.services.action.FETCH_BOOK";
     public static final String DELETE_BOOK = "it.jaschke.alexandria.services.action.DELETE_BOOK";
+    public static final String COMPACT_DATABASE = "it.jaschke.alexandria.services.action.COMPACT_DATABASE";
+    public static final String IMPORT_BOOKS = "it.jaschke.alexandria.services.action.IMPORT_BOOKS";
+    public static final String CLEAR_LOOKUP_FAILURES = "it.jaschke.alexandria.services.action.CLEAR_LOOKUP_FAILURES";
+    public static final String DRAIN_PENDING = "it.jaschke.alexandria.services.action.DRAIN_PENDING";
+    public static final String DRAIN_ALL   = "it.jaschke.alexandria.services.extra.DRAIN_ALL";
     public static final String EAN         = "it.jaschke.alexandria.services.extra.EAN";
 
     // define Broadcast Message event and key
@@ -48,40 +74,247 @@ public class BookService extends IntentService {
     public static final String FETCH_SERVER_FAILURE  = "server";
     public static final String FETCH_OTHER_FAILURE   = "other";
 
-    public BookService() {
-        // use class as thread name for debugging
-        super(BookService.class.getSimpleName());
+    // import progress broadcast and its extras
+    public static final String MESSAGE_IMPORT_EVENT = "MESSAGE_IMPORT_EVENT";
+    public static final String IMPORT_READ          = "IMPORT_READ";
+    public static final String IMPORT_ADDED         = "IMPORT_ADDED";
+    public static final String IMPORT_PRESENT       = "IMPORT_PRESENT";
+    public static final String IMPORT_FAILED        = "IMPORT_FAILED";
+    public static final String IMPORT_PER_MINUTE    = "IMPORT_PER_MINUTE";
+    public static final String IMPORT_DONE          = "IMPORT_DONE";
+
+    // distinct EANs checked, fetched and written together during an import
+    private static final int IMPORT_BATCH_SIZE = 25;
+
+    // how long an EAN that could not be looked up is not asked for again, unlisted books are
+    // rarely added upstream within days, an unusable volume may be fixed sooner
+    private static final long NOT_FOUND_TTL_MS = TimeUnit.DAYS.toMillis(7);
+    private static final long UNUSABLE_TTL_MS = TimeUnit.DAYS.toMillis(1);
+
+    // volumes responses kept on disk for revalidation and offline lookups
+    private static final String RESPONSE_CACHE_DIR = "volumes";
+    private static final long RESPONSE_CACHE_BYTES = 2 * 1024 * 1024;
+
+    private FetchEngine mEngine;
+    private final InFlightRegistry<String, MetadataSource.Result> mInFlight = new InFlightRegistry<>();
+
+    // EANs with a FETCH_BOOK queued or running and its task, a repeat request is dropped as its
+    // broadcast would only repeat the one already on its way. A DELETE_BOOK takes the EAN out so
+    // a scan after it is fetched again.
+    private final ConcurrentHashMap<String, Runnable> mQueuedFetches = new ConcurrentHashMap<>();
+    private final AtomicInteger mCollapsedFetches = new AtomicInteger();
+
+    // set by deletes, the freed pages are compacted once per idle period and only once at least
+    // IDLE_COMPACT_MIN_FREE_PAGES are free
+    private static final int IDLE_COMPACT_MIN_FREE_PAGES = 64;
+    private final AtomicBoolean mCompactWanted = new AtomicBoolean();
+    private MetadataSource mSource;
+    private HedgedMetadataSource mHedgedSource;
+    private ResponseCache mResponseCache;
+    private Handler mHandler;
+
+    // start id of the latest request, only used on the main thread
+    private int mLastStartId;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mHandler = new Handler();
+        mResponseCache = new ResponseCache(new File(getCacheDir(), RESPONSE_CACHE_DIR), RESPONSE_CACHE_BYTES);
+        mSource = new VolumesClient(VolumesClient.GOOGLE_BOOKS_URL, mResponseCache);
+        if (PreferenceManager.getDefaultSharedPreferences(this).getBoolean("pref_hedgeLookups", true)) {
+            // Open Library answers for Google Books when it is slow or does not know the book
+            mHedgedSource = new HedgedMetadataSource(mSource,
+                    new OpenLibraryClient(OpenLibraryClient.OPEN_LIBRARY_URL));
+            mSource = mHedgedSource;
+        }
+        mEngine = new FetchEngine(getResources().getInteger(R.integer.fetch_parallelism),
+                new FetchEngine.IdleListener() {
+                    @Override
+                    public void onIdle() {
+                        mHandler.post(mStopWhenIdle);
+                    }
+                });
+    }
+
+    @Override
+    public void onDestroy() {
+        mEngine.shutdown();
+        if (mHedgedSource != null) {
+            mHedgedSource.shutdown();
+            Log.d(LOG_TAG, "onDestroy() -- hedged lookups " + mHedgedSource.hedgedCount() +
+                    ", answered by backup " + mHedgedSource.backupWinCount());
+        }
+        Log.d(LOG_TAG, "onDestroy() -- response cache hit ratio " + mResponseCache.hitRatio() +
+                ", stale " + mResponseCache.staleCount() + ", bytes saved " + mResponseCache.bytesSaved() +
+                ", collapsed fetches " + mCollapsedFetches.get() + ", shared lookups " + mInFlight.joinedCount());
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
     }
 
+    /**
+     * onStartCommand -- queue the request on the engine and return right away, requests are not
+     *     redelivered if the process dies just like the IntentService this replaced
+     * @param intent
+     * @param flags
+     * @param startId
+     * @return START_NOT_STICKY
+     */
     @Override
-    protected void onHandleIntent(Intent intent) {
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        mLastStartId = startId;
         if (intent != null) {
             final String action = intent.getAction();
+            final String ean = intent.getStringExtra(EAN);
             if (FETCH_BOOK.equals(action)) {
-                final String ean = intent.getStringExtra(EAN);
-                fetchBook(ean);
+                Runnable fetch = new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            fetchBook(ean);
+                        } finally {
+                            if (ean != null) {
+                                // only this request's entry, a later one may have replaced it
+                                mQueuedFetches.remove(ean, this);
+                            }
+                        }
+                    }
+                };
+                if ((ean != null) && (mQueuedFetches.putIfAbsent(ean, fetch) != null)) {
+                    mCollapsedFetches.incrementAndGet();
+                } else {
+                    mEngine.execute(laneKey(ean), fetch);
+                }
             } else if (DELETE_BOOK.equals(action)) {
-                final String ean = intent.getStringExtra(EAN);
-                deleteBook(ean);
+                if (ean != null) {
+                    // the delete is queued behind any fetch of the EAN, a fetch asked for after
+                    // it must not be collapsed into that earlier one
+                    mQueuedFetches.remove(ean);
+                }
+                mEngine.execute(laneKey(ean), new Runnable() {
+                    @Override
+                    public void run() {
+                        deleteBook(ean);
+                    }
+                });
+            } else if (COMPACT_DATABASE.equals(action)) {
+                queueCompact(1);
+            } else if (DRAIN_PENDING.equals(action)) {
+                final boolean all = intent.getBooleanExtra(DRAIN_ALL, false);
+                mEngine.runJob(new Runnable() {
+                    @Override
+                    public void run() {
+                        drainPending(all);
+                    }
+                });
+            } else if (CLEAR_LOOKUP_FAILURES.equals(action)) {
+                mEngine.write(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        int cleared = AlexandriaContract.clearLookupFailures(getContentResolver());
+                        Log.d(LOG_TAG, "clearLookupFailures() -- cleared ==> " + cleared);
+                        return cleared;
+                    }
+                });
+            } else if (IMPORT_BOOKS.equals(action)) {
+                final Uri source = intent.getData();
+                mEngine.runJob(new Runnable() {
+                    @Override
+                    public void run() {
+                        importBooks(source);
+                    }
+                });
+            }
+        }
+        // nothing may have been queued
+        mStopWhenIdle.run();
+        return START_NOT_STICKY;
+    }
+
+    /**
+     * mStopWhenIdle -- stop once nothing is queued, stopSelf(startId) does nothing when another
+     *     request has arrived since so a new request is never dropped. Deletes since the last
+     *     idle period get one compaction first.
+     */
+    private final Runnable mStopWhenIdle = new Runnable() {
+        @Override
+        public void run() {
+            if (!mEngine.isIdle()) {
+                return;
             }
+            if (mCompactWanted.getAndSet(false)) {
+                queueCompact(IDLE_COMPACT_MIN_FREE_PAGES);
+                return;
+            }
+            stopSelf(mLastStartId);
+        }
+    };
+
+    /**
+     * laneKey -- the lane an EAN is handled on, anything that is not a number still gets a
+     *     stable lane
+     * @param ean
+     * @return key for the engine
+     */
+    private static long laneKey(String ean) {
+        if (ean == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(ean);
+        } catch (NumberFormatException e) {
+            return ean.hashCode();
         }
     }
 
     /**
-     * deleteBook -- Handle action deleteBook in the provided background thread with the provided
-     *     parameters.
+     * deleteBook -- Handle action deleteBook on the lane of the EAN, the delete itself is
+     *     applied by the writer
      * @param ean
      */
-    private void deleteBook(String ean) {
+    private void deleteBook(final String ean) {
         if ((ean!=null) && (! ean.isEmpty())) {
-            getContentResolver().delete(AlexandriaContract.BookEntry.buildBookUri(Long.parseLong(ean)), null, null);
+            await(mEngine.write(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return getContentResolver().delete(
+                            AlexandriaContract.BookEntry.buildBookUri(Long.parseLong(ean)), null, null);
+                }
+            }), 0);
         }
         broadcastEvent (MESSAGE_DELETE_EVENT, ean);
+
+        // give the pages freed by deletes back once the service is idle
+        mCompactWanted.set(true);
+    }
+
+    private void queueCompact(final int minFreePages) {
+        mEngine.write(new Callable<Void>() {
+            @Override
+            public Void call() {
+                compactDatabase(minFreePages);
+                return null;
+            }
+        });
     }
 
     /**
-     * fetchBook -- Handle action fetchBook in the provided background thread with the provided
-     *     parameters.
+     * compactDatabase -- Handle action compactDatabase on the writer thread, releases free
+     *     database pages and logs how many were reclaimed
+     * @param minFreePages nothing is released while fewer pages than this are free
+     */
+    private void compactDatabase(int minFreePages) {
+        int reclaimed = AlexandriaContract.compactDatabase(getContentResolver(), minFreePages);
+        Log.d(LOG_TAG, "compactDatabase() -- reclaimed pages ==> " + reclaimed);
+    }
+
+    /**
+     * fetchBook -- Handle action fetchBook on the lane of the EAN, waits for its write so a
+     *     later request for the same EAN sees the book
      * @param ean
      */
     private void fetchBook(String ean) {
@@ -91,227 +324,548 @@ public class BookService extends IntentService {
             return;
         }
 
-        // try to open a connection to Google to fetch the book
-        HttpURLConnection urlConnection = createConnection(ean);
-        if (urlConnection == null) {
-            if (Utility.isNetworkAvailable(this))
-                broadcastEvent (MESSAGE_FETCH_EVENT, FETCH_SERVER_FAILURE);
-            else
-                broadcastEvent (MESSAGE_FETCH_EVENT, FETCH_NETWORK_FAILURE);
+        // recently not found, answer without asking the server again
+        String knownFailure = AlexandriaContract.lookupFailure(getContentResolver(), Long.parseLong(ean));
+        if (knownFailure != null) {
+            broadcastEvent (MESSAGE_FETCH_EVENT, knownFailure);
             return;
         }
 
-        String bookJsonString = readStream (urlConnection);
-        urlConnection.disconnect();
-
-        if (bookJsonString == null) {
-            broadcastEvent (MESSAGE_FETCH_EVENT, FETCH_OTHER_FAILURE);
+        MetadataSource.Result lookup = lookupBook(ean);
+        if (lookup.book == null) {
+            rememberFailure(new long[]{Long.parseLong(ean)}, lookup.failure);
+            if (isTransient(lookup.failure)) {
+                queueRetry(new long[]{Long.parseLong(ean)}, lookup.failure);
+            }
+            broadcastEvent (MESSAGE_FETCH_EVENT, lookup.failure);
             return;
         }
 
-        final String ITEMS = "items";
+        // book, authors and categories are written as one batch so the provider commits
+        // them in a single transaction
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        writeBack(operations, ean, lookup.book);
+        if (! applyBatch(operations)) {
+            broadcastEvent (MESSAGE_FETCH_EVENT, FETCH_OTHER_FAILURE);
+        }
+    }
 
-        final String VOLUME_INFO = "volumeInfo";
+    /**
+     * rememberFailure -- keep a lookup failure that will not go away by asking again, network and
+     *     server failures are not remembered
+     * @param eans
+     * @param failure
+     */
+    private void rememberFailure(long[] eans, String failure) {
+        if (FETCH_NOT_FOUND.equals(failure)) {
+            AlexandriaContract.recordFailure(getContentResolver(), eans, failure, NOT_FOUND_TTL_MS);
+        } else if (FETCH_OTHER_FAILURE.equals(failure)) {
+            AlexandriaContract.recordFailure(getContentResolver(), eans, failure, UNUSABLE_TTL_MS);
+        }
+    }
 
-        final String TITLE = "title";
-        final String SUBTITLE = "subtitle";
-        final String AUTHORS = "authors";
-        final String DESC = "description";
-        final String CATEGORIES = "categories";
-        final String IMG_URL_PATH = "imageLinks";
-        final String IMG_URL = "thumbnail";
+    private static boolean isTransient(String failure) {
+        return FETCH_NETWORK_FAILURE.equals(failure) || FETCH_SERVER_FAILURE.equals(failure);
+    }
 
-        try {
-            // fixed null pointer exception here as bookJsonString may have been null
-            JSONObject bookJson = new JSONObject(bookJsonString);
-            JSONArray bookArray;
-            if(bookJson.has(ITEMS)){
-                bookArray = bookJson.getJSONArray(ITEMS);
-            }else{
-                broadcastEvent(MESSAGE_FETCH_EVENT, FETCH_NOT_FOUND);
-                return;
-            }
+    /**
+     * queueRetry -- keep EANs to be looked up again once the network or server is back, and
+     *     wake up for the earliest one
+     * @param eans
+     * @param failure
+     */
+    private void queueRetry(long[] eans, String failure) {
+        scheduleRetry(AlexandriaContract.queueFetches(getContentResolver(), eans, failure));
+    }
 
-            JSONObject bookInfo = ((JSONObject) bookArray.get(0)).getJSONObject(VOLUME_INFO);
+    // a retry alarm is never set sooner than this, an EAN already due would otherwise wake the
+    // service over and over while the drain cannot get through
+    private static final long RETRY_MIN_DELAY_MS = TimeUnit.SECONDS.toMillis(30);
 
-            String title = bookInfo.getString(TITLE);
+    /**
+     * scheduleRetry -- set an alarm to drain the retry queue when its earliest EAN is due and
+     *     listen for the network coming back, or stop both when the queue is empty. Without a
+     *     network no alarm is set, ConnectivityReceiver starts the drain once it is back.
+     * @param nextAttempt ms since the epoch, 0 when nothing is queued
+     */
+    private void scheduleRetry(long nextAttempt) {
+        AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+        Intent drainIntent = new Intent(this, BookService.class);
+        drainIntent.setAction(DRAIN_PENDING);
+        PendingIntent pendingIntent = PendingIntent.getService(this, 0, drainIntent,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        if ((nextAttempt == 0) || !Utility.isNetworkAvailable(this)) {
+            alarmManager.cancel(pendingIntent);
+        } else {
+            alarmManager.set(AlarmManager.RTC,
+                    Math.max(nextAttempt, System.currentTimeMillis() + RETRY_MIN_DELAY_MS), pendingIntent);
+        }
+        // the receiver only wakes the app on connectivity changes while there is something to retry
+        getPackageManager().setComponentEnabledSetting(
+                new ComponentName(this, ConnectivityReceiver.class),
+                (nextAttempt == 0) ? PackageManager.COMPONENT_ENABLED_STATE_DISABLED :
+                        PackageManager.COMPONENT_ENABLED_STATE_ENABLED,
+                PackageManager.DONT_KILL_APP);
+    }
 
-            String subtitle = "";
-            if(bookInfo.has(SUBTITLE)) {
-                subtitle = bookInfo.getString(SUBTITLE);
+    /**
+     * drainPending -- Handle action drainPending on the job thread, retries the queued EANs a
+     *     batch at a time the way an import does. Stops early when the network goes again.
+     * @param all true to retry every queued EAN, when the network has just come back, false to
+     *     retry only those whose backoff has passed
+     */
+    private void drainPending(boolean all) {
+        ImportProgress progress = new ImportProgress();
+        long after = 0;
+        while (Utility.isNetworkAvailable(this)) {
+            long[] due = AlexandriaContract.dueFetches(getContentResolver(), after, all, IMPORT_BATCH_SIZE);
+            if (due.length == 0) {
+                break;
             }
+            after = due[due.length - 1];
 
-            String desc="";
-            if(bookInfo.has(DESC)){
-                desc = bookInfo.getString(DESC);
+            Set<Long> batch = new LinkedHashSet<>();
+            for (long ean : due) {
+                batch.add(ean);
             }
-
-            String imgUrl = "";
-            if(bookInfo.has(IMG_URL_PATH) && bookInfo.getJSONObject(IMG_URL_PATH).has(IMG_URL)) {
-                imgUrl = bookInfo.getJSONObject(IMG_URL_PATH).getString(IMG_URL);
+            Map<Long, String> retry = new HashMap<>();
+            boolean networkAvailable = importBatch(batch, progress, retry);
+
+            // everything handled leaves the queue, the rest has its attempt counted
+            batch.removeAll(retry.keySet());
+            AlexandriaContract.removeFetches(getContentResolver(), toArray(new ArrayList<>(batch)));
+            queueRetries(retry);
+            if (!networkAvailable) {
+                break;
             }
+        }
+        Log.d(LOG_TAG, "drainPending() -- added " + progress.added + ", present " + progress.present +
+                ", failed " + progress.failed);
+        scheduleRetry(AlexandriaContract.nextFetchAttempt(getContentResolver()));
+    }
 
-            writeBackBook(ean, title, subtitle, desc, imgUrl);
-
-            if(bookInfo.has(AUTHORS)) {
-                writeBackAuthors(ean, bookInfo.getJSONArray(AUTHORS));
+    /**
+     * queueRetries -- queue EANs grouped by their failure
+     * @param retry failure of each EAN
+     */
+    private void queueRetries(Map<Long, String> retry) {
+        for (String failure : new String[]{FETCH_NETWORK_FAILURE, FETCH_SERVER_FAILURE}) {
+            List<Long> eans = new ArrayList<>();
+            for (Map.Entry<Long, String> entry : retry.entrySet()) {
+                if (failure.equals(entry.getValue())) {
+                    eans.add(entry.getKey());
+                }
             }
-            if(bookInfo.has(CATEGORIES)){
-                writeBackCategories(ean,bookInfo.getJSONArray(CATEGORIES) );
+            if (!eans.isEmpty()) {
+                queueRetry(toArray(eans), failure);
             }
-
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, "Error ", e);
-            broadcastEvent (MESSAGE_FETCH_EVENT, FETCH_OTHER_FAILURE);
         }
     }
 
     /**
-     * broadcastEvent -- send broadcast event with given details
-     * @param eventString
-     * @param eventDetails
+     * applyBatch -- apply the operations on the writer thread and wait for them
+     * @param operations
+     * @return true when the batch was committed
      */
-    private void broadcastEvent (String eventString, String eventDetails) {
-        Intent messageIntent = new Intent(eventString);
-        messageIntent.putExtra(MESSAGE_KEY, eventDetails);
-        LocalBroadcastManager.getInstance(getApplicationContext()).sendBroadcast(messageIntent);
+    private boolean applyBatch(final ArrayList<ContentProviderOperation> operations) {
+        return await(mEngine.write(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                try {
+                    getContentResolver().applyBatch(AlexandriaContract.CONTENT_AUTHORITY, operations);
+                    return true;
+                } catch (RemoteException | OperationApplicationException e) {
+                    Log.e(LOG_TAG, "Error ", e);
+                    return false;
+                }
+            }
+        }), false);
     }
 
     /**
-     * fetchRequired -- check to see if ean should be fetched
-     * @param ean
-     * @return true if ean length valid and book does not exist in library
+     * await -- wait for work queued on the engine
+     * @param future
+     * @param failed returned when the work threw or the wait was interrupted
+     * @return result of the work
      */
-    private boolean fetchRequired (String ean) {
-        if(ean.length()!=13){
-            return false;
+    private <T> T await(Future<T> future, T failed) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(LOG_TAG, "Error ", e.getCause());
         }
+        return failed;
+    }
 
-        // see if the book is already in the library
-        Cursor bookEntry = getContentResolver().query(
-                AlexandriaContract.BookEntry.buildBookUri(Long.parseLong(ean)),
-                null, // leaving "columns" null just returns all the columns.
-                null, // cols for "where" clause
-                null, // values for "where" clause
-                null  // sort order
-        );
+    // result of a lookup that did not finish, not remembered as a lookup failure
+    private static final MetadataSource.Result LOOKUP_INTERRUPTED =
+            new MetadataSource.Result(null, FETCH_SERVER_FAILURE);
 
-        if(bookEntry.getCount()>0){
-            bookEntry.close();
-            return false;
+    /**
+     * lookupBook -- ask the metadata source for the book with the given EAN, a lookup of the
+     *     same EAN already running on another thread is shared rather than repeated
+     * @param ean
+     * @return the book or the reason it could not be found
+     */
+    private MetadataSource.Result lookupBook(String ean) {
+        InFlightRegistry.Entry<MetadataSource.Result> inFlight = mInFlight.join(ean);
+        if (inFlight != null) {
+            return inFlight.await(LOOKUP_INTERRUPTED);
         }
-
-        bookEntry.close();
-        return true;
+        MetadataSource.Result result = LOOKUP_INTERRUPTED;
+        try {
+            result = checkNetwork(mSource.lookup(ean));
+        } finally {
+            mInFlight.complete(ean, result);
+        }
+        return result;
     }
 
     /**
-     * createConnection -- creates connection to Google API using the ean to identify the book
-     * @param ean
-     * @return active connection when successful, null when connection fails
+     * lookupBooks -- ask the metadata source for many books with as few requests as it allows,
+     *     sharing any lookups of the same EANs already running
+     * @param eans
+     * @return a result for each EAN
      */
-    private HttpURLConnection createConnection (String ean) {
-        final String BASE_URL = "https://www.googleapis.com/books/v1/volumes?";
-        final String QUERY_PARAM = "q";
-        final String ISBN_PARAM = "isbn:" + ean;
+    private Map<String, MetadataSource.Result> lookupBooks(List<String> eans) {
+        // EANs another thread is already looking up are waited for, after this thread's own
+        // lookups are complete so an owner never waits on another owner
+        List<String> owned = new ArrayList<>(eans.size());
+        Map<String, InFlightRegistry.Entry<MetadataSource.Result>> joined = new HashMap<>();
+        for (String ean : eans) {
+            InFlightRegistry.Entry<MetadataSource.Result> inFlight = mInFlight.join(ean);
+            if (inFlight == null) {
+                owned.add(ean);
+            } else {
+                joined.put(ean, inFlight);
+            }
+        }
 
+        Map<String, MetadataSource.Result> results = new HashMap<>();
         try {
-            Uri builtUri = Uri.parse(BASE_URL).buildUpon()
-                    .appendQueryParameter(QUERY_PARAM, ISBN_PARAM)
-                    .build();
-            URL url = new URL(builtUri.toString());
-            HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.connect();
-            return urlConnection;
-
-        } catch (Exception e) {
-            Log.e(LOG_TAG, "Error ", e);
+            if (!owned.isEmpty()) {
+                results.putAll(mSource.lookupAll(owned));
+            }
+        } finally {
+            for (String ean : owned) {
+                MetadataSource.Result result = results.get(ean);
+                result = (result == null) ? LOOKUP_INTERRUPTED : checkNetwork(result);
+                results.put(ean, result);
+                mInFlight.complete(ean, result);
+            }
+        }
+        for (Map.Entry<String, InFlightRegistry.Entry<MetadataSource.Result>> entry : joined.entrySet()) {
+            results.put(entry.getKey(), entry.getValue().await(LOOKUP_INTERRUPTED));
         }
+        return results;
+    }
 
-        return null;
+    /**
+     * checkNetwork -- a server that could not be reached is a network failure when the device
+     *     has no network, so the user is told to check their connection
+     * @param result
+     * @return result with the failure corrected
+     */
+    private MetadataSource.Result checkNetwork(MetadataSource.Result result) {
+        if (FETCH_SERVER_FAILURE.equals(result.failure) && !Utility.isNetworkAvailable(this)) {
+            return new MetadataSource.Result(null, FETCH_NETWORK_FAILURE);
+        }
+        return result;
     }
 
     /**
-     * readString -- reads the connection stream to get JSON book data
-     * @param urlConnection
-     * @return JSON string if successful, otherwise null
+     * ImportProgress -- running totals of an import, sent with each progress broadcast
      */
-    private String readStream (HttpURLConnection urlConnection) {
+    private static class ImportProgress {
+        final long startMillis = SystemClock.elapsedRealtime();
+        int read;
+        int added;
+        int present;
+        int failed;
+    }
 
+    /**
+     * importBooks -- Handle action importBooks on the job thread. ISBNs are read from the file a
+     *     line at a time and normalized, every IMPORT_BATCH_SIZE distinct EANs are checked
+     *     against the library in one call, then the missing books are fetched concurrently and
+     *     written in one transaction. Only the current batch is ever held in memory.
+     * @param source text or CSV file, any token that is a valid ISBN is imported
+     */
+    private void importBooks(Uri source) {
+        ImportProgress progress = new ImportProgress();
+        Set<Long> batch = new LinkedHashSet<>();
+        BufferedReader reader = null;
+        boolean stopped = false;
         try {
-            InputStream inputStream = urlConnection.getInputStream();
-            StringBuffer buffer = new StringBuffer();
+            InputStream inputStream = getContentResolver().openInputStream(source);
             if (inputStream == null) {
-                return null;
+                broadcastImport(progress, true);
+                return;
             }
-
-            BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
+            reader = new BufferedReader(new InputStreamReader(inputStream));
             String line;
             while ((line = reader.readLine()) != null) {
-                buffer.append(line);
-                buffer.append("\n");
+                for (String token : line.split("[,;\\s]+")) {
+                    String ean = Utility.normalizeISBN(token);
+                    if (ean == null) {
+                        continue;
+                    }
+                    progress.read++;
+                    batch.add(Long.parseLong(ean));
+                    if (batch.size() >= IMPORT_BATCH_SIZE) {
+                        stopped = !importOrQueue(batch, progress, stopped);
+                        batch.clear();
+                        broadcastImport(progress, false);
+                    }
+                }
+            }
+            if (!batch.isEmpty()) {
+                importOrQueue(batch, progress, stopped);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error ", e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error ", e);
+                }
             }
+        }
 
-            reader.close ();
-            if (buffer.length() == 0) {
-                return null;
+        // fold the imported pages back into the database file
+        AlexandriaContract.checkpoint(getContentResolver());
+        broadcastImport(progress, true);
+    }
+
+    /**
+     * importOrQueue -- import a batch, or once the network has gone queue it to be retried when
+     *     the network is back rather than dropping the rest of the file
+     * @param batch
+     * @param progress
+     * @param stopped true when the network has gone
+     * @return false when the network is gone
+     */
+    private boolean importOrQueue(Set<Long> batch, ImportProgress progress, boolean stopped) {
+        if (stopped) {
+            queueRetry(toArray(new ArrayList<>(batch)), FETCH_NETWORK_FAILURE);
+            return false;
+        }
+        Map<Long, String> retry = new HashMap<>();
+        boolean networkAvailable = importBatch(batch, progress, retry);
+        queueRetries(retry);
+        return networkAvailable;
+    }
+
+    /**
+     * importBatch -- skip the EANs already in the library, look the rest up in batched requests
+     *     of VolumesClient.MAX_BATCH_SIZE, run on the lanes at the same time, and write what was
+     *     found in a single transaction
+     * @param eans
+     * @param progress
+     * @param retry filled with the EANs that failed on the network or server, and why
+     * @return false when the network is gone
+     */
+    private boolean importBatch(Set<Long> eans, ImportProgress progress, Map<Long, String> retry) {
+        long[] ids = new long[eans.size()];
+        int i = 0;
+        for (Long ean : eans) {
+            ids[i++] = ean;
+        }
+        boolean[] present = AlexandriaContract.booksExist(getContentResolver(), ids);
+        String[] knownFailures = AlexandriaContract.lookupFailures(getContentResolver(), ids);
+
+        List<String> missing = new ArrayList<>(ids.length);
+        for (i = 0; i < ids.length; i++) {
+            if (present[i]) {
+                progress.present++;
+            } else if (knownFailures[i] != null) {
+                progress.failed++;
+            } else {
+                missing.add(String.valueOf(ids[i]));
             }
-            return buffer.toString();
+        }
 
-        } catch (Exception e) {
-            Log.e(LOG_TAG, "Error ", e);
+        List<List<String>> chunks = new ArrayList<>();
+        List<Future<Map<String, MetadataSource.Result>>> lookups = new ArrayList<>();
+        for (int from = 0; from < missing.size(); from += VolumesClient.MAX_BATCH_SIZE) {
+            final List<String> chunk = missing.subList(from,
+                    Math.min(from + VolumesClient.MAX_BATCH_SIZE, missing.size()));
+            chunks.add(chunk);
+            lookups.add(mEngine.submit(Long.parseLong(chunk.get(0)),
+                    new Callable<Map<String, MetadataSource.Result>>() {
+                        @Override
+                        public Map<String, MetadataSource.Result> call() {
+                            return lookupBooks(chunk);
+                        }
+                    }));
         }
-        return null;
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        List<Long> notFound = new ArrayList<>();
+        List<Long> unusable = new ArrayList<>();
+        int fetched = 0;
+        boolean networkAvailable = true;
+        for (int c = 0; c < lookups.size(); c++) {
+            Map<String, MetadataSource.Result> results = await(lookups.get(c), null);
+            for (String ean : chunks.get(c)) {
+                MetadataSource.Result lookup = (results == null) ? null : results.get(ean);
+                if ((lookup != null) && (lookup.book != null)) {
+                    writeBack(operations, ean, lookup.book);
+                    fetched++;
+                } else if ((lookup != null) && FETCH_NETWORK_FAILURE.equals(lookup.failure)) {
+                    retry.put(Long.parseLong(ean), lookup.failure);
+                    networkAvailable = false;
+                } else {
+                    progress.failed++;
+                    if ((lookup != null) && FETCH_SERVER_FAILURE.equals(lookup.failure)) {
+                        retry.put(Long.parseLong(ean), lookup.failure);
+                    }
+                    if ((lookup != null) && FETCH_NOT_FOUND.equals(lookup.failure)) {
+                        notFound.add(Long.parseLong(ean));
+                    } else if ((lookup != null) && FETCH_OTHER_FAILURE.equals(lookup.failure)) {
+                        unusable.add(Long.parseLong(ean));
+                    }
+                }
+            }
+        }
+        if (!notFound.isEmpty()) {
+            rememberFailure(toArray(notFound), FETCH_NOT_FOUND);
+        }
+        if (!unusable.isEmpty()) {
+            rememberFailure(toArray(unusable), FETCH_OTHER_FAILURE);
+        }
+
+        if (!operations.isEmpty()) {
+            if (applyBatch(operations)) {
+                progress.added += fetched;
+            } else {
+                progress.failed += fetched;
+            }
+        }
+        return networkAvailable;
+    }
+
+    private static long[] toArray(List<Long> values) {
+        long[] array = new long[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * broadcastImport -- send import progress, the rate is in books handled per minute
+     * @param progress
+     * @param done
+     */
+    private void broadcastImport(ImportProgress progress, boolean done) {
+        long elapsed = Math.max(1, SystemClock.elapsedRealtime() - progress.startMillis);
+        int handled = progress.added + progress.present + progress.failed;
+        Intent messageIntent = new Intent(MESSAGE_IMPORT_EVENT);
+        messageIntent.putExtra(IMPORT_READ, progress.read);
+        messageIntent.putExtra(IMPORT_ADDED, progress.added);
+        messageIntent.putExtra(IMPORT_PRESENT, progress.present);
+        messageIntent.putExtra(IMPORT_FAILED, progress.failed);
+        messageIntent.putExtra(IMPORT_PER_MINUTE, (int) (handled * 60000L / elapsed));
+        messageIntent.putExtra(IMPORT_DONE, done);
+        Log.d(LOG_TAG, "importBooks() -- read " + progress.read + ", added " + progress.added +
+                ", present " + progress.present + ", failed " + progress.failed);
+        LocalBroadcastManager.getInstance(getApplicationContext()).sendBroadcast(messageIntent);
+    }
+
+    /**
+     * broadcastEvent -- send broadcast event with given details
+     * @param eventString
+     * @param eventDetails
+     */
+    private void broadcastEvent (String eventString, String eventDetails) {
+        Intent messageIntent = new Intent(eventString);
+        messageIntent.putExtra(MESSAGE_KEY, eventDetails);
+        LocalBroadcastManager.getInstance(getApplicationContext()).sendBroadcast(messageIntent);
+    }
+
+    /**
+     * fetchRequired -- check to see if ean should be fetched
+     * @param ean
+     * @return true if ean length valid and book does not exist in library
+     */
+    private boolean fetchRequired (String ean) {
+        if(ean.length()!=13){
+            return false;
+        }
+
+        // see if the book is already in the library, answered by the provider without a cursor
+        return ! AlexandriaContract.bookExists(getContentResolver(), Long.parseLong(ean));
+    }
+
+    /**
+     * writeBack -- add the inserts for a book, its authors and its categories to the batch
+     * @param operations
+     * @param ean
+     * @param book
+     */
+    private void writeBack(ArrayList<ContentProviderOperation> operations, String ean, BookInfo book) {
+        writeBackBook(operations, ean, book.title, book.subtitle, book.description, book.imageUrl);
+        writeBackAuthors(operations, ean, book.authors);
+        writeBackCategories(operations, ean, book.categories);
     }
 
     /**
-     * writeBackBook -- original Alexandria code to write book to database
+     * writeBackBook -- original Alexandria code to write book to database, now adds the insert
+     *     to the given batch of operations
+     * @param operations
      * @param ean
      * @param title
      * @param subtitle
      * @param desc
      * @param imgUrl
      */
-    private void writeBackBook(String ean, String title, String subtitle, String desc, String imgUrl) {
-        ContentValues values= new ContentValues();
-        values.put(AlexandriaContract.BookEntry._ID, ean);
-        values.put(AlexandriaContract.BookEntry.TITLE, title);
-        values.put(AlexandriaContract.BookEntry.IMAGE_URL, imgUrl);
-        values.put(AlexandriaContract.BookEntry.SUBTITLE, subtitle);
-        values.put(AlexandriaContract.BookEntry.DESC, desc);
-        getContentResolver().insert(AlexandriaContract.BookEntry.CONTENT_URI,values);
+    private void writeBackBook(ArrayList<ContentProviderOperation> operations,
+                               String ean, String title, String subtitle, String desc, String imgUrl) {
+        operations.add(ContentProviderOperation.newInsert(AlexandriaContract.BookEntry.CONTENT_URI)
+                .withValue(AlexandriaContract.BookEntry._ID, ean)
+                .withValue(AlexandriaContract.BookEntry.TITLE, title)
+                .withValue(AlexandriaContract.BookEntry.IMAGE_URL, imgUrl)
+                .withValue(AlexandriaContract.BookEntry.SUBTITLE, subtitle)
+                .withValue(AlexandriaContract.BookEntry.DESC, desc)
+                .build());
     }
 
     /**
-     * writeBackAuthors -- original Alexandria code to write authors to database
+     * writeBackAuthors -- original Alexandria code to write authors to database, now adds the
+     *     inserts to the given batch of operations. The provider interns each name.
+     * @param operations
      * @param ean
-     * @param jsonArray
-     * @throws JSONException
+     * @param authors distinct author names
      */
-    private void writeBackAuthors(String ean, JSONArray jsonArray) throws JSONException {
-        ContentValues values= new ContentValues();
-        for (int i = 0; i < jsonArray.length(); i++) {
-            values.put(AlexandriaContract.AuthorEntry._ID, ean);
-            values.put(AlexandriaContract.AuthorEntry.AUTHOR, jsonArray.getString(i));
-            getContentResolver().insert(AlexandriaContract.AuthorEntry.CONTENT_URI, values);
-            values= new ContentValues();
+    private void writeBackAuthors(ArrayList<ContentProviderOperation> operations,
+                                  String ean, List<String> authors) {
+        for (String author : authors) {
+            operations.add(ContentProviderOperation.newInsert(AlexandriaContract.AuthorEntry.CONTENT_URI)
+                    .withValue(AlexandriaContract.AuthorEntry._ID, ean)
+                    .withValue(AlexandriaContract.AuthorEntry.AUTHOR, author)
+                    .build());
         }
     }
 
     /**
-     * writeBackCategories -- original Alexandria code to write category database
+     * writeBackCategories -- original Alexandria code to write category database, now adds the
+     *     inserts to the given batch of operations, one per distinct name
+     * @param operations
      * @param ean
-     * @param jsonArray
-     * @throws JSONException
+     * @param categories distinct category names
      */
-    private void writeBackCategories(String ean, JSONArray jsonArray) throws JSONException {
-        ContentValues values= new ContentValues();
-        for (int i = 0; i < jsonArray.length(); i++) {
-            values.put(AlexandriaContract.CategoryEntry._ID, ean);
-            values.put(AlexandriaContract.CategoryEntry.CATEGORY, jsonArray.getString(i));
-            getContentResolver().insert(AlexandriaContract.CategoryEntry.CONTENT_URI, values);
-            values= new ContentValues();
+    private void writeBackCategories(ArrayList<ContentProviderOperation> operations,
+                                     String ean, List<String> categories) {
+        for (String category : categories) {
+            operations.add(ContentProviderOperation.newInsert(AlexandriaContract.CategoryEntry.CONTENT_URI)
+                    .withValue(AlexandriaContract.CategoryEntry._ID, ean)
+                    .withValue(AlexandriaContract.CategoryEntry.CATEGORY, category)
+                    .build());
         }
     }
- }
\ No newline at end of file
+ }
@@ -0,0 +1,28 @@
+package it.jaschke.alexandria.services;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+
+import it.jaschke.alexandria.Utility;
+
+/**
+ * ConnectivityReceiver -- drains the retry queue as soon as the network comes back. BookService
+ *     only enables this receiver while EANs are queued so the app is not woken on every
+ *     connectivity change.
+ */
+public class ConnectivityReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (!ConnectivityManager.CONNECTIVITY_ACTION.equals(intent.getAction()) ||
+                !Utility.isNetworkAvailable(context)) {
+            return;
+        }
+        Intent drainIntent = new Intent(context, BookService.class);
+        drainIntent.setAction(BookService.DRAIN_PENDING);
+        drainIntent.putExtra(BookService.DRAIN_ALL, true);
+        context.startService(drainIntent);
+    }
+}
@@ -0,0 +1,137 @@
+package it.jaschke.alexandria.services;
+
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * FetchEngine -- runs BookService work on a fixed number of lanes so lookups overlap their
+ *     network round trips. Work for an EAN always goes to the same lane, so requests for one
+ *     book run in the order they were made. Database writes all go through one writer thread
+ *     and long jobs (imports) run one at a time on their own thread.
+ */
+class FetchEngine {
+
+    private static final String LOG_TAG = FetchEngine.class.getSimpleName();
+
+    /**
+     * IdleListener -- told when the last queued task has finished, called on the thread that
+     *     ran it
+     */
+    interface IdleListener {
+        void onIdle();
+    }
+
+    private final ExecutorService[] mLanes;
+    private final ExecutorService mWriter;
+    private final ExecutorService mJobs;
+    private final IdleListener mIdleListener;
+
+    // tasks queued or running on any executor
+    private final AtomicInteger mPending = new AtomicInteger();
+
+    FetchEngine(int parallelism, IdleListener idleListener) {
+        mLanes = new ExecutorService[Math.max(1, parallelism)];
+        for (int i = 0; i < mLanes.length; i++) {
+            mLanes[i] = Executors.newSingleThreadExecutor(new NamedThreadFactory("BookService-lane-" + i));
+        }
+        mWriter = Executors.newSingleThreadExecutor(new NamedThreadFactory("BookService-writer"));
+        mJobs = Executors.newSingleThreadExecutor(new NamedThreadFactory("BookService-jobs"));
+        mIdleListener = idleListener;
+    }
+
+    int getParallelism() {
+        return mLanes.length;
+    }
+
+    /**
+     * submit -- run a task on the lane that owns the given EAN
+     * @param ean
+     * @param task
+     * @return future of the task result
+     */
+    <T> Future<T> submit(long ean, Callable<T> task) {
+        return mLanes[lane(ean)].submit(track(task));
+    }
+
+    void execute(long ean, Runnable task) {
+        submit(ean, Executors.callable(task));
+    }
+
+    /**
+     * write -- run a task on the writer thread, writes from every lane are applied one at a time
+     * @param task
+     * @return future of the task result
+     */
+    <T> Future<T> write(Callable<T> task) {
+        return mWriter.submit(track(task));
+    }
+
+    /**
+     * runJob -- run a long task, such as an import, after any job already running
+     * @param task
+     */
+    void runJob(Runnable task) {
+        mJobs.submit(track(Executors.callable(task)));
+    }
+
+    boolean isIdle() {
+        return mPending.get() == 0;
+    }
+
+    void shutdown() {
+        for (ExecutorService lane : mLanes) {
+            lane.shutdown();
+        }
+        mWriter.shutdown();
+        mJobs.shutdown();
+    }
+
+    private int lane(long ean) {
+        return (int) ((ean ^ (ean >>> 32)) & Integer.MAX_VALUE) % mLanes.length;
+    }
+
+    /**
+     * track -- count the task as pending until it finishes, a task that queues follow up work
+     *     does so before it finishes so the count only reaches zero when all work is done
+     * @param task
+     * @return wrapped task
+     */
+    private <T> Callable<T> track(final Callable<T> task) {
+        mPending.incrementAndGet();
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                try {
+                    return task.call();
+                } catch (RuntimeException e) {
+                    // the future is usually dropped, so log here rather than lose the error
+                    Log.e(LOG_TAG, "Error ", e);
+                    throw e;
+                } finally {
+                    if (mPending.decrementAndGet() == 0) {
+                        mIdleListener.onIdle();
+                    }
+                }
+            }
+        };
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String mName;
+
+        NamedThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, mName);
+        }
+    }
+}
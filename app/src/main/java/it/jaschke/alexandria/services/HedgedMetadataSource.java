@@ -0,0 +1,281 @@
+package it.jaschke.alexandria.services;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HedgedMetadataSource -- asks the primary source first and, when it has not answered within
+ *     the given percentile of its recent latencies, asks the backup source as well and takes
+ *     the first book found. An EAN the primary fails on is asked of the backup straight away.
+ *     The slow tail of the primary is cut off at the cost of a few extra requests, at most
+ *     (1 - percentile) of them once enough latencies are known.
+ * <p/>
+ * Single and batched lookups keep separate latency windows as a batch takes longer. The
+ *     primary's failure is the one reported when neither source finds a book, so a backup
+ *     that merely does not know a book never hides a primary that could not be reached.
+ */
+public class HedgedMetadataSource implements MetadataSource {
+
+    private static final String LOG_TAG = HedgedMetadataSource.class.getSimpleName();
+
+    public static final double DEFAULT_PERCENTILE = 0.95;
+    public static final long DEFAULT_HEDGE_DELAY_MS = 2000;
+
+    // latencies kept per window, and needed before the percentile replaces the default delay
+    private static final int WINDOW_SIZE = 100;
+    static final int MIN_SAMPLES = 20;
+
+    // never hedge sooner than this, a fast primary would otherwise be raced on every lookup
+    private static final long MIN_HEDGE_DELAY_MS = 50;
+
+    /**
+     * LatencyWindow -- the latest primary latencies, oldest overwritten first
+     */
+    static class LatencyWindow {
+        private final long[] mSamples = new long[WINDOW_SIZE];
+        private int mCount = 0;
+        private int mNext = 0;
+
+        synchronized void record(long millis) {
+            mSamples[mNext] = millis;
+            mNext = (mNext + 1) % mSamples.length;
+            mCount = Math.min(mCount + 1, mSamples.length);
+        }
+
+        /**
+         * percentile -- latency the given fraction of recorded lookups finished within
+         * @param percentile 0 to 1
+         * @param fallback returned until MIN_SAMPLES latencies are recorded
+         * @return latency in ms
+         */
+        synchronized long percentile(double percentile, long fallback) {
+            if (mCount < MIN_SAMPLES) {
+                return fallback;
+            }
+            long[] sorted = Arrays.copyOf(mSamples, mCount);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile * mCount) - 1;
+            return sorted[Math.max(0, Math.min(index, mCount - 1))];
+        }
+    }
+
+    private final MetadataSource mPrimary;
+    private final MetadataSource mBackup;
+    private final double mPercentile;
+    private final long mDefaultDelayMs;
+    private final LatencyWindow mSingleLatency = new LatencyWindow();
+    private final LatencyWindow mBatchLatency = new LatencyWindow();
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+
+    private final AtomicInteger mHedgedCount = new AtomicInteger();
+    private final AtomicInteger mBackupWinCount = new AtomicInteger();
+
+    public HedgedMetadataSource(MetadataSource primary, MetadataSource backup) {
+        this(primary, backup, DEFAULT_PERCENTILE, DEFAULT_HEDGE_DELAY_MS);
+    }
+
+    /**
+     * @param primary source asked first
+     * @param backup source asked when the primary is slow or fails
+     * @param percentile of the primary latencies after which the backup is asked too
+     * @param defaultDelayMs hedge delay until enough primary latencies are known
+     */
+    public HedgedMetadataSource(MetadataSource primary, MetadataSource backup,
+                                double percentile, long defaultDelayMs) {
+        mPrimary = primary;
+        mBackup = backup;
+        mPercentile = percentile;
+        mDefaultDelayMs = defaultDelayMs;
+    }
+
+    @Override
+    public Result lookup(String ean) {
+        return hedge(Collections.singletonList(ean), mSingleLatency).get(ean);
+    }
+
+    @Override
+    public Map<String, Result> lookupAll(Collection<String> eans) {
+        Map<String, Result> results = new LinkedHashMap<>();
+        List<String> eanList = new ArrayList<>(eans);
+        for (int from = 0; from < eanList.size(); from += VolumesClient.MAX_BATCH_SIZE) {
+            List<String> batch = eanList.subList(from,
+                    Math.min(from + VolumesClient.MAX_BATCH_SIZE, eanList.size()));
+            results.putAll(hedge(batch, (batch.size() == 1) ? mSingleLatency : mBatchLatency));
+        }
+        return results;
+    }
+
+    /**
+     * hedgeDelay -- how long the primary is given before the backup is asked too
+     * @param window
+     * @return delay in ms
+     */
+    long hedgeDelay(LatencyWindow window) {
+        return Math.max(MIN_HEDGE_DELAY_MS, window.percentile(mPercentile, mDefaultDelayMs));
+    }
+
+    public int hedgedCount() {
+        return mHedgedCount.get();
+    }
+
+    public int backupWinCount() {
+        return mBackupWinCount.get();
+    }
+
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * hedge -- look a batch up in the primary, bring in the backup when the primary is slower
+     *     than the hedge delay or leaves EANs without a book, and stop as soon as every EAN has
+     *     a book or both sources have answered
+     * @param eans at most MAX_BATCH_SIZE
+     * @param window primary latencies for a lookup of this size
+     * @return a result for every EAN in the order given
+     */
+    private Map<String, Result> hedge(List<String> eans, LatencyWindow window) {
+        CompletionService<Map<String, Result>> lookups = new ExecutorCompletionService<>(mExecutor);
+        Future<Map<String, Result>> primary = lookups.submit(timedLookup(mPrimary, eans, window));
+        Future<Map<String, Result>> backup = null;
+        Map<String, Result> primaryResults = null;
+        Map<String, Result> backupResults = null;
+        try {
+            Future<Map<String, Result>> done = lookups.poll(hedgeDelay(window), TimeUnit.MILLISECONDS);
+            if (done == null) {
+                mHedgedCount.incrementAndGet();
+                backup = lookups.submit(timedLookup(mBackup, eans, null));
+            }
+            while (true) {
+                if (done == null) {
+                    done = lookups.take();
+                }
+                if (done == primary) {
+                    primaryResults = resultsOf(done, eans);
+                } else {
+                    backupResults = resultsOf(done, eans);
+                }
+                done = null;
+
+                List<String> missing = missing(eans, primaryResults, backupResults);
+                if (missing.isEmpty() || ((primaryResults != null) && (backupResults != null))) {
+                    break;
+                }
+                if (backup == null) {
+                    // the primary answered in time but without a book, the backup may know it
+                    backup = lookups.submit(timedLookup(mBackup, missing, null));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // the loser is not waited for, a request already on the wire still finishes and
+            // records its latency
+            primary.cancel(true);
+            if (backup != null) {
+                backup.cancel(true);
+            }
+        }
+        return merge(eans, primaryResults, backupResults);
+    }
+
+    /**
+     * timedLookup -- a lookup to run on the executor, recording its latency when a window is
+     *     given
+     * @param source
+     * @param eans
+     * @param window null to not record the latency
+     * @return task
+     */
+    private static Callable<Map<String, Result>> timedLookup(final MetadataSource source,
+            final List<String> eans, final LatencyWindow window) {
+        return new Callable<Map<String, Result>>() {
+            @Override
+            public Map<String, Result> call() {
+                long start = SystemClock.elapsedRealtime();
+                try {
+                    return source.lookupAll(eans);
+                } finally {
+                    if (window != null) {
+                        window.record(SystemClock.elapsedRealtime() - start);
+                    }
+                }
+            }
+        };
+    }
+
+    private static Map<String, Result> resultsOf(Future<Map<String, Result>> done, List<String> eans) {
+        try {
+            return done.get();
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e(LOG_TAG, "Error ", e);
+            Map<String, Result> failed = new LinkedHashMap<>();
+            for (String ean : eans) {
+                failed.put(ean, Result.failed(BookService.FETCH_SERVER_FAILURE));
+            }
+            return failed;
+        }
+    }
+
+    private static boolean hasBook(Map<String, Result> results, String ean) {
+        Result result = (results == null) ? null : results.get(ean);
+        return (result != null) && (result.book != null);
+    }
+
+    private static List<String> missing(List<String> eans, Map<String, Result> primaryResults,
+                                        Map<String, Result> backupResults) {
+        List<String> missing = new ArrayList<>();
+        for (String ean : eans) {
+            if (!hasBook(primaryResults, ean) && !hasBook(backupResults, ean)) {
+                missing.add(ean);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * merge -- the primary's book, else the backup's book, else the primary's failure
+     * @param eans
+     * @param primaryResults null when the primary did not answer
+     * @param backupResults null when the backup was not asked or did not answer
+     * @return a result for every EAN in the order given
+     */
+    private Map<String, Result> merge(List<String> eans, Map<String, Result> primaryResults,
+                                      Map<String, Result> backupResults) {
+        Map<String, Result> results = new LinkedHashMap<>();
+        for (String ean : eans) {
+            Result result;
+            if (hasBook(primaryResults, ean)) {
+                result = primaryResults.get(ean);
+            } else if (hasBook(backupResults, ean)) {
+                mBackupWinCount.incrementAndGet();
+                result = backupResults.get(ean);
+            } else if ((primaryResults != null) && (primaryResults.get(ean) != null)) {
+                result = primaryResults.get(ean);
+            } else if ((backupResults != null) && (backupResults.get(ean) != null)) {
+                result = backupResults.get(ean);
+            } else {
+                result = Result.failed(BookService.FETCH_SERVER_FAILURE);
+            }
+            results.put(ean, result);
+        }
+        return results;
+    }
+}
@@ -0,0 +1,79 @@
+package it.jaschke.alexandria.services;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * InFlightRegistry -- collapses concurrent work on the same key. The first caller to join a key
+ *     owns it and does the work, everyone who joins before it completes waits for the owner's
+ *     result instead of repeating the work. An owner must always complete its key, and should
+ *     not wait on another key while it owns one.
+ */
+class InFlightRegistry<K, V> {
+
+    /**
+     * Entry -- result of the work on one key, handed to every waiter
+     */
+    static class Entry<V> {
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile V mValue;
+
+        /**
+         * await -- wait for the owner to complete
+         * @param interrupted returned when the wait is interrupted
+         * @return the owner's result
+         */
+        V await(V interrupted) {
+            try {
+                mDone.await();
+                return mValue;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return interrupted;
+            }
+        }
+    }
+
+    private final Map<K, Entry<V>> mInFlight = new HashMap<>();
+    private int mJoinedCount;
+
+    /**
+     * join -- become the owner of a key or get the entry to wait on
+     * @param key
+     * @return null when the caller now owns the key, otherwise the entry of the owner
+     */
+    synchronized Entry<V> join(K key) {
+        Entry<V> entry = mInFlight.get(key);
+        if (entry != null) {
+            mJoinedCount++;
+            return entry;
+        }
+        mInFlight.put(key, new Entry<V>());
+        return null;
+    }
+
+    /**
+     * complete -- hand the result to every waiter and release the key
+     * @param key
+     * @param value
+     */
+    void complete(K key, V value) {
+        Entry<V> entry;
+        synchronized (this) {
+            entry = mInFlight.remove(key);
+        }
+        if (entry != null) {
+            entry.mValue = value;
+            entry.mDone.countDown();
+        }
+    }
+
+    /**
+     * joinedCount -- number of times work was collapsed into work already in flight
+     * @return count
+     */
+    synchronized int joinedCount() {
+        return mJoinedCount;
+    }
+}
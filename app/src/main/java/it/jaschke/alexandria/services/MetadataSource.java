@@ -0,0 +1,48 @@
+package it.jaschke.alexandria.services;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * MetadataSource -- a service BookService can look book details up in by EAN. VolumesClient asks
+ *     Google Books, OpenLibraryClient asks Open Library and HedgedMetadataSource puts one in
+ *     front of the other.
+ */
+public interface MetadataSource {
+
+    /**
+     * Result -- the book found for one EAN or the BookService.FETCH_* reason there is none
+     */
+    public static class Result {
+        public final BookInfo book;
+        public final String failure;
+
+        public Result(BookInfo book, String failure) {
+            this.book = book;
+            this.failure = failure;
+        }
+
+        static Result found(BookInfo book) {
+            return new Result(book, null);
+        }
+
+        static Result failed(String failure) {
+            return new Result(null, failure);
+        }
+    }
+
+    /**
+     * lookup -- look one EAN up
+     * @param ean normalized EAN
+     * @return result, FETCH_SERVER_FAILURE when the server could not be reached or refused
+     */
+    public Result lookup(String ean);
+
+    /**
+     * lookupAll -- look many EANs up with as few requests as the service allows, a failed
+     *     request fails only its own EANs
+     * @param eans normalized EANs
+     * @return a result for every EAN in the order given
+     */
+    public Map<String, Result> lookupAll(Collection<String> eans);
+}
@@ -0,0 +1,257 @@
+package it.jaschke.alexandria.services;
+
+import android.net.Uri;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * OpenLibraryClient -- looks books up in the Open Library books API, the alternate source when
+ *     Google Books is slow or does not know a book. Up to MAX_BATCH_SIZE EANs are asked for
+ *     with one bibkeys=ISBN:<a>,ISBN:<b> ... request, the response is an object keyed by the
+ *     bibkeys asked for so every book maps straight back to its EAN. The response is read with
+ *     a JsonReader as it arrives, like VolumesParser does.
+ */
+public class OpenLibraryClient implements MetadataSource {
+
+    private static final String LOG_TAG = OpenLibraryClient.class.getSimpleName();
+
+    public static final String OPEN_LIBRARY_URL = "https://openlibrary.org/api/books";
+
+    // Open Library lists every subject heading it has, only the first few become categories
+    private static final int MAX_SUBJECTS = 3;
+
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 20000;
+
+    private final String mBaseUrl;
+
+    public OpenLibraryClient(String baseUrl) {
+        mBaseUrl = baseUrl;
+    }
+
+    @Override
+    public Result lookup(String ean) {
+        return lookupAll(Collections.singletonList(ean)).get(ean);
+    }
+
+    @Override
+    public Map<String, Result> lookupAll(Collection<String> eans) {
+        Map<String, Result> results = new LinkedHashMap<>();
+        List<String> batch = new ArrayList<>(VolumesClient.MAX_BATCH_SIZE);
+        for (String ean : eans) {
+            results.put(ean, null);
+            batch.add(ean);
+            if (batch.size() == VolumesClient.MAX_BATCH_SIZE) {
+                lookupBatch(batch, results);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            lookupBatch(batch, results);
+        }
+        return results;
+    }
+
+    private void lookupBatch(List<String> batch, Map<String, Result> results) {
+        Map<String, BookInfo> found = null;
+        String failure = BookService.FETCH_SERVER_FAILURE;
+        Uri uri = buildUri(batch);
+        HttpURLConnection urlConnection = null;
+        try {
+            urlConnection = (HttpURLConnection) new URL(uri.toString()).openConnection();
+            urlConnection.setRequestMethod("GET");
+            urlConnection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            urlConnection.setReadTimeout(READ_TIMEOUT_MS);
+            urlConnection.connect();
+            if (urlConnection.getResponseCode() == HttpURLConnection.HTTP_OK) {
+                failure = BookService.FETCH_OTHER_FAILURE;
+                Reader reader = new InputStreamReader(
+                        new BufferedInputStream(urlConnection.getInputStream()), "UTF-8");
+                try {
+                    found = parseBooks(reader);
+                } finally {
+                    reader.close();
+                }
+            } else {
+                Log.e(LOG_TAG, "lookupBatch() -- " + uri + " answered " + urlConnection.getResponseCode());
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error ", e);
+        } finally {
+            if (urlConnection != null) {
+                urlConnection.disconnect();
+            }
+        }
+
+        for (String ean : batch) {
+            Result result;
+            if (found == null) {
+                result = Result.failed(failure);
+            } else if (!found.containsKey(ean)) {
+                result = Result.failed(BookService.FETCH_NOT_FOUND);
+            } else if (found.get(ean) == null) {
+                result = Result.failed(BookService.FETCH_OTHER_FAILURE);
+            } else {
+                result = Result.found(found.get(ean));
+            }
+            results.put(ean, result);
+        }
+    }
+
+    private Uri buildUri(List<String> eans) {
+        final String BIBKEYS_PARAM = "bibkeys";
+        final String FORMAT_PARAM = "format";
+        final String JSCMD_PARAM = "jscmd";
+
+        StringBuilder bibkeys = new StringBuilder();
+        for (String ean : eans) {
+            if (bibkeys.length() > 0) {
+                bibkeys.append(',');
+            }
+            bibkeys.append("ISBN:").append(ean);
+        }
+        return Uri.parse(mBaseUrl).buildUpon()
+                .appendQueryParameter(BIBKEYS_PARAM, bibkeys.toString())
+                .appendQueryParameter(FORMAT_PARAM, "json")
+                .appendQueryParameter(JSCMD_PARAM, "data")
+                .build();
+    }
+
+    /**
+     * parseBooks -- every book of a response keyed by the EAN it was asked for
+     * @param in response body, left for the caller to close
+     * @return books keyed by EAN, a book without a title is there with a null value
+     * @throws IOException when the response cannot be read
+     */
+    static Map<String, BookInfo> parseBooks(Reader in) throws IOException {
+        Map<String, BookInfo> books = new HashMap<>();
+        JsonReader reader = new JsonReader(in);
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String key = reader.nextName();
+                if (key.startsWith("ISBN:") && (reader.peek() == JsonToken.BEGIN_OBJECT)) {
+                    books.put(key.substring("ISBN:".length()), readBook(reader));
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return books;
+        } catch (IllegalStateException e) {
+            throw new IOException("Unexpected books response", e);
+        }
+    }
+
+    private static BookInfo readBook(JsonReader reader) throws IOException {
+        String title = null;
+        String subtitle = "";
+        String desc = "";
+        String imgUrl = "";
+        List<String> authors = new ArrayList<>();
+        List<String> categories = new ArrayList<>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+                continue;
+            }
+            switch (name) {
+                case "title":
+                    title = reader.nextString();
+                    break;
+                case "subtitle":
+                    subtitle = reader.nextString();
+                    break;
+                case "notes":
+                    // usually plain text, sometimes a typed object that is not worth showing
+                    if (reader.peek() == JsonToken.STRING) {
+                        desc = reader.nextString();
+                    } else {
+                        reader.skipValue();
+                    }
+                    break;
+                case "authors":
+                    authors = readNames(reader, Integer.MAX_VALUE);
+                    break;
+                case "subjects":
+                    categories = readNames(reader, MAX_SUBJECTS);
+                    break;
+                case "cover":
+                    imgUrl = readCover(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return (title == null) ? null :
+                new BookInfo(title, subtitle, desc, imgUrl, authors, categories);
+    }
+
+    /**
+     * readNames -- trimmed, distinct names of an array of {"name": ...} objects in order
+     * @param reader
+     * @param limit most names to keep
+     * @return names
+     * @throws IOException
+     */
+    private static List<String> readNames(JsonReader reader, int limit) throws IOException {
+        Set<String> names = new LinkedHashSet<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if ("name".equals(reader.nextName()) && (reader.peek() == JsonToken.STRING)) {
+                    String name = reader.nextString().trim();
+                    if (!name.isEmpty() && (names.size() < limit)) {
+                        names.add(name);
+                    }
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        reader.endArray();
+        return new ArrayList<>(names);
+    }
+
+    private static String readCover(JsonReader reader) throws IOException {
+        String cover = "";
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("medium".equals(reader.nextName()) && (reader.peek() == JsonToken.STRING)) {
+                cover = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return cover;
+    }
+}
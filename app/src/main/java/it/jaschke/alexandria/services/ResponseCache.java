@@ -0,0 +1,276 @@
+package it.jaschke.alexandria.services;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * ResponseCache -- keeps the last volumes response for each ISBN on disk, one small file per
+ *     ISBN, with the ETag and Last-Modified the server sent so the next lookup can revalidate
+ *     it instead of downloading it again. When the cache outgrows its size the least recently
+ *     used files are removed. Hits, misses and the bytes not downloaded are counted for as long
+ *     as the cache is open.
+ */
+public class ResponseCache {
+
+    private static final String LOG_TAG = ResponseCache.class.getSimpleName();
+
+    private static final int FORMAT_VERSION = 1;
+    private static final String SUFFIX = ".resp";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Entry -- a cached response body with its validators, either may be null
+     */
+    public static class Entry {
+        public final String etag;
+        public final String lastModified;
+        public final String body;
+
+        public Entry(String etag, String lastModified, String body) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.body = body;
+        }
+    }
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+
+    // bytes on disk, -1 until the directory has been scanned
+    private long mSize = -1;
+
+    private int mHitCount;
+    private int mStaleCount;
+    private int mMissCount;
+    private long mBytesSaved;
+
+    public ResponseCache(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    public synchronized boolean contains(String key) {
+        return file(key).exists();
+    }
+
+    /**
+     * get -- the cached response for a key, marks it as recently used
+     * @param key
+     * @return entry or null when nothing usable is cached
+     */
+    public synchronized Entry get(String key) {
+        File file = file(key);
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FORMAT_VERSION) {
+                remove(file);
+                return null;
+            }
+            String etag = readString(in);
+            String lastModified = readString(in);
+            // a corrupt length must not allocate more than the file could hold
+            int length = in.readInt();
+            if ((length < 0) || (length > file.length())) {
+                throw new IOException("Cached body of " + length + " bytes in " + file);
+            }
+            byte[] body = new byte[length];
+            in.readFully(body);
+            file.setLastModified(System.currentTimeMillis());
+            return new Entry(etag, lastModified, new String(body, UTF_8));
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error ", e);
+            remove(file);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * put -- store a response, written to a temporary file first so a reader never sees half
+     *     of one, then trim the cache back to its size
+     * @param key
+     * @param entry
+     */
+    public synchronized void put(String key, Entry entry) {
+        File file = file(key);
+        File temp = new File(mDirectory, key + TEMP_SUFFIX);
+        DataOutputStream out = null;
+        try {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("Cannot create " + mDirectory);
+            }
+            long before = size();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            byte[] body = entry.body.getBytes(UTF_8);
+            out.writeInt(FORMAT_VERSION);
+            writeString(out, entry.etag);
+            writeString(out, entry.lastModified);
+            out.writeInt(body.length);
+            out.write(body);
+            out.close();
+            out = null;
+
+            long replaced = file.length();
+            if (!temp.renameTo(file)) {
+                throw new IOException("Cannot rename " + temp);
+            }
+            mSize = before - replaced + file.length();
+            trim(file);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error ", e);
+            temp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * recordHit -- a response was answered from the cache
+     * @param entry
+     * @param stale true when it was served without being revalidated because the server could
+     *     not be reached
+     */
+    public synchronized void recordHit(Entry entry, boolean stale) {
+        mHitCount++;
+        if (stale) {
+            mStaleCount++;
+        }
+        mBytesSaved += entry.body.getBytes(UTF_8).length;
+    }
+
+    /**
+     * recordMiss -- a response had to be downloaded or could not be had at all
+     */
+    public synchronized void recordMiss() {
+        mMissCount++;
+    }
+
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int staleCount() {
+        return mStaleCount;
+    }
+
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    /**
+     * bytesSaved -- UTF-8 bytes of response bodies served from the cache instead of downloaded
+     * @return count
+     */
+    public synchronized long bytesSaved() {
+        return mBytesSaved;
+    }
+
+    public synchronized float hitRatio() {
+        int lookups = mHitCount + mMissCount;
+        return (lookups == 0) ? 0 : (float) mHitCount / lookups;
+    }
+
+    public synchronized long size() {
+        if (mSize < 0) {
+            mSize = 0;
+            File[] files = mDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    mSize += file.length();
+                }
+            }
+        }
+        return mSize;
+    }
+
+    /**
+     * clear -- remove every cached response, the counters are kept
+     */
+    public synchronized void clear() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mSize = 0;
+    }
+
+    /**
+     * trim -- remove the least recently used responses until the cache fits
+     * @param keep the response just written, never removed
+     */
+    private void trim(File keep) {
+        if (size() <= mMaxBytes) {
+            return;
+        }
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return (l < r) ? -1 : ((l == r) ? 0 : 1);
+            }
+        });
+        for (int i = 0; (i < files.length) && (mSize > mMaxBytes); i++) {
+            if (!files[i].equals(keep)) {
+                remove(files[i]);
+            }
+        }
+    }
+
+    private void remove(File file) {
+        long length = file.length();
+        if (file.delete() && (mSize >= 0)) {
+            mSize -= length;
+        }
+    }
+
+    private File file(String key) {
+        return new File(mDirectory, key + SUFFIX);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error ", e);
+            }
+        }
+    }
+}
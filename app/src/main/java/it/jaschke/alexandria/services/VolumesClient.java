@@ -0,0 +1,280 @@
+package it.jaschke.alexandria.services;
+
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * VolumesClient -- looks books up in the Google Books volumes API. A single EAN is searched with
+ *     q=isbn:<ean>, a batch is searched with one q=isbn:<a> OR isbn:<b> ... request and the
+ *     volumes that come back are matched to their EANs through their industry identifiers. The
+ *     base url is passed in so tests can point the client at a local stub server.
+ * <p/>
+ * With a ResponseCache single lookups are revalidated with If-None-Match / If-Modified-Since
+ *     and a cached response is served, stale, when the server cannot be reached. A batched
+ *     response carries no validators for its single ISBNs so it is not cached, cached EANs are
+ *     taken out of a batch and revalidated on their own instead.
+ */
+public class VolumesClient implements MetadataSource {
+
+    private static final String LOG_TAG = VolumesClient.class.getSimpleName();
+
+    public static final String GOOGLE_BOOKS_URL = "https://www.googleapis.com/books/v1/volumes";
+
+    // EANs per batched request, well inside the 40 volumes the API returns per page so a batch
+    // still fits when some EANs match more than one volume
+    public static final int MAX_BATCH_SIZE = 10;
+
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 20000;
+
+    private final String mBaseUrl;
+    private final ResponseCache mCache;
+
+    public VolumesClient(String baseUrl) {
+        this(baseUrl, null);
+    }
+
+    public VolumesClient(String baseUrl, ResponseCache cache) {
+        mBaseUrl = baseUrl;
+        mCache = cache;
+    }
+
+    /**
+     * lookup -- original Alexandria search for one EAN, takes the first volume returned
+     * @param ean
+     * @return result, FETCH_SERVER_FAILURE when the server could not be reached or refused
+     */
+    @Override
+    public Result lookup(String ean) {
+        String json = get(buildUri(Collections.singletonList(ean)), ean);
+        if (json == null) {
+            return Result.failed(BookService.FETCH_SERVER_FAILURE);
+        }
+        try {
+            BookInfo book = VolumesParser.parseFirst(new StringReader(json));
+            return (book == null) ? Result.failed(BookService.FETCH_NOT_FOUND) : Result.found(book);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error ", e);
+            return Result.failed(BookService.FETCH_OTHER_FAILURE);
+        }
+    }
+
+    /**
+     * lookupAll -- search for many EANs with one request per MAX_BATCH_SIZE of them. A failed
+     *     request fails only its own EANs, an EAN no volume claims is FETCH_NOT_FOUND.
+     * @param eans normalized EANs
+     * @return a result for every EAN in the order given
+     */
+    @Override
+    public Map<String, Result> lookupAll(Collection<String> eans) {
+        Map<String, Result> results = new LinkedHashMap<>();
+        List<String> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        for (String ean : eans) {
+            // keep the order asked, the result is filled in below
+            results.put(ean, null);
+            if ((mCache != null) && mCache.contains(ean)) {
+                results.put(ean, lookup(ean));
+                continue;
+            }
+            batch.add(ean);
+            if (batch.size() == MAX_BATCH_SIZE) {
+                lookupBatch(batch, results);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            lookupBatch(batch, results);
+        }
+        return results;
+    }
+
+    private void lookupBatch(List<String> batch, Map<String, Result> results) {
+        if (batch.size() == 1) {
+            results.put(batch.get(0), lookup(batch.get(0)));
+            return;
+        }
+
+        // batches are not cached so the response is parsed straight off the connection
+        Map<String, VolumesParser.Volume> found = null;
+        String failure = BookService.FETCH_SERVER_FAILURE;
+        Uri uri = buildUri(batch);
+        HttpURLConnection urlConnection = null;
+        try {
+            urlConnection = connect(uri, null);
+            if (urlConnection.getResponseCode() == HttpURLConnection.HTTP_OK) {
+                failure = BookService.FETCH_OTHER_FAILURE;
+                Reader reader = new InputStreamReader(
+                        new BufferedInputStream(urlConnection.getInputStream()), "UTF-8");
+                try {
+                    found = VolumesParser.parseAll(reader);
+                } finally {
+                    reader.close();
+                }
+            } else {
+                Log.e(LOG_TAG, "lookupBatch() -- " + uri + " answered " + urlConnection.getResponseCode());
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error ", e);
+        } finally {
+            if (urlConnection != null) {
+                urlConnection.disconnect();
+            }
+        }
+
+        for (String ean : batch) {
+            VolumesParser.Volume volume = (found == null) ? null : found.get(ean);
+            Result result;
+            if (found == null) {
+                result = Result.failed(failure);
+            } else if (volume == null) {
+                result = Result.failed(BookService.FETCH_NOT_FOUND);
+            } else if (volume.book == null) {
+                // a volume that cannot be used fails only the EANs it claims
+                result = Result.failed(BookService.FETCH_OTHER_FAILURE);
+            } else {
+                result = Result.found(volume.book);
+            }
+            results.put(ean, result);
+        }
+    }
+
+    private Uri buildUri(List<String> eans) {
+        final String QUERY_PARAM = "q";
+        final String MAX_RESULTS_PARAM = "maxResults";
+        final String FIELDS_PARAM = "fields";
+
+        StringBuilder query = new StringBuilder();
+        for (String ean : eans) {
+            if (query.length() > 0) {
+                query.append(" OR ");
+            }
+            query.append("isbn:").append(ean);
+        }
+        Uri.Builder builder = Uri.parse(mBaseUrl).buildUpon()
+                .appendQueryParameter(QUERY_PARAM, query.toString())
+                .appendQueryParameter(FIELDS_PARAM, VolumesParser.FIELDS);
+        if (eans.size() > 1) {
+            builder.appendQueryParameter(MAX_RESULTS_PARAM, "40");
+        }
+        return builder.build();
+    }
+
+    /**
+     * get -- read the body of a GET request, through the cache when there is a cache key
+     * @param uri
+     * @param cacheKey ISBN the response is cached under, null to bypass the cache
+     * @return body or null when the server could not be reached or did not answer 200 and
+     *     nothing was cached
+     */
+    private String get(Uri uri, String cacheKey) {
+        ResponseCache.Entry cached = null;
+        if ((mCache != null) && (cacheKey != null)) {
+            cached = mCache.get(cacheKey);
+        }
+        HttpURLConnection urlConnection = null;
+        try {
+            urlConnection = connect(uri, cached);
+            int responseCode = urlConnection.getResponseCode();
+            if ((responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) && (cached != null)) {
+                mCache.recordHit(cached, false);
+                return cached.body;
+            }
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                Log.e(LOG_TAG, "get() -- " + uri + " answered " + responseCode);
+                return serveStale(cached);
+            }
+            String body = readStream(urlConnection.getInputStream());
+            if ((mCache != null) && (cacheKey != null)) {
+                mCache.recordMiss();
+                if (body != null) {
+                    mCache.put(cacheKey, new ResponseCache.Entry(urlConnection.getHeaderField("ETag"),
+                            urlConnection.getHeaderField("Last-Modified"), body));
+                }
+            }
+            return body;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error ", e);
+            return serveStale(cached);
+        } finally {
+            if (urlConnection != null) {
+                urlConnection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * connect -- open a GET request, conditional when there is a cached response
+     * @param uri
+     * @param cached
+     * @return connected request
+     * @throws IOException
+     */
+    private static HttpURLConnection connect(Uri uri, ResponseCache.Entry cached) throws IOException {
+        HttpURLConnection urlConnection = (HttpURLConnection) new URL(uri.toString()).openConnection();
+        urlConnection.setRequestMethod("GET");
+        urlConnection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        urlConnection.setReadTimeout(READ_TIMEOUT_MS);
+        if (cached != null) {
+            if (cached.etag != null) {
+                urlConnection.setRequestProperty("If-None-Match", cached.etag);
+            }
+            if (cached.lastModified != null) {
+                urlConnection.setRequestProperty("If-Modified-Since", cached.lastModified);
+            }
+        }
+        urlConnection.connect();
+        return urlConnection;
+    }
+
+    /**
+     * serveStale -- the cached body when the server could not give a fresh one
+     * @param cached
+     * @return body or null when nothing was cached
+     */
+    private String serveStale(ResponseCache.Entry cached) {
+        if (cached == null) {
+            if (mCache != null) {
+                mCache.recordMiss();
+            }
+            return null;
+        }
+        mCache.recordHit(cached, true);
+        return cached.body;
+    }
+
+    /**
+     * readStream -- read the whole body in blocks, the text is kept as sent
+     * @param inputStream
+     * @return body, null when empty
+     * @throws IOException
+     */
+    private static String readStream(InputStream inputStream) throws IOException {
+        StringBuilder buffer = new StringBuilder();
+        Reader reader = new InputStreamReader(inputStream, "UTF-8");
+        try {
+            char[] block = new char[4096];
+            int count;
+            while ((count = reader.read(block)) != -1) {
+                buffer.append(block, 0, count);
+            }
+        } finally {
+            reader.close();
+        }
+        return (buffer.length() == 0) ? null : buffer.toString();
+    }
+}
@@ -0,0 +1,236 @@
+package it.jaschke.alexandria.services;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import it.jaschke.alexandria.Utility;
+
+/**
+ * VolumesParser -- pulls books out of a volumes response with a JsonReader. Only the fields
+ *     written to the library (title, subtitle, authors, description, categories,
+ *     imageLinks.thumbnail) and the industry identifiers are read, everything else is skipped
+ *     without being built into objects, and a single lookup stops reading after the first
+ *     volume.
+ */
+public final class VolumesParser {
+
+    // partial response selector sent with every request so the server leaves out the rest
+    public static final String FIELDS = "items/volumeInfo(title,subtitle,authors,description," +
+            "categories,imageLinks/thumbnail,industryIdentifiers)";
+
+    private VolumesParser() {
+    }
+
+    /**
+     * Volume -- one volume of a response, book is null when the volume has no title
+     */
+    static class Volume {
+        final BookInfo book;
+        final List<String> eans;
+
+        Volume(BookInfo book, List<String> eans) {
+            this.book = book;
+            this.eans = eans;
+        }
+    }
+
+    /**
+     * parseFirst -- original Alexandria use of a volumes search, the first volume only
+     * @param in response body, left for the caller to close
+     * @return book or null when the search found nothing
+     * @throws IOException when the response or the first volume cannot be read
+     */
+    public static BookInfo parseFirst(Reader in) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        try {
+            if (!moveToItems(reader) || !reader.hasNext()) {
+                return null;
+            }
+            Volume volume = readVolume(reader);
+            if (volume.book == null) {
+                throw new IOException("Volume has no title");
+            }
+            // done, the rest of the response is never read
+            return volume.book;
+        } catch (IllegalStateException e) {
+            throw new IOException("Unexpected volumes response", e);
+        }
+    }
+
+    /**
+     * parseAll -- every volume of a batched search keyed by the EANs it claims, the first
+     *     volume to claim an EAN wins
+     * @param in response body, left for the caller to close
+     * @return volumes keyed by normalized EAN, a volume without a title has a null book
+     * @throws IOException when the response cannot be read
+     */
+    static Map<String, Volume> parseAll(Reader in) throws IOException {
+        Map<String, Volume> volumes = new LinkedHashMap<>();
+        JsonReader reader = new JsonReader(in);
+        try {
+            if (!moveToItems(reader)) {
+                return volumes;
+            }
+            while (reader.hasNext()) {
+                Volume volume = readVolume(reader);
+                for (String ean : volume.eans) {
+                    if (!volumes.containsKey(ean)) {
+                        volumes.put(ean, volume);
+                    }
+                }
+            }
+            return volumes;
+        } catch (IllegalStateException e) {
+            throw new IOException("Unexpected volumes response", e);
+        }
+    }
+
+    /**
+     * moveToItems -- skip to the start of the items array, leaves the reader inside it
+     * @param reader
+     * @return false when the response has no items
+     * @throws IOException
+     */
+    private static boolean moveToItems(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("items".equals(reader.nextName()) && (reader.peek() == JsonToken.BEGIN_ARRAY)) {
+                reader.beginArray();
+                return true;
+            }
+            reader.skipValue();
+        }
+        return false;
+    }
+
+    private static Volume readVolume(JsonReader reader) throws IOException {
+        Volume volume = new Volume(null, new ArrayList<String>());
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("volumeInfo".equals(reader.nextName())) {
+                volume = readVolumeInfo(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return volume;
+    }
+
+    private static Volume readVolumeInfo(JsonReader reader) throws IOException {
+        String title = null;
+        String subtitle = "";
+        String desc = "";
+        String imgUrl = "";
+        List<String> authors = new ArrayList<>();
+        List<String> categories = new ArrayList<>();
+        List<String> eans = new ArrayList<>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+                continue;
+            }
+            switch (name) {
+                case "title":
+                    title = reader.nextString();
+                    break;
+                case "subtitle":
+                    subtitle = reader.nextString();
+                    break;
+                case "description":
+                    desc = reader.nextString();
+                    break;
+                case "authors":
+                    authors = readDistinctNames(reader);
+                    break;
+                case "categories":
+                    categories = readDistinctNames(reader);
+                    break;
+                case "imageLinks":
+                    imgUrl = readThumbnail(reader);
+                    break;
+                case "industryIdentifiers":
+                    eans = readEans(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        BookInfo book = (title == null) ? null :
+                new BookInfo(title, subtitle, desc, imgUrl, authors, categories);
+        return new Volume(book, eans);
+    }
+
+    /**
+     * readDistinctNames -- trimmed, non empty names from the array in order, each only once. The
+     *     provider interns each name, so only distinct names need to be sent.
+     * @param reader
+     * @return names
+     * @throws IOException
+     */
+    private static List<String> readDistinctNames(JsonReader reader) throws IOException {
+        Set<String> names = new LinkedHashSet<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() == JsonToken.STRING) {
+                String name = reader.nextString().trim();
+                if (!name.isEmpty()) {
+                    names.add(name);
+                }
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endArray();
+        return new ArrayList<>(names);
+    }
+
+    private static String readThumbnail(JsonReader reader) throws IOException {
+        String thumbnail = "";
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("thumbnail".equals(reader.nextName()) && (reader.peek() == JsonToken.STRING)) {
+                thumbnail = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return thumbnail;
+    }
+
+    private static List<String> readEans(JsonReader reader) throws IOException {
+        List<String> eans = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if ("identifier".equals(reader.nextName()) && (reader.peek() == JsonToken.STRING)) {
+                    String ean = Utility.normalizeISBN(reader.nextString());
+                    if (ean != null) {
+                        eans.add(ean);
+                    }
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        reader.endArray();
+        return eans;
+    }
+}